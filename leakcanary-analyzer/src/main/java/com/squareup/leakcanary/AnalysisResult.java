@@ -22,17 +22,32 @@ public final class AnalysisResult implements Serializable {
   public static final long RETAINED_HEAP_SKIPPED = -1;
 
   public static AnalysisResult noLeak(long analysisDurationMs) {
-    return new AnalysisResult(false, false, null, null, null, 0, analysisDurationMs);
+    return new AnalysisResult(null, analysisDurationMs);
   }
 
   public static AnalysisResult leakDetected(boolean excludedLeak, String className,
       LeakTrace leakTrace, long retainedHeapSize, long analysisDurationMs) {
-    return new AnalysisResult(true, excludedLeak, className, leakTrace, null, retainedHeapSize,
+    long retainedNativeSize = retainedHeapSize == RETAINED_HEAP_SKIPPED ? RETAINED_HEAP_SKIPPED : 0;
+    return leakDetected(excludedLeak, className, leakTrace, retainedHeapSize, retainedNativeSize,
         analysisDurationMs);
   }
 
+  public static AnalysisResult leakDetected(boolean excludedLeak, String className,
+      LeakTrace leakTrace, long retainedHeapSize, long retainedNativeSize,
+      long analysisDurationMs) {
+    return leakDetected(excludedLeak, className, leakTrace, retainedHeapSize, retainedNativeSize,
+        false, analysisDurationMs);
+  }
+
+  public static AnalysisResult leakDetected(boolean excludedLeak, String className,
+      LeakTrace leakTrace, long retainedHeapSize, long retainedNativeSize,
+      boolean retainedSizeTruncated, long analysisDurationMs) {
+    return new AnalysisResult(excludedLeak, className, leakTrace, retainedHeapSize,
+        retainedNativeSize, retainedSizeTruncated, analysisDurationMs);
+  }
+
   public static AnalysisResult failure(Throwable failure, long analysisDurationMs) {
-    return new AnalysisResult(false, false, null, null, failure, 0, analysisDurationMs);
+    return new AnalysisResult(failure, analysisDurationMs);
   }
 
   /** True if a leak was found in the heap dump. */
@@ -66,6 +81,21 @@ public final class AnalysisResult implements Serializable {
    */
   public final long retainedHeapSize;
 
+  /**
+   * The number of bytes of native memory, such as the pixels of bitmaps from Android O, which
+   * would be freed if all references to the leaking object were released. It isn't part of
+   * {@link #retainedHeapSize}. {@link #RETAINED_HEAP_SKIPPED} if the retained heap size was not
+   * computed. 0 if {@link #leakFound} is false.
+   */
+  public final long retainedNativeSize;
+
+  /**
+   * True if {@link #retainedHeapSize} and {@link #retainedNativeSize} are lower bounds, because
+   * {@link HeapAnalyzer.RetainedSizeMode#approximate(int)} stopped before finding all the objects
+   * retained by the leaking object.
+   */
+  public final boolean retainedSizeTruncated;
+
   /** Total time spent analyzing the heap. */
   public final long analysisDurationMs;
 
@@ -128,14 +158,30 @@ public final class AnalysisResult implements Serializable {
     return exception;
   }
 
-  private AnalysisResult(boolean leakFound, boolean excludedLeak, String className,
-      LeakTrace leakTrace, Throwable failure, long retainedHeapSize, long analysisDurationMs) {
-    this.leakFound = leakFound;
+  private AnalysisResult(boolean excludedLeak, String className, LeakTrace leakTrace,
+      long retainedHeapSize, long retainedNativeSize, boolean retainedSizeTruncated,
+      long analysisDurationMs) {
+    this.leakFound = true;
     this.excludedLeak = excludedLeak;
     this.className = className;
     this.leakTrace = leakTrace;
-    this.failure = failure;
+    this.failure = null;
     this.retainedHeapSize = retainedHeapSize;
+    this.retainedNativeSize = retainedNativeSize;
+    this.retainedSizeTruncated = retainedSizeTruncated;
+    this.analysisDurationMs = analysisDurationMs;
+  }
+
+  /** No leak found, or the analysis failed if failure isn't null. */
+  private AnalysisResult(Throwable failure, long analysisDurationMs) {
+    this.leakFound = false;
+    this.excludedLeak = false;
+    this.className = null;
+    this.leakTrace = null;
+    this.failure = failure;
+    this.retainedHeapSize = 0;
+    this.retainedNativeSize = 0;
+    this.retainedSizeTruncated = false;
     this.analysisDurationMs = analysisDurationMs;
   }
 
@@ -16,6 +16,7 @@ public interface AnalyzerProgressListener {
     FINDING_SHORTEST_PATH,
     BUILDING_LEAK_TRACE,
     COMPUTING_DOMINATORS,
+    COMPUTING_RETAINED_SIZE,
     COMPUTING_BITMAP_SIZE,
   }
 
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.Snapshot;
+import gnu.trove.TIntLongHashMap;
+import gnu.trove.TObjectLongHashMap;
+import java.util.List;
+
+import static com.squareup.leakcanary.HahaHelper.classInstanceValues;
+import static com.squareup.leakcanary.HahaHelper.fieldValue;
+import static com.squareup.leakcanary.HahaHelper.hasField;
+import static com.squareup.leakcanary.HprofIndex.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndex.hasField;
+
+/**
+ * Finds the native memory held by bitmaps, which isn't part of any retained size.
+ *
+ * Up to Nougat, the pixels of a bitmap are in a byte array, Bitmap.mBuffer, so they are already
+ * part of the Java heap. From Oreo, Bitmap has no mBuffer and the pixels are allocated natively.
+ * Each bitmap registers the size of its native allocation with a
+ * libcore.util.NativeAllocationRegistry, which creates a {@code sun.misc.Cleaner} whose referent is
+ * the bitmap and whose thunk is an inner class of the registry, so the size can be read from the
+ * registry. When there is no such cleaner, the size is estimated from the bitmap width and height
+ * at 4 bytes per pixel (ARGB_8888), because the config and the row bytes only exist natively.
+ */
+final class BitmapNativeSizes {
+
+  static final String BITMAP_CLASS_NAME = "android.graphics.Bitmap";
+  static final String CLEANER_CLASS_NAME = "sun.misc.Cleaner";
+
+  private static final int BYTES_PER_PIXEL = 4;
+
+  /** Returns the native size of each bitmap that has its pixels in native memory. */
+  static TObjectLongHashMap<Instance> find(Snapshot snapshot) {
+    TObjectLongHashMap<Instance> nativeSizes = new TObjectLongHashMap<>();
+    ClassObj bitmapClass = snapshot.findClass(BITMAP_CLASS_NAME);
+    if (bitmapClass == null) {
+      return nativeSizes;
+    }
+    ClassObj cleanerClass = snapshot.findClass(CLEANER_CLASS_NAME);
+    if (cleanerClass != null) {
+      for (Instance cleaner : cleanerClass.getInstancesList()) {
+        List<ClassInstance.FieldValue> values = classInstanceValues(cleaner);
+        Object referent = fieldValue(values, "referent");
+        Object thunk = fieldValue(values, "thunk");
+        if (!(referent instanceof ClassInstance)
+            || ((Instance) referent).getClassObj() != bitmapClass
+            || !(thunk instanceof ClassInstance)) {
+          continue;
+        }
+        List<ClassInstance.FieldValue> thunkValues = classInstanceValues((Instance) thunk);
+        if (!hasField(thunkValues, "this$0")) {
+          continue;
+        }
+        Object registry = fieldValue(thunkValues, "this$0");
+        if (!(registry instanceof ClassInstance)) {
+          continue;
+        }
+        List<ClassInstance.FieldValue> registryValues = classInstanceValues((Instance) registry);
+        if (hasField(registryValues, "size")) {
+          nativeSizes.put((Instance) referent, (Long) fieldValue(registryValues, "size"));
+        }
+      }
+    }
+
+    for (Instance bitmap : bitmapClass.getInstancesList()) {
+      List<ClassInstance.FieldValue> values = classInstanceValues(bitmap);
+      // Recycled bitmaps have freed their pixels.
+      if (hasField(values, "mRecycled") && (Boolean) fieldValue(values, "mRecycled")) {
+        nativeSizes.remove(bitmap);
+      } else if (!nativeSizes.containsKey(bitmap)
+          && !hasField(values, "mBuffer")
+          && hasField(values, "mWidth")
+          && hasField(values, "mHeight")) {
+        int width = fieldValue(values, "mWidth");
+        int height = fieldValue(values, "mHeight");
+        nativeSizes.put(bitmap, (long) width * height * BYTES_PER_PIXEL);
+      }
+    }
+    return nativeSizes;
+  }
+
+  /**
+   * Same as {@link #find(Snapshot)}, on an index where {@link #BITMAP_CLASS_NAME} and
+   * {@link #CLEANER_CLASS_NAME} are indexed classes.
+   */
+  static TIntLongHashMap find(HprofIndex index) {
+    TIntLongHashMap nativeSizes = new TIntLongHashMap();
+    int[] bitmaps = index.instancesOf(BITMAP_CLASS_NAME);
+    if (bitmaps.length == 0) {
+      return nativeSizes;
+    }
+    for (int cleaner : index.instancesOf(CLEANER_CLASS_NAME)) {
+      Integer referent = index.fieldValue(cleaner, "referent");
+      Integer thunk = index.fieldValue(cleaner, "thunk");
+      if (!isInstanceOf(index, referent, BITMAP_CLASS_NAME)
+          || !isInstanceWithField(index, thunk, "this$0")) {
+        continue;
+      }
+      Integer registry = index.fieldValue(thunk, "this$0");
+      if (isInstanceWithField(index, registry, "size")) {
+        nativeSizes.put(referent, index.<Long>fieldValue(registry, "size"));
+      }
+    }
+
+    for (int bitmap : bitmaps) {
+      HprofIndex.ClassInfo bitmapClass = index.classOf(bitmap);
+      // Recycled bitmaps have freed their pixels.
+      if (hasField(bitmapClass, "mRecycled") && index.<Boolean>fieldValue(bitmap, "mRecycled")) {
+        nativeSizes.remove(bitmap);
+      } else if (!nativeSizes.containsKey(bitmap)
+          && !hasField(bitmapClass, "mBuffer")
+          && hasField(bitmapClass, "mWidth")
+          && hasField(bitmapClass, "mHeight")) {
+        int width = index.fieldValue(bitmap, "mWidth");
+        int height = index.fieldValue(bitmap, "mHeight");
+        nativeSizes.put(bitmap, (long) width * height * BYTES_PER_PIXEL);
+      }
+    }
+    return nativeSizes;
+  }
+
+  private static boolean isInstanceOf(HprofIndex index, Integer objectIndex, String className) {
+    return objectIndex != null
+        && index.tag(objectIndex) == INSTANCE_DUMP
+        && className.equals(index.className(objectIndex));
+  }
+
+  private static boolean isInstanceWithField(HprofIndex index, Integer objectIndex,
+      String fieldName) {
+    return objectIndex != null
+        && index.tag(objectIndex) == INSTANCE_DUMP
+        && index.classOf(objectIndex) != null
+        && hasField(index.classOf(objectIndex), fieldName);
+  }
+
+  private BitmapNativeSizes() {
+    throw new AssertionError();
+  }
+}
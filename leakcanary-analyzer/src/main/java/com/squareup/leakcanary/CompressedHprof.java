@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import gnu.trove.TLongArrayList;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Heap dumps stored as a sequence of deflated chunks, which can be read with random access by
+ * {@link CompressedHprofBuffer}. Layout:
+ * <ul>
+ * <li>magic (int), format version (int), chunk size (int), uncompressed length (long)</li>
+ * <li>each chunk of the heap dump, deflated separately</li>
+ * <li>the file offset of each chunk followed by the offset of the end of the last chunk (longs)
+ * </li>
+ * <li>the number of chunks (int), the file offset of the chunk offsets (long)</li>
+ * </ul>
+ */
+final class CompressedHprof {
+
+  static final int MAGIC = 0x4c43485a;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+  static final int TRAILER_SIZE = 4 + 8;
+  static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+  /** Compresses heapDumpFile into compressedFile, streaming one chunk at a time. */
+  static void compress(File heapDumpFile, File compressedFile, int chunkSize) throws IOException {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be at least 1, not " + chunkSize);
+    }
+    byte[] chunk = new byte[chunkSize];
+    byte[] deflated = new byte[chunkSize + chunkSize / 8 + 64];
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    TLongArrayList chunkOffsets = new TLongArrayList();
+    InputStream in = new FileInputStream(heapDumpFile);
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compressedFile)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(chunkSize);
+      out.writeLong(heapDumpFile.length());
+      long offset = HEADER_SIZE;
+      int chunkLength;
+      while ((chunkLength = readChunk(in, chunk)) > 0) {
+        chunkOffsets.add(offset);
+        deflater.reset();
+        deflater.setInput(chunk, 0, chunkLength);
+        deflater.finish();
+        while (!deflater.finished()) {
+          int deflatedLength = deflater.deflate(deflated);
+          out.write(deflated, 0, deflatedLength);
+          offset += deflatedLength;
+        }
+      }
+      chunkOffsets.add(offset);
+      for (int i = 0; i < chunkOffsets.size(); i++) {
+        out.writeLong(chunkOffsets.get(i));
+      }
+      out.writeInt(chunkOffsets.size() - 1);
+      out.writeLong(offset);
+    } finally {
+      deflater.end();
+      in.close();
+      out.close();
+    }
+  }
+
+  /** Fills chunk unless the end of in is reached, returns the number of bytes read. */
+  private static int readChunk(InputStream in, byte[] chunk) throws IOException {
+    int length = 0;
+    int read;
+    while (length < chunk.length && (read = in.read(chunk, length, chunk.length - length)) != -1) {
+      length += read;
+    }
+    return length;
+  }
+
+  /** Returns true if file starts like a heap dump compressed by {@link #compress}. */
+  static boolean isCompressed(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return in.readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Returns a buffer that reads heapDumpFile, whether it's compressed or not. */
+  static HprofBuffer openBuffer(File heapDumpFile) throws IOException {
+    if (isCompressed(heapDumpFile)) {
+      return new CompressedHprofBuffer(heapDumpFile);
+    }
+    return new MemoryMappedFileBuffer(heapDumpFile);
+  }
+
+  /**
+   * Releases the native memory of a buffer returned by {@link #openBuffer(File)}, which can't be
+   * read anymore. Memory mapped files are unmapped by the garbage collector. Null is ignored.
+   */
+  static void closeBuffer(HprofBuffer buffer) {
+    if (buffer instanceof CompressedHprofBuffer) {
+      ((CompressedHprofBuffer) buffer).close();
+    }
+  }
+
+  private CompressedHprof() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.squareup.leakcanary.CompressedHprof.HEADER_SIZE;
+import static com.squareup.leakcanary.CompressedHprof.MAGIC;
+import static com.squareup.leakcanary.CompressedHprof.TRAILER_SIZE;
+import static com.squareup.leakcanary.CompressedHprof.VERSION;
+
+/**
+ * Reads a heap dump compressed by {@link CompressedHprof#compress}. Chunks are inflated when first
+ * read and kept in a small LRU cache, so reading sequentially or around a few positions only
+ * inflates each chunk once. The array of an evicted chunk is reused for the next chunk inflated.
+ * The compressed file is memory mapped. {@link #close()} releases the native memory of the
+ * inflater.
+ *
+ * Not thread safe.
+ */
+final class CompressedHprofBuffer implements HprofBuffer, Closeable {
+
+  static final int DEFAULT_CACHED_CHUNKS = 16;
+
+  private final ByteBuffer compressed;
+  private final int chunkSize;
+  private final long length;
+  private final long[] chunkOffsets;
+  private final Map<Integer, byte[]> chunkCache;
+  private final Inflater inflater = new Inflater();
+  private byte[] compressedChunk = new byte[0];
+  /** The array of the last evicted chunk, or null. */
+  private byte[] evictedChunk;
+
+  private long position;
+  /** The chunk that holds position, or null if it hasn't been looked up yet. */
+  private byte[] chunk;
+  private long chunkStart;
+  private int chunkLength;
+
+  CompressedHprofBuffer(File file) throws IOException {
+    this(file, DEFAULT_CACHED_CHUNKS);
+  }
+
+  CompressedHprofBuffer(File file, final int cachedChunks) throws IOException {
+    if (cachedChunks < 1) {
+      throw new IllegalArgumentException("cachedChunks must be at least 1, not " + cachedChunks);
+    }
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Compressed heap dump too large: " + channel.size());
+      }
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      compressed = mapped;
+    } finally {
+      randomAccessFile.close();
+    }
+    if (compressed.capacity() < HEADER_SIZE + TRAILER_SIZE
+        || compressed.getInt(0) != MAGIC
+        || compressed.getInt(4) != VERSION) {
+      throw new IOException("Not a compressed heap dump: " + file);
+    }
+    chunkSize = compressed.getInt(8);
+    length = compressed.getLong(12);
+    int trailer = compressed.capacity() - TRAILER_SIZE;
+    int chunkCount = compressed.getInt(trailer);
+    int tableOffset = (int) compressed.getLong(trailer + 4);
+    if (chunkSize < 1 || chunkCount != (length + chunkSize - 1) / chunkSize) {
+      throw new IOException("Corrupted compressed heap dump: " + file);
+    }
+    chunkOffsets = new long[chunkCount + 1];
+    for (int i = 0; i <= chunkCount; i++) {
+      chunkOffsets[i] = compressed.getLong(tableOffset + i * 8);
+    }
+    chunkCache = new LinkedHashMap<Integer, byte[]>(cachedChunks * 2, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+        if (size() > cachedChunks) {
+          evictedChunk = eldest.getValue();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  @Override public byte readByte() {
+    if (chunk == null || position < chunkStart || position >= chunkStart + chunkLength) {
+      loadChunk();
+    }
+    return chunk[(int) (position++ - chunkStart)];
+  }
+
+  @Override public void read(byte[] bytes) {
+    readSubSequence(bytes, 0, bytes.length);
+  }
+
+  /** Skips start bytes then reads length bytes into bytes, like MemoryMappedFileBuffer. */
+  @Override public void readSubSequence(byte[] bytes, int start, int length) {
+    position += start;
+    int offset = 0;
+    while (offset < length) {
+      if (chunk == null || position < chunkStart || position >= chunkStart + chunkLength) {
+        loadChunk();
+      }
+      int chunkOffset = (int) (position - chunkStart);
+      int count = Math.min(length - offset, chunkLength - chunkOffset);
+      System.arraycopy(chunk, chunkOffset, bytes, offset, count);
+      offset += count;
+      position += count;
+    }
+  }
+
+  @Override public char readChar() {
+    return (char) readShort();
+  }
+
+  @Override public short readShort() {
+    return (short) (((readByte() & 0xff) << 8) | (readByte() & 0xff));
+  }
+
+  @Override public int readInt() {
+    return ((readByte() & 0xff) << 24)
+        | ((readByte() & 0xff) << 16)
+        | ((readByte() & 0xff) << 8)
+        | (readByte() & 0xff);
+  }
+
+  @Override public long readLong() {
+    return ((readInt() & 0xffffffffL) << 32) | (readInt() & 0xffffffffL);
+  }
+
+  @Override public float readFloat() {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  @Override public double readDouble() {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  @Override public void setPosition(long position) {
+    this.position = position;
+  }
+
+  @Override public long position() {
+    return position;
+  }
+
+  @Override public boolean hasRemaining() {
+    return position < length;
+  }
+
+  @Override public long remaining() {
+    return length - position;
+  }
+
+  /** The buffer can't be read anymore once closed. */
+  @Override public void close() {
+    inflater.end();
+    chunkCache.clear();
+    chunk = null;
+    evictedChunk = null;
+  }
+
+  private void loadChunk() {
+    if (position < 0 || position >= length) {
+      throw new IndexOutOfBoundsException("Position " + position + " out of [0, " + length + ")");
+    }
+    int chunkIndex = (int) (position / chunkSize);
+    byte[] cached = chunkCache.get(chunkIndex);
+    if (cached == null) {
+      cached = inflateChunk(chunkIndex);
+      chunkCache.put(chunkIndex, cached);
+    }
+    chunk = cached;
+    chunkStart = (long) chunkIndex * chunkSize;
+    chunkLength = (int) Math.min(chunkSize, length - chunkStart);
+  }
+
+  private byte[] inflateChunk(int chunkIndex) {
+    int start = (int) chunkOffsets[chunkIndex];
+    int compressedLength = (int) (chunkOffsets[chunkIndex + 1] - start);
+    if (compressedChunk.length < compressedLength) {
+      compressedChunk = new byte[compressedLength];
+    }
+    ByteBuffer source = compressed.duplicate();
+    source.position(start);
+    source.get(compressedChunk, 0, compressedLength);
+
+    // The evicted chunk isn't the current chunk, which was just read.
+    byte[] inflated = evictedChunk != null ? evictedChunk : new byte[chunkSize];
+    evictedChunk = null;
+    inflater.reset();
+    inflater.setInput(compressedChunk, 0, compressedLength);
+    try {
+      int inflatedLength = 0;
+      while (!inflater.finished()) {
+        int count = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalStateException("Truncated chunk " + chunkIndex);
+        }
+        inflatedLength += count;
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Corrupted chunk " + chunkIndex, e);
+    }
+    return inflated;
+  }
+}
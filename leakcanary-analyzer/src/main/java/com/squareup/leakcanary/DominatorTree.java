@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import gnu.trove.TIntArrayList;
+import java.util.Arrays;
+
+/**
+ * Dominator tree of the objects of an {@link HprofIndex}, computed with the Semi-NCA algorithm over
+ * int arrays. Perflib's {@code Snapshot.computeDominators()} instead needs the whole object graph
+ * with reverse references, and iterates over it until it reaches a fixed point. The gc roots are
+ * the children of a virtual root, so objects that are only dominated by the gc roots have no
+ * immediate dominator. Like perflib, the retained size of an object is the sum of the shallow sizes
+ * of the objects it dominates, including itself.
+ *
+ * The graph is numbered in depth first order from the virtual root, then the semi dominator of
+ * each object is computed in reverse order with a path compressed forest, and the immediate
+ * dominator is the nearest common ancestor of its parent and its semi dominator. This needs a few
+ * int arrays of the size of the heap plus the edges, and is close to linear.
+ */
+final class DominatorTree {
+
+  /** Immediate dominator of an object that is only dominated by the gc roots, or unreachable. */
+  static final int NO_DOMINATOR = -1;
+
+  private final int[] immediateDominators;
+  private final long[] retainedSizes;
+
+  private DominatorTree(int[] immediateDominators, long[] retainedSizes) {
+    this.immediateDominators = immediateDominators;
+    this.retainedSizes = retainedSizes;
+  }
+
+  static DominatorTree compute(HprofIndex index) {
+    int objectCount = index.objectCount();
+    // Depth first numbers start at 1, 0 is the virtual root. An object numbered 0 isn't reachable.
+    int[] numbers = new int[objectCount];
+    int[] vertices = new int[objectCount + 1];
+    int[] parents = new int[objectCount + 1];
+    // The successors of vertex v are successors[successorStarts[v], successorStarts[v + 1]), as
+    // object indexes. Vertices are numbered in the order their successors are added.
+    int[] successorStarts = new int[objectCount + 2];
+    TIntArrayList successors = new TIntArrayList();
+    TIntArrayList references = new TIntArrayList();
+
+    vertices[0] = NO_DOMINATOR;
+    parents[0] = NO_DOMINATOR;
+    for (int root = 0; root < index.gcRootCount(); root++) {
+      successors.add(index.gcRootIndex(root));
+    }
+    successorStarts[1] = successors.size();
+    int vertexCount = 1;
+
+    int[] stack = new int[objectCount + 1];
+    int[] stackCursors = new int[objectCount + 1];
+    int stackSize = 1;
+    while (stackSize > 0) {
+      int top = stackSize - 1;
+      int vertex = stack[top];
+      int cursor = stackCursors[top];
+      if (cursor == successorStarts[vertex + 1]) {
+        stackSize--;
+        continue;
+      }
+      stackCursors[top]++;
+      int objectIndex = successors.get(cursor);
+      if (numbers[objectIndex] != 0) {
+        continue;
+      }
+      int number = vertexCount++;
+      numbers[objectIndex] = number;
+      vertices[number] = objectIndex;
+      parents[number] = vertex;
+      references.clear();
+      index.collectReferences(objectIndex, references);
+      successors.add(references.toNativeArray());
+      successorStarts[number + 1] = successors.size();
+      stack[stackSize] = number;
+      stackCursors[stackSize] = successorStarts[number];
+      stackSize++;
+    }
+    stack = null;
+    stackCursors = null;
+    references = null;
+
+    int[] predecessorStarts = new int[vertexCount + 1];
+    int[] edges = successors.toNativeArray();
+    successors = null;
+    for (int i = 0; i < edges.length; i++) {
+      edges[i] = numbers[edges[i]];
+      predecessorStarts[edges[i] + 1]++;
+    }
+    for (int v = 0; v < vertexCount; v++) {
+      predecessorStarts[v + 1] += predecessorStarts[v];
+    }
+    int[] predecessors = new int[edges.length];
+    int[] predecessorCursors = Arrays.copyOf(predecessorStarts, vertexCount);
+    for (int v = 0; v < vertexCount; v++) {
+      for (int i = successorStarts[v]; i < successorStarts[v + 1]; i++) {
+        predecessors[predecessorCursors[edges[i]]++] = v;
+      }
+    }
+    edges = null;
+    predecessorCursors = null;
+
+    int[] semis = new int[vertexCount];
+    int[] labels = new int[vertexCount];
+    int[] ancestors = new int[vertexCount];
+    for (int v = 0; v < vertexCount; v++) {
+      semis[v] = v;
+      labels[v] = v;
+      ancestors[v] = -1;
+    }
+    // Reuses the successor starts as the path compression stack, they are not needed anymore.
+    int[] compressStack = successorStarts;
+    for (int w = vertexCount - 1; w > 0; w--) {
+      for (int i = predecessorStarts[w]; i < predecessorStarts[w + 1]; i++) {
+        int u = eval(predecessors[i], ancestors, labels, semis, compressStack);
+        if (semis[u] < semis[w]) {
+          semis[w] = semis[u];
+        }
+      }
+      ancestors[w] = parents[w];
+    }
+    ancestors = null;
+    labels = null;
+    predecessors = null;
+
+    // Parents are replaced by immediate dominators in depth first order, so the dominator of each
+    // ancestor is already known.
+    int[] dominators = parents;
+    for (int w = 1; w < vertexCount; w++) {
+      int dominator = dominators[w];
+      while (dominator > semis[w]) {
+        dominator = dominators[dominator];
+      }
+      dominators[w] = dominator;
+    }
+
+    long[] retainedSizes = new long[objectCount];
+    int[] immediateDominators = new int[objectCount];
+    Arrays.fill(immediateDominators, NO_DOMINATOR);
+    // Children have higher numbers than their dominator, so the retained sizes are summed bottom up
+    // by going through the vertices in reverse order.
+    for (int w = vertexCount - 1; w > 0; w--) {
+      int objectIndex = vertices[w];
+      retainedSizes[objectIndex] += index.shallowSize(objectIndex);
+      int dominator = dominators[w];
+      if (dominator != 0) {
+        immediateDominators[objectIndex] = vertices[dominator];
+        retainedSizes[vertices[dominator]] += retainedSizes[objectIndex];
+      }
+    }
+    return new DominatorTree(immediateDominators, retainedSizes);
+  }
+
+  /**
+   * Returns the vertex with the lowest semi dominator on the path from vertex to the root of its
+   * tree in the forest, excluding that root, and compresses that path.
+   */
+  private static int eval(int vertex, int[] ancestors, int[] labels, int[] semis, int[] stack) {
+    if (ancestors[vertex] == -1) {
+      return vertex;
+    }
+    int stackSize = 0;
+    for (int v = vertex; ancestors[ancestors[v]] != -1; v = ancestors[v]) {
+      stack[stackSize++] = v;
+    }
+    while (stackSize > 0) {
+      int v = stack[--stackSize];
+      int ancestor = ancestors[v];
+      if (semis[labels[ancestor]] < semis[labels[v]]) {
+        labels[v] = labels[ancestor];
+      }
+      ancestors[v] = ancestors[ancestor];
+    }
+    return labels[vertex];
+  }
+
+  /**
+   * Returns the index of the immediate dominator of an object, or {@link #NO_DOMINATOR} if the
+   * object is only dominated by the gc roots or isn't reachable.
+   */
+  int immediateDominator(int index) {
+    return immediateDominators[index];
+  }
+
+  /** Returns the retained size of an object, or 0 if it isn't reachable. */
+  long retainedSize(int index) {
+    return retainedSizes[index];
+  }
+}
@@ -32,7 +32,8 @@ import static java.util.Arrays.asList;
 
 public final class HahaHelper {
 
-  private static final Set<String> WRAPPER_TYPES = new HashSet<>(
+  /** Also used by {@link IndexedShortestPathFinder}, so that both backends agree. */
+  static final Set<String> WRAPPER_TYPES = new HashSet<>(
       asList(Boolean.class.getName(), Character.class.getName(), Float.class.getName(),
           Double.class.getName(), Byte.class.getName(), Short.class.getName(),
           Integer.class.getName(), Long.class.getName()));
@@ -15,25 +15,31 @@
  */
 package com.squareup.leakcanary;
 
-import com.squareup.haha.perflib.ArrayInstance;
 import com.squareup.haha.perflib.ClassInstance;
 import com.squareup.haha.perflib.ClassObj;
-import com.squareup.haha.perflib.Field;
 import com.squareup.haha.perflib.HprofParser;
 import com.squareup.haha.perflib.Instance;
 import com.squareup.haha.perflib.RootObj;
 import com.squareup.haha.perflib.RootType;
 import com.squareup.haha.perflib.Snapshot;
-import com.squareup.haha.perflib.Type;
 import com.squareup.haha.perflib.io.HprofBuffer;
-import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
-import gnu.trove.THashMap;
-import gnu.trove.TObjectProcedure;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TObjectLongHashMap;
+import gnu.trove.TObjectLongIterator;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.N_MR1;
@@ -43,24 +49,26 @@ import static com.squareup.leakcanary.AnalysisResult.noLeak;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.BUILDING_LEAK_TRACE;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.COMPUTING_BITMAP_SIZE;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.COMPUTING_DOMINATORS;
+import static com.squareup.leakcanary.AnalyzerProgressListener.Step.COMPUTING_RETAINED_SIZE;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.DEDUPLICATING_GC_ROOTS;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.FINDING_LEAKING_REF;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.FINDING_SHORTEST_PATH;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.PARSING_HEAP_DUMP;
 import static com.squareup.leakcanary.AnalyzerProgressListener.Step.READING_HEAP_DUMP_FILE;
+import static com.squareup.leakcanary.BitmapNativeSizes.BITMAP_CLASS_NAME;
+import static com.squareup.leakcanary.BitmapNativeSizes.CLEANER_CLASS_NAME;
 import static com.squareup.leakcanary.HahaHelper.asString;
 import static com.squareup.leakcanary.HahaHelper.classInstanceValues;
-import static com.squareup.leakcanary.HahaHelper.extendsThread;
 import static com.squareup.leakcanary.HahaHelper.fieldValue;
 import static com.squareup.leakcanary.HahaHelper.hasField;
 import static com.squareup.leakcanary.HahaHelper.threadName;
-import static com.squareup.leakcanary.LeakTraceElement.Holder.ARRAY;
-import static com.squareup.leakcanary.LeakTraceElement.Holder.CLASS;
+import static com.squareup.leakcanary.HprofIndex.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndex.OBJECT_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndex.hasField;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.THREAD;
-import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
-import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
-import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
@@ -70,28 +78,190 @@ public final class HeapAnalyzer {
 
   private static final String ANONYMOUS_CLASS_NAME_PATTERN = "^.+\\$\\d+$";
 
+  /** Number of low bits of a root key holding the object id, the others hold the root type. */
+  private static final int ROOT_ID_BITS = 58;
+
+  /** Classes for which the {@link Backend#HPROF_INDEX} backend needs to find instances. */
+  private static final List<String> INDEXED_CLASS_NAMES =
+      asList(KeyedWeakReference.class.getName(), BITMAP_CLASS_NAME, CLEANER_CLASS_NAME);
+
+  /** How the heap dump is read. */
+  public enum Backend {
+    /** Parses the whole heap dump into a perflib Snapshot, with an object per instance. */
+    SNAPSHOT,
+    /**
+     * Indexes the heap dump in a single pass and decodes objects from the memory mapped file only
+     * when they are visited. Needs a few bytes per object instead of the full object graph,
+     * including to compute dominators.
+     */
+    HPROF_INDEX,
+  }
+
+  /** How the retained size of a leaking instance is computed. */
+  public enum RetainedSizeAlgorithm {
+    /** Computes the dominator tree of the whole heap, then reads the leaking instance subtree. */
+    DOMINATORS,
+    /**
+     * Finds the objects only reachable through each leaking instance with a traversal of the heap
+     * that avoids all the leaking instances, shared by the leaks, then a traversal from each
+     * leaking instance. Before Oreo, the bitmap size adds a second traversal of the heap that
+     * ignores native gc roots. Gives the same retained size as {@link #DOMINATORS} without
+     * building a dominator tree, which is faster when there are few leaks.
+     */
+    REACHABILITY,
+  }
+
+  /** Whether and how precisely the retained size of leaking instances is computed. */
+  public static final class RetainedSizeMode {
+    /** Computes the retained size with the {@link RetainedSizeAlgorithm} of the analyzer. */
+    public static final RetainedSizeMode EXACT = new RetainedSizeMode(Integer.MAX_VALUE);
+    /** Sets the retained size to {@link AnalysisResult#RETAINED_HEAP_SKIPPED}. */
+    public static final RetainedSizeMode SKIPPED = new RetainedSizeMode(0);
+
+    /**
+     * Computes the retained size with {@link RetainedSizeAlgorithm#REACHABILITY}, but stops the
+     * traversals from each leaking instance after maxObjects objects. If a traversal stops early,
+     * the retained size only counts the objects found so far, which makes it a lower bound, and
+     * {@link AnalysisResult#retainedSizeTruncated} is true.
+     *
+     * Only the work per leak is bounded. The traversal of the heap from the gc roots isn't, since
+     * stopping it early would count objects the leaks don't retain. It runs once per analysis
+     * whatever the number of leaks, twice before Oreo, so the cost is about one or two
+     * traversals of the heap plus maxObjects objects per leak.
+     */
+    public static RetainedSizeMode approximate(int maxObjects) {
+      if (maxObjects < 1) {
+        throw new IllegalArgumentException("maxObjects must be at least 1, not " + maxObjects);
+      }
+      return new RetainedSizeMode(maxObjects);
+    }
+
+    final int maxObjects;
+
+    private RetainedSizeMode(int maxObjects) {
+      this.maxObjects = maxObjects;
+    }
+
+    boolean isSkipped() {
+      return this == SKIPPED;
+    }
+
+    boolean isApproximate() {
+      return this != EXACT && this != SKIPPED;
+    }
+
+    @Override public String toString() {
+      if (this == EXACT) {
+        return "EXACT";
+      }
+      return isSkipped() ? "SKIPPED" : "APPROXIMATE(" + maxObjects + ")";
+    }
+  }
+
+  /**
+   * Returns a builder of a {@link HeapAnalyzer} that uses the {@link Backend#SNAPSHOT} backend and
+   * the {@link RetainedSizeAlgorithm#DOMINATORS} algorithm unless told otherwise.
+   */
+  public static Builder builder(ExcludedRefs excludedRefs) {
+    return new Builder(excludedRefs);
+  }
+
+  public static final class Builder {
+
+    private final ExcludedRefs excludedRefs;
+    private AnalyzerProgressListener listener = AnalyzerProgressListener.NONE;
+    private Backend backend = Backend.SNAPSHOT;
+    private boolean persistIndex;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private RetainedSizeAlgorithm retainedSizeAlgorithm = RetainedSizeAlgorithm.DOMINATORS;
+
+    Builder(ExcludedRefs excludedRefs) {
+      this.excludedRefs = excludedRefs;
+    }
+
+    public Builder listener(AnalyzerProgressListener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    public Builder backend(Backend backend) {
+      this.backend = backend;
+      return this;
+    }
+
+    /**
+     * If true, the {@link Backend#HPROF_INDEX} backend stores the index of a heap dump in a
+     * {@code .idx} file next to it and later analyses of the same heap dump reuse it instead of
+     * parsing the heap dump again. Ignored by {@link Backend#SNAPSHOT}.
+     */
+    public Builder persistIndex(boolean persistIndex) {
+      this.persistIndex = persistIndex;
+      return this;
+    }
+
+    /**
+     * Maximum number of threads the {@link Backend#HPROF_INDEX} backend uses to parse the heap
+     * dump, 1 to parse it on the calling thread only. Defaults to the number of processors.
+     * Ignored by {@link Backend#SNAPSHOT}.
+     */
+    public Builder parallelism(int parallelism) {
+      if (parallelism < 1) {
+        throw new IllegalArgumentException("parallelism must be at least 1, not " + parallelism);
+      }
+      this.parallelism = parallelism;
+      return this;
+    }
+
+    public Builder retainedSizeAlgorithm(RetainedSizeAlgorithm retainedSizeAlgorithm) {
+      this.retainedSizeAlgorithm = retainedSizeAlgorithm;
+      return this;
+    }
+
+    public HeapAnalyzer build() {
+      return new HeapAnalyzer(this);
+    }
+  }
+
   private final ExcludedRefs excludedRefs;
   private final AnalyzerProgressListener listener;
+  private final Backend backend;
+  private final boolean persistIndex;
+  private final int parallelism;
+  private final RetainedSizeAlgorithm retainedSizeAlgorithm;
 
   public HeapAnalyzer(ExcludedRefs excludedRefs) {
     this(excludedRefs, AnalyzerProgressListener.NONE);
   }
 
   public HeapAnalyzer(ExcludedRefs excludedRefs, AnalyzerProgressListener listener) {
-    this.excludedRefs = excludedRefs;
-    this.listener = listener;
+    this(builder(excludedRefs).listener(listener));
+  }
+
+  private HeapAnalyzer(Builder builder) {
+    this.excludedRefs = builder.excludedRefs;
+    this.listener = builder.listener;
+    this.backend = builder.backend;
+    this.persistIndex = builder.persistIndex;
+    this.parallelism = builder.parallelism;
+    this.retainedSizeAlgorithm = builder.retainedSizeAlgorithm;
   }
 
   public List<TrackedReference> findTrackedReferences(File heapDumpFile) {
     if (!heapDumpFile.exists()) {
       throw new IllegalArgumentException("File does not exist: " + heapDumpFile);
     }
+    HprofBuffer buffer = null;
     try {
-      HprofBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
+      listener.onProgressUpdate(READING_HEAP_DUMP_FILE);
+      buffer = CompressedHprof.openBuffer(heapDumpFile);
+      if (backend == Backend.HPROF_INDEX) {
+        return findTrackedReferences(indexHeapDump(heapDumpFile, buffer));
+      }
       HprofParser parser = new HprofParser(buffer);
       Snapshot snapshot = parser.parse();
       deduplicateGcRoots(snapshot);
 
+      SnapshotHeapGraph graph = new SnapshotHeapGraph(snapshot);
       ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
       List<TrackedReference> references = new ArrayList<>();
       for (Instance weakRef : refClass.getInstancesList()) {
@@ -101,17 +271,39 @@ public final class HeapAnalyzer {
             hasField(values, "name") ? asString(fieldValue(values, "name")) : "(No name field)";
         Instance instance = fieldValue(values, "referent");
         if (instance != null) {
-          String className = getClassName(instance);
-          List<LeakReference> fields = describeFields(instance);
+          String className = graph.className(instance);
+          List<LeakReference> fields = graph.describeFields(instance);
           references.add(new TrackedReference(key, name, className, fields));
         }
       }
       return references;
     } catch (Throwable e) {
       throw new RuntimeException(e);
+    } finally {
+      CompressedHprof.closeBuffer(buffer);
     }
   }
 
+  private List<TrackedReference> findTrackedReferences(HprofIndex index) {
+    List<TrackedReference> references = new ArrayList<>();
+    for (int weakRef : index.instancesOf(KeyedWeakReference.class.getName())) {
+      Integer keyIndex = index.fieldValue(weakRef, "key");
+      String key = index.asString(keyIndex);
+      String name = "(No name field)";
+      if (hasField(index.classOf(weakRef), "name")) {
+        Integer nameIndex = index.fieldValue(weakRef, "name");
+        name = index.asString(nameIndex);
+      }
+      Integer instance = index.fieldValue(weakRef, "referent");
+      if (instance != null) {
+        String className = index.className(instance);
+        List<LeakReference> fields = index.describeFields(instance);
+        references.add(new TrackedReference(key, name, className, fields));
+      }
+    }
+    return references;
+  }
+
   /**
    * Calls {@link #checkForLeak(File, String, boolean)} with computeRetainedSize set to true.
    * @deprecated Use {@link #checkForLeak(File, String, boolean)} instead.
@@ -127,304 +319,541 @@ public final class HeapAnalyzer {
    */
   public AnalysisResult checkForLeak(File heapDumpFile, String referenceKey,
       boolean computeRetainedSize) {
+    return checkForLeak(heapDumpFile, referenceKey,
+        computeRetainedSize ? RetainedSizeMode.EXACT : RetainedSizeMode.SKIPPED);
+  }
+
+  /** Same as {@link #checkForLeak(File, String, boolean)} with a {@link RetainedSizeMode}. */
+  public AnalysisResult checkForLeak(File heapDumpFile, String referenceKey,
+      RetainedSizeMode retainedSizeMode) {
+    return checkForLeaks(heapDumpFile, singleton(referenceKey), retainedSizeMode).get(
+        referenceKey);
+  }
+
+  /**
+   * Same as {@link #checkForLeak(File, String, boolean)} for several keys at once. The heap dump
+   * is parsed only once and a single traversal from the GC roots finds the shortest path to all
+   * the leaking instances.
+   *
+   * @return an {@link AnalysisResult} for each key, in the iteration order of referenceKeys.
+   */
+  public Map<String, AnalysisResult> checkForLeaks(File heapDumpFile, Set<String> referenceKeys,
+      boolean computeRetainedSize) {
+    return checkForLeaks(heapDumpFile, referenceKeys,
+        computeRetainedSize ? RetainedSizeMode.EXACT : RetainedSizeMode.SKIPPED);
+  }
+
+  /** Same as {@link #checkForLeaks(File, Set, boolean)} with a {@link RetainedSizeMode}. */
+  public Map<String, AnalysisResult> checkForLeaks(File heapDumpFile, Set<String> referenceKeys,
+      RetainedSizeMode retainedSizeMode) {
     long analysisStartNanoTime = System.nanoTime();
 
     if (!heapDumpFile.exists()) {
       Exception exception = new IllegalArgumentException("File does not exist: " + heapDumpFile);
-      return failure(exception, since(analysisStartNanoTime));
+      return failures(referenceKeys, exception, analysisStartNanoTime);
     }
 
+    HprofBuffer buffer = null;
     try {
       listener.onProgressUpdate(READING_HEAP_DUMP_FILE);
-      HprofBuffer buffer = new MemoryMappedFileBuffer(heapDumpFile);
-      HprofParser parser = new HprofParser(buffer);
-      listener.onProgressUpdate(PARSING_HEAP_DUMP);
-      Snapshot snapshot = parser.parse();
-      listener.onProgressUpdate(DEDUPLICATING_GC_ROOTS);
-      deduplicateGcRoots(snapshot);
-      listener.onProgressUpdate(FINDING_LEAKING_REF);
-      Instance leakingRef = findLeakingReference(referenceKey, snapshot);
-
-      // False alarm, weak reference was cleared in between key check and heap dump.
-      if (leakingRef == null) {
-        return noLeak(since(analysisStartNanoTime));
+      // The heap dump is read until the analysis is done.
+      buffer = CompressedHprof.openBuffer(heapDumpFile);
+      HeapGraph<?> graph;
+      if (backend == Backend.HPROF_INDEX) {
+        graph = new IndexedHeapGraph(indexHeapDump(heapDumpFile, buffer));
+      } else {
+        HprofParser parser = new HprofParser(buffer);
+        listener.onProgressUpdate(PARSING_HEAP_DUMP);
+        Snapshot snapshot = parser.parse();
+        listener.onProgressUpdate(DEDUPLICATING_GC_ROOTS);
+        deduplicateGcRoots(snapshot);
+        graph = new SnapshotHeapGraph(snapshot);
       }
-      return findLeakTrace(analysisStartNanoTime, snapshot, leakingRef, computeRetainedSize);
+      return findLeakTraces(analysisStartNanoTime, graph, referenceKeys, retainedSizeMode);
     } catch (Throwable e) {
-      return failure(e, since(analysisStartNanoTime));
+      return failures(referenceKeys, e, analysisStartNanoTime);
+    } finally {
+      CompressedHprof.closeBuffer(buffer);
     }
   }
 
   /**
-   * Pruning duplicates reduces memory pressure from hprof bloat added in Marshmallow.
+   * Writes to trimmedHeapDumpFile a copy of heapDumpFile that only keeps the objects needed to
+   * analyze the leaks of referenceKeys again: the shortest path from the GC roots to each leaking
+   * instance, the objects retained by the leaking instances, the {@link KeyedWeakReference}
+   * instances of referenceKeys and the strings these objects reference. All classes are kept, and
+   * gc roots are kept if the object they hold is kept. The trimmed heap dump is usually orders of
+   * magnitude smaller, and can be opened by {@link HeapAnalyzer} and other heap dump tools.
+   *
+   * The heap dump is indexed as with {@link Backend#HPROF_INDEX}, whatever the backend.
    */
-  void deduplicateGcRoots(Snapshot snapshot) {
-    // THashMap has a smaller memory footprint than HashMap.
-    final THashMap<String, RootObj> uniqueRootMap = new THashMap<>();
+  public void trimHeapDump(File heapDumpFile, Set<String> referenceKeys, File trimmedHeapDumpFile)
+      throws IOException {
+    if (!heapDumpFile.exists()) {
+      throw new IllegalArgumentException("File does not exist: " + heapDumpFile);
+    }
+    listener.onProgressUpdate(READING_HEAP_DUMP_FILE);
+    HprofBuffer buffer = CompressedHprof.openBuffer(heapDumpFile);
+    try {
+      trimHeapDump(heapDumpFile, indexHeapDump(heapDumpFile, buffer), referenceKeys,
+          trimmedHeapDumpFile);
+    } finally {
+      CompressedHprof.closeBuffer(buffer);
+    }
+  }
 
-    final Collection<RootObj> gcRoots = snapshot.getGCRoots();
-    for (RootObj root : gcRoots) {
-      String key = generateRootKey(root);
-      if (!uniqueRootMap.containsKey(key)) {
-        uniqueRootMap.put(key, root);
+  private void trimHeapDump(File heapDumpFile, HprofIndex index, Set<String> referenceKeys,
+      File trimmedHeapDumpFile) throws IOException {
+    BitSet keptObjects = new BitSet(index.objectCount());
+    Set<Integer> leakingInstances = new LinkedHashSet<>();
+    for (int weakRef : index.instancesOf(KeyedWeakReference.class.getName())) {
+      Integer keyIndex = index.fieldValue(weakRef, "key");
+      if (referenceKeys.contains(index.asString(keyIndex))) {
+        keptObjects.set(weakRef);
+        Integer referent = index.fieldValue(weakRef, "referent");
+        if (referent != null) {
+          leakingInstances.add(referent);
+        }
       }
     }
 
-    // Repopulate snapshot with unique GC roots.
-    gcRoots.clear();
-    uniqueRootMap.forEach(new TObjectProcedure<String>() {
-      @Override public boolean execute(String key) {
-        return gcRoots.add(uniqueRootMap.get(key));
+    listener.onProgressUpdate(FINDING_SHORTEST_PATH);
+    IndexedShortestPathFinder pathFinder = new IndexedShortestPathFinder(excludedRefs);
+    Map<Integer, IndexedShortestPathFinder.Result> paths =
+        pathFinder.findPaths(index, leakingInstances);
+    BitSet leakingIndexes = new BitSet(index.objectCount());
+    for (int leakingIndex : leakingInstances) {
+      leakingIndexes.set(leakingIndex);
+    }
+    RetainedObjectFinder retainedObjectFinder =
+        new RetainedObjectFinder(index, leakingIndexes, Integer.MAX_VALUE);
+    TIntArrayList references = new TIntArrayList();
+    for (IndexedShortestPathFinder.Result result : paths.values()) {
+      if (result.leakingNode == null) {
+        continue;
       }
-    });
+      for (IndexedShortestPathFinder.Node node = result.leakingNode; node != null;
+          node = node.parent) {
+        keptObjects.set(node.index);
+        // Keeps the values described by the leak trace elements, except for primitive arrays.
+        references.clear();
+        index.collectReferences(node.index, references);
+        if (index.tag(node.index) == INSTANCE_DUMP) {
+          index.collectReferences(index.indexOf(index.classOf(node.index).id), references);
+        }
+        for (int i = 0; i < references.size(); i++) {
+          int tag = index.tag(references.get(i));
+          if (tag == INSTANCE_DUMP || tag == OBJECT_ARRAY_DUMP) {
+            keptObjects.set(references.get(i));
+          }
+        }
+      }
+      keptObjects.or(retainedObjectFinder.findRetainedObjects(result.leakingNode.index));
+    }
+    keepReferencedStrings(index, keptObjects);
+
+    HprofBuffer buffer = CompressedHprof.openBuffer(heapDumpFile);
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(trimmedHeapDumpFile)));
+    try {
+      new HprofTrimmer(buffer, index, keptObjects).trim(out);
+    } finally {
+      out.close();
+      CompressedHprof.closeBuffer(buffer);
+    }
   }
 
-  private String generateRootKey(RootObj root) {
-    return String.format("%s@0x%08x", root.getRootType().getName(), root.getId());
+  /**
+   * Writes to strippedHeapDumpFile a copy of heapDumpFile where the content of primitive arrays is
+   * replaced with zeros, except for the characters of strings. Leak traces and retained sizes only
+   * depend on the length of primitive arrays, which is kept, so the copy can be analyzed instead of
+   * heapDumpFile and compresses much better. The heap dump is streamed through a fixed size buffer.
+   */
+  public void stripPrimitiveArrays(File heapDumpFile, File strippedHeapDumpFile)
+      throws IOException {
+    if (!heapDumpFile.exists()) {
+      throw new IllegalArgumentException("File does not exist: " + heapDumpFile);
+    }
+    HprofBuffer buffer = CompressedHprof.openBuffer(heapDumpFile);
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(strippedHeapDumpFile)));
+    try {
+      new HprofArrayStripper(buffer).strip(out);
+    } finally {
+      out.close();
+      CompressedHprof.closeBuffer(buffer);
+    }
+  }
+
+  /**
+   * Writes to compressedHeapDumpFile a compressed copy of heapDumpFile, usually 5 to 10 times
+   * smaller. Every method of {@link HeapAnalyzer} reads compressed heap dumps as well as regular
+   * ones, without decompressing them first: the heap dump is compressed in chunks that are inflated
+   * as they're read.
+   */
+  public void compressHeapDump(File heapDumpFile, File compressedHeapDumpFile) throws IOException {
+    if (!heapDumpFile.exists()) {
+      throw new IllegalArgumentException("File does not exist: " + heapDumpFile);
+    }
+    CompressedHprof.compress(heapDumpFile, compressedHeapDumpFile,
+        CompressedHprof.DEFAULT_CHUNK_SIZE);
   }
 
-  private Instance findLeakingReference(String key, Snapshot snapshot) {
-    ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
-    List<String> keysFound = new ArrayList<>();
-    for (Instance instance : refClass.getInstancesList()) {
-      List<ClassInstance.FieldValue> values = classInstanceValues(instance);
-      String keyCandidate = asString(fieldValue(values, "key"));
-      if (keyCandidate.equals(key)) {
-        return fieldValue(values, "referent");
+  /**
+   * Keeps the strings referenced by kept objects, along with their value array, so that field
+   * values and thread names still show in the trimmed heap dump.
+   */
+  private void keepReferencedStrings(HprofIndex index, BitSet keptObjects) {
+    TIntArrayList references = new TIntArrayList();
+    BitSet strings = new BitSet(index.objectCount());
+    for (int i = keptObjects.nextSetBit(0); i >= 0; i = keptObjects.nextSetBit(i + 1)) {
+      index.collectReferences(i, references);
+    }
+    for (int i = 0; i < references.size(); i++) {
+      int reference = references.get(i);
+      if (index.tag(reference) == INSTANCE_DUMP
+          && index.className(reference).equals(String.class.getName())) {
+        strings.set(reference);
+        Integer value = index.fieldValue(reference, "value");
+        if (value != null) {
+          strings.set(value);
+        }
       }
-      keysFound.add(keyCandidate);
     }
-    throw new IllegalStateException(
-        "Could not find weak reference with key " + key + " in " + keysFound);
+    keptObjects.or(strings);
   }
 
-  private AnalysisResult findLeakTrace(long analysisStartNanoTime, Snapshot snapshot,
-      Instance leakingRef, boolean computeRetainedSize) {
+  /**
+   * Pruning duplicates reduces memory pressure from hprof bloat added in Marshmallow. Keeps the
+   * first root for each root type and object id.
+   */
+  void deduplicateGcRoots(Snapshot snapshot) {
+    Collection<RootObj> gcRoots = snapshot.getGCRoots();
+    List<RootObj> uniqueRoots = new ArrayList<>(gcRoots.size());
+    LongSet rootKeys = new LongSet(gcRoots.size());
+    for (RootObj root : gcRoots) {
+      long id = root.getId();
+      // Ids are heap addresses, they never use the top bits in practice. Keeping a root that
+      // doesn't fit is safe, duplicates only waste memory.
+      if ((id >>> ROOT_ID_BITS) != 0 || rootKeys.add(rootKey(root.getRootType(), id))) {
+        uniqueRoots.add(root);
+      }
+    }
 
-    listener.onProgressUpdate(FINDING_SHORTEST_PATH);
-    ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs);
-    ShortestPathFinder.Result result = pathFinder.findPath(snapshot, leakingRef);
+    // Repopulate snapshot with unique GC roots, in their original order.
+    gcRoots.clear();
+    gcRoots.addAll(uniqueRoots);
+  }
 
-    // False alarm, no strong reference path to GC Roots.
-    if (result.leakingNode == null) {
-      return noLeak(since(analysisStartNanoTime));
-    }
+  /** Packs the root type and the object id in a single long. */
+  private static long rootKey(RootType rootType, long id) {
+    return ((long) rootType.ordinal() << ROOT_ID_BITS) | id;
+  }
 
-    listener.onProgressUpdate(BUILDING_LEAK_TRACE);
-    LeakTrace leakTrace = buildLeakTrace(result.leakingNode);
+  private <O> Map<String, AnalysisResult> findLeakTraces(long analysisStartNanoTime,
+      HeapGraph<O> graph, Set<String> referenceKeys, RetainedSizeMode retainedSizeMode) {
+    listener.onProgressUpdate(FINDING_LEAKING_REF);
+    Map<String, O> referentsByKey = graph.referentsByKey();
 
-    String className = leakingRef.getClassObj().getClassName();
+    listener.onProgressUpdate(FINDING_SHORTEST_PATH);
+    Set<O> leakingObjects = new LinkedHashSet<>();
+    for (Map.Entry<String, O> entry : referentsByKey.entrySet()) {
+      if (referenceKeys.contains(entry.getKey()) && entry.getValue() != null) {
+        leakingObjects.add(entry.getValue());
+      }
+    }
+    Map<O, HeapGraph.LeakPath<O>> paths = graph.findPaths(excludedRefs, leakingObjects);
 
-    long retainedSize;
-    if (computeRetainedSize) {
+    listener.onProgressUpdate(BUILDING_LEAK_TRACE);
+    Map<String, AnalysisResult> results = new LinkedHashMap<>();
+    Map<String, O> leaks = new LinkedHashMap<>();
+    Map<String, LeakTrace> leakTraces = new LinkedHashMap<>();
+    for (String referenceKey : referenceKeys) {
+      if (!referentsByKey.containsKey(referenceKey)) {
+        Exception exception = new IllegalStateException(
+            "Could not find weak reference with key " + referenceKey + " in "
+                + referentsByKey.keySet());
+        results.put(referenceKey, failure(exception, since(analysisStartNanoTime)));
+        continue;
+      }
+      O leakingObject = referentsByKey.get(referenceKey);
+      // False alarm, weak reference was cleared in between key check and heap dump.
+      if (leakingObject == null) {
+        results.put(referenceKey, noLeak(since(analysisStartNanoTime)));
+        continue;
+      }
+      HeapGraph.LeakPath<O> path = paths.get(leakingObject);
+      // False alarm, no strong reference path to GC Roots.
+      if (path == null) {
+        results.put(referenceKey, noLeak(since(analysisStartNanoTime)));
+        continue;
+      }
+      // Placeholder to keep the results in the same order as the keys.
+      results.put(referenceKey, null);
+      leaks.put(referenceKey, leakingObject);
+      leakTraces.put(referenceKey, buildLeakTrace(graph, leakingObject, path));
+    }
 
-      listener.onProgressUpdate(COMPUTING_DOMINATORS);
-      // Side effect: computes retained size.
-      snapshot.computeDominators();
+    boolean computeRetainedSize = !retainedSizeMode.isSkipped();
+    boolean useDominators = retainedSizeAlgorithm == RetainedSizeAlgorithm.DOMINATORS
+        && !retainedSizeMode.isApproximate();
+    TObjectLongHashMap<O> ignoredBitmapRetainedSizes = null;
+    TObjectLongHashMap<O> nativeBitmapSizes = null;
+    TObjectLongHashMap<O> retainedNativeSizes = null;
+    HeapGraph.RetainedObjectSearch<O> retainedObjectSearch = null;
+    List<O> bitmaps = null;
+    if (computeRetainedSize && !leaks.isEmpty()) {
+      if (useDominators) {
+        listener.onProgressUpdate(COMPUTING_DOMINATORS);
+        graph.computeDominators();
+        listener.onProgressUpdate(COMPUTING_BITMAP_SIZE);
+        if (SDK_INT <= N_MR1) {
+          ignoredBitmapRetainedSizes = computeIgnoredBitmapRetainedSizes(graph);
+        }
+        retainedNativeSizes = computeRetainedNativeSizes(graph, graph.nativeBitmapSizes());
+      } else {
+        listener.onProgressUpdate(COMPUTING_RETAINED_SIZE);
+        nativeBitmapSizes = graph.nativeBitmapSizes();
+        // Shares the traversal from the gc roots between the leaks.
+        retainedObjectSearch = graph.newRetainedObjectSearch(new LinkedHashSet<>(leaks.values()),
+            retainedSizeMode.maxObjects);
+        bitmaps = SDK_INT <= N_MR1 ? graph.bitmaps() : Collections.<O>emptyList();
+      }
+    }
 
-      Instance leakingInstance = result.leakingNode.instance;
+    for (Map.Entry<String, O> entry : leaks.entrySet()) {
+      String referenceKey = entry.getKey();
+      O leakingObject = entry.getValue();
+      String className = graph.className(leakingObject);
+
+      long retainedSize;
+      long retainedNativeSize;
+      boolean retainedSizeTruncated = false;
+      if (computeRetainedSize && useDominators) {
+        retainedSize = graph.retainedSize(leakingObject);
+        if (ignoredBitmapRetainedSizes != null) {
+          retainedSize += ignoredBitmapRetainedSizes.get(leakingObject);
+        }
+        retainedNativeSize = retainedNativeSizes.get(leakingObject);
+      } else if (computeRetainedSize) {
+        HeapGraph.RetainedObjects<O> retained =
+            retainedObjectSearch.findRetainedObjects(leakingObject, false);
+        retainedSize = computeReachableRetainedSize(graph, retainedObjectSearch, bitmaps,
+            leakingObject, retained);
+        retainedNativeSize = 0;
+        for (TObjectLongIterator<O> iterator = nativeBitmapSizes.iterator();
+            iterator.hasNext();) {
+          iterator.advance();
+          if (retained.contains(iterator.key())) {
+            retainedNativeSize += iterator.value();
+          }
+        }
+        retainedSizeTruncated = retained.truncated();
+      } else {
+        retainedSize = AnalysisResult.RETAINED_HEAP_SKIPPED;
+        retainedNativeSize = AnalysisResult.RETAINED_HEAP_SKIPPED;
+      }
 
-      retainedSize = leakingInstance.getTotalRetainedSize();
+      results.put(referenceKey,
+          leakDetected(paths.get(leakingObject).excludingKnownLeaks, className,
+              leakTraces.get(referenceKey), retainedSize, retainedNativeSize,
+              retainedSizeTruncated, since(analysisStartNanoTime)));
+    }
+    return results;
+  }
 
-      // TODO: check O sources and see what happened to android.graphics.Bitmap.mBuffer
-      if (SDK_INT <= N_MR1) {
-        listener.onProgressUpdate(COMPUTING_BITMAP_SIZE);
-        retainedSize += computeIgnoredBitmapRetainedSize(snapshot, leakingInstance);
+  /**
+   * @param retained the objects retained by leakingObject.
+   * @param bitmaps the bitmaps whose pixels may be held by native gc roots, empty from Oreo.
+   */
+  private <O> long computeReachableRetainedSize(HeapGraph<O> graph,
+      HeapGraph.RetainedObjectSearch<O> retainedObjectSearch, List<O> bitmaps, O leakingObject,
+      HeapGraph.RetainedObjects<O> retained) {
+    long retainedSize = retained.shallowSize();
+    if (bitmaps.isEmpty()) {
+      return retainedSize;
+    }
+    listener.onProgressUpdate(COMPUTING_BITMAP_SIZE);
+    HeapGraph.RetainedObjects<O> retainedIgnoringNativeRoots =
+        retainedObjectSearch.findRetainedObjects(leakingObject, true);
+    for (O bitmap : bitmaps) {
+      if (retained.contains(bitmap) || !retainedIgnoringNativeRoots.contains(bitmap)) {
+        continue;
+      }
+      O buffer = graph.bitmapBuffer(bitmap);
+      // Native bitmaps have no mBuffer, they are counted in retainedNativeSize.
+      if (buffer == null) {
+        continue;
+      }
+      // A bitmap retains little more than its pixels, which a native gc root may hold too.
+      retainedSize += graph.shallowSize(bitmap);
+      if (!retained.contains(buffer)) {
+        retainedSize += graph.shallowSize(buffer);
       }
-    } else {
-      retainedSize = AnalysisResult.RETAINED_HEAP_SKIPPED;
     }
+    return retainedSize;
+  }
 
-    return leakDetected(result.excludingKnownLeaks, className, leakTrace, retainedSize,
-        since(analysisStartNanoTime));
+  /**
+   * Returns the native memory retained by each object, given the native size of bitmaps: each
+   * bitmap retains its own native size, and so does every object that dominates it.
+   */
+  private static <O> TObjectLongHashMap<O> computeRetainedNativeSizes(HeapGraph<O> graph,
+      TObjectLongHashMap<O> nativeBitmapSizes) {
+    TObjectLongHashMap<O> retainedNativeSizes = new TObjectLongHashMap<>();
+    for (TObjectLongIterator<O> iterator = nativeBitmapSizes.iterator(); iterator.hasNext();) {
+      iterator.advance();
+      O object = iterator.key();
+      while (object != null) {
+        retainedNativeSizes.put(object, retainedNativeSizes.get(object) + iterator.value());
+        object = graph.immediateDominator(object);
+      }
+    }
+    return retainedNativeSizes;
   }
 
   /**
    * Bitmaps and bitmap byte arrays are sometimes held by native gc roots, so they aren't included
    * in the retained size because their root dominator is a native gc root.
-   * To fix this, we check if the leaking instance is a dominator for each bitmap instance and then
-   * add the bitmap size.
+   * To fix this, we go up the dominators of each bitmap instance once, skipping native roots, and
+   * add the bitmap size to every dominator found above a native root. The bitmap size ignored by
+   * the retained size of a leaking instance is then a lookup in the returned table.
    *
    * From experience, we've found that bitmap created in code (Bitmap.createBitmap()) are correctly
    * accounted for, however bitmaps set in layouts are not.
    */
-  private long computeIgnoredBitmapRetainedSize(Snapshot snapshot, Instance leakingInstance) {
-    long bitmapRetainedSize = 0;
-    ClassObj bitmapClass = snapshot.findClass("android.graphics.Bitmap");
-
-    for (Instance bitmapInstance : bitmapClass.getInstancesList()) {
-      if (isIgnoredDominator(leakingInstance, bitmapInstance)) {
-        ArrayInstance mBufferInstance = fieldValue(classInstanceValues(bitmapInstance), "mBuffer");
-        // Native bitmaps have mBuffer set to null. We sadly can't account for them.
-        if (mBufferInstance == null) {
-          continue;
+  private static <O> TObjectLongHashMap<O> computeIgnoredBitmapRetainedSizes(
+      HeapGraph<O> graph) {
+    TObjectLongHashMap<O> bitmapRetainedSizes = new TObjectLongHashMap<>();
+    for (O bitmap : graph.bitmaps()) {
+      O buffer = graph.bitmapBuffer(bitmap);
+      // Native bitmaps have no mBuffer, they are counted in retainedNativeSize.
+      if (buffer == null) {
+        continue;
+      }
+      long bufferSize = graph.retainedSize(buffer);
+      long bitmapSize = graph.retainedSize(bitmap);
+      // Sometimes the size of the buffer isn't accounted for in the bitmap retained size. Since
+      // the buffer is large, it's easy to detect by checking for bitmap size < buffer size.
+      if (bitmapSize < bufferSize) {
+        bitmapSize += bufferSize;
+      }
+
+      boolean foundNativeRoot = false;
+      O object = bitmap;
+      while (true) {
+        O immediateDominator = graph.immediateDominator(object);
+        if (immediateDominator == null) {
+          // Ignore native roots
+          object = graph.shortestPathParent(object);
+          foundNativeRoot = true;
+        } else {
+          object = immediateDominator;
         }
-        long bufferSize = mBufferInstance.getTotalRetainedSize();
-        long bitmapSize = bitmapInstance.getTotalRetainedSize();
-        // Sometimes the size of the buffer isn't accounted for in the bitmap retained size. Since
-        // the buffer is large, it's easy to detect by checking for bitmap size < buffer size.
-        if (bitmapSize < bufferSize) {
-          bitmapSize += bufferSize;
+        if (object == null) {
+          break;
+        }
+        if (foundNativeRoot) {
+          bitmapRetainedSizes.put(object, bitmapRetainedSizes.get(object) + bitmapSize);
         }
-        bitmapRetainedSize += bitmapSize;
       }
     }
-    return bitmapRetainedSize;
+    return bitmapRetainedSizes;
   }
 
-  private boolean isIgnoredDominator(Instance dominator, Instance instance) {
-    boolean foundNativeRoot = false;
-    while (true) {
-      Instance immediateDominator = instance.getImmediateDominator();
-      if (immediateDominator instanceof RootObj
-          && ((RootObj) immediateDominator).getRootType() == RootType.UNKNOWN) {
-        // Ignore native roots
-        instance = instance.getNextInstanceToGcRoot();
-        foundNativeRoot = true;
-      } else {
-        instance = immediateDominator;
-      }
-      if (instance == null) {
-        return false;
-      }
-      if (instance == dominator) {
-        return foundNativeRoot;
+  /** @param buffer reads heapDumpFile, the returned index keeps reading from it. */
+  private HprofIndex indexHeapDump(File heapDumpFile, HprofBuffer buffer) throws IOException {
+    if (persistIndex) {
+      HprofIndex index = HprofIndexFile.read(heapDumpFile, buffer);
+      if (index != null) {
+        return index;
       }
     }
+    listener.onProgressUpdate(PARSING_HEAP_DUMP);
+    HprofIndex index =
+        new HprofIndexer(buffer, INDEXED_CLASS_NAMES, heapDumpFile, parallelism).index();
+    listener.onProgressUpdate(DEDUPLICATING_GC_ROOTS);
+    index.deduplicateGcRoots();
+    index.setReferentsByKey(findReferentsByKey(index));
+    if (persistIndex) {
+      HprofIndexFile.write(heapDumpFile, index);
+    }
+    return index;
   }
 
-  private LeakTrace buildLeakTrace(LeakNode leakingNode) {
-    List<LeakTraceElement> elements = new ArrayList<>();
-    // We iterate from the leak to the GC root
-    LeakNode node = new LeakNode(null, null, leakingNode, null);
-    while (node != null) {
-      LeakTraceElement element = buildLeakElement(node);
-      if (element != null) {
-        elements.add(0, element);
-      }
-      node = node.parent;
+  private Map<String, Integer> findReferentsByKey(HprofIndex index) {
+    Map<String, Integer> referentsByKey = new LinkedHashMap<>();
+    for (int weakRef : index.instancesOf(KeyedWeakReference.class.getName())) {
+      Integer keyIndex = index.fieldValue(weakRef, "key");
+      Integer referent = index.fieldValue(weakRef, "referent");
+      referentsByKey.put(index.asString(keyIndex), referent);
     }
-    return new LeakTrace(elements);
+    return referentsByKey;
   }
 
-  private LeakTraceElement buildLeakElement(LeakNode node) {
-    if (node.parent == null) {
-      // Ignore any root node.
-      return null;
+  private <O> LeakTrace buildLeakTrace(HeapGraph<O> graph, O leakingObject,
+      HeapGraph.LeakPath<O> path) {
+    List<LeakTraceElement> elements = new ArrayList<>();
+    for (HeapGraph.PathReference<O> reference : path.references) {
+      elements.add(
+          buildLeakElement(graph, reference.holder, reference.reference, reference.exclusion));
     }
-    Instance holder = node.parent.instance;
+    elements.add(buildLeakElement(graph, leakingObject, null, null));
+    return new LeakTrace(elements);
+  }
 
-    if (holder instanceof RootObj) {
-      return null;
-    }
-    LeakTraceElement.Holder holderType;
-    String className;
+  /** @param reference the reference from holder to the next object of the path, if any. */
+  private <O> LeakTraceElement buildLeakElement(HeapGraph<O> graph, O holder,
+      LeakReference reference, Exclusion exclusion) {
+    List<LeakReference> leakReferences = graph.describeFields(holder);
+    List<String> classHierarchy = graph.classHierarchy(holder);
+    String className = classHierarchy.get(0);
+    LeakTraceElement.Holder holderType = graph.holderType(holder);
     String extra = null;
-    List<LeakReference> leakReferences = describeFields(holder);
-
-    className = getClassName(holder);
-
-    List<String> classHierarchy = new ArrayList<>();
-    classHierarchy.add(className);
-    String rootClassName = Object.class.getName();
-    if (holder instanceof ClassInstance) {
-      ClassObj classObj = holder.getClassObj();
-      while (!(classObj = classObj.getSuperClassObj()).getClassName().equals(rootClassName)) {
-        classHierarchy.add(classObj.getClassName());
-      }
+    if (holderType == THREAD) {
+      String threadName = graph.threadName(holder);
+      extra = "(named '" + threadName + "')";
+    } else if (holderType == OBJECT && className.matches(ANONYMOUS_CLASS_NAME_PATTERN)) {
+      String parentClassName =
+          classHierarchy.size() > 1 ? classHierarchy.get(1) : Object.class.getName();
+      extra = describeAnonymousClass(className, parentClassName);
     }
-
-    if (holder instanceof ClassObj) {
-      holderType = CLASS;
-    } else if (holder instanceof ArrayInstance) {
-      holderType = ARRAY;
-    } else {
-      ClassObj classObj = holder.getClassObj();
-      if (extendsThread(classObj)) {
-        holderType = THREAD;
-        String threadName = threadName(holder);
-        extra = "(named '" + threadName + "')";
-      } else if (className.matches(ANONYMOUS_CLASS_NAME_PATTERN)) {
-        String parentClassName = classObj.getSuperClassObj().getClassName();
-        if (rootClassName.equals(parentClassName)) {
-          holderType = OBJECT;
-          try {
-            // This is an anonymous class implementing an interface. The API does not give access
-            // to the interfaces implemented by the class. We check if it's in the class path and
-            // use that instead.
-            Class<?> actualClass = Class.forName(classObj.getClassName());
-            Class<?>[] interfaces = actualClass.getInterfaces();
-            if (interfaces.length > 0) {
-              Class<?> implementedInterface = interfaces[0];
-              extra = "(anonymous implementation of " + implementedInterface.getName() + ")";
-            } else {
-              extra = "(anonymous subclass of java.lang.Object)";
-            }
-          } catch (ClassNotFoundException ignored) {
-          }
-        } else {
-          holderType = OBJECT;
-          // Makes it easier to figure out which anonymous class we're looking at.
-          extra = "(anonymous subclass of " + parentClassName + ")";
-        }
-      } else {
-        holderType = OBJECT;
-      }
-    }
-    return new LeakTraceElement(node.leakReference, holderType, classHierarchy, extra,
-        node.exclusion, leakReferences);
+    return new LeakTraceElement(reference, holderType, classHierarchy, extra, exclusion,
+        leakReferences);
   }
 
-  private List<LeakReference> describeFields(Instance instance) {
-    List<LeakReference> leakReferences = new ArrayList<>();
-
-    if (instance instanceof ClassObj) {
-      ClassObj classObj = (ClassObj) instance;
-      for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
-        String name = entry.getKey().getName();
-        String value = entry.getValue() == null ? "null" : entry.getValue().toString();
-        leakReferences.add(new LeakReference(STATIC_FIELD, name, value));
-      }
-    } else if (instance instanceof ArrayInstance) {
-      ArrayInstance arrayInstance = (ArrayInstance) instance;
-      if (arrayInstance.getArrayType() == Type.OBJECT) {
-        Object[] values = arrayInstance.getValues();
-        for (int i = 0; i < values.length; i++) {
-          String name = Integer.toString(i);
-          String value = values[i] == null ? "null" : values[i].toString();
-          leakReferences.add(new LeakReference(ARRAY_ENTRY, name, value));
+  /** Returns null if nothing is known about the anonymous class. */
+  private String describeAnonymousClass(String className, String parentClassName) {
+    String rootClassName = Object.class.getName();
+    if (rootClassName.equals(parentClassName)) {
+      try {
+        // This is an anonymous class implementing an interface. The API does not give access
+        // to the interfaces implemented by the class. We check if it's in the class path and
+        // use that instead.
+        Class<?> actualClass = Class.forName(className);
+        Class<?>[] interfaces = actualClass.getInterfaces();
+        if (interfaces.length > 0) {
+          Class<?> implementedInterface = interfaces[0];
+          return "(anonymous implementation of " + implementedInterface.getName() + ")";
+        } else {
+          return "(anonymous subclass of java.lang.Object)";
         }
+      } catch (ClassNotFoundException ignored) {
+        return null;
       }
     } else {
-      ClassObj classObj = instance.getClassObj();
-      for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
-        String name = entry.getKey().getName();
-        String value = entry.getValue() == null ? "null" : entry.getValue().toString();
-        leakReferences.add(new LeakReference(STATIC_FIELD, name, value));
-      }
-      ClassInstance classInstance = (ClassInstance) instance;
-      for (ClassInstance.FieldValue field : classInstance.getValues()) {
-        String name = field.getField().getName();
-        String value = field.getValue() == null ? "null" : field.getValue().toString();
-        leakReferences.add(new LeakReference(INSTANCE_FIELD, name, value));
-      }
+      // Makes it easier to figure out which anonymous class we're looking at.
+      return "(anonymous subclass of " + parentClassName + ")";
     }
-    return leakReferences;
   }
 
-  private String getClassName(Instance instance) {
-    String className;
-    if (instance instanceof ClassObj) {
-      ClassObj classObj = (ClassObj) instance;
-      className = classObj.getClassName();
-    } else if (instance instanceof ArrayInstance) {
-      ArrayInstance arrayInstance = (ArrayInstance) instance;
-      className = arrayInstance.getClassObj().getClassName();
-    } else {
-      ClassObj classObj = instance.getClassObj();
-      className = classObj.getClassName();
+  private Map<String, AnalysisResult> failures(Set<String> referenceKeys, Throwable failure,
+      long analysisStartNanoTime) {
+    Map<String, AnalysisResult> results = new LinkedHashMap<>();
+    for (String referenceKey : referenceKeys) {
+      results.put(referenceKey, failure(failure, since(analysisStartNanoTime)));
     }
-    return className;
+    return results;
   }
 
   private long since(long analysisStartNanoTime) {
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import gnu.trove.TObjectLongHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A heap dump read by one of the {@link HeapAnalyzer.Backend}s. {@link HeapAnalyzer} builds leak
+ * traces and computes retained sizes on top of this interface, so that both backends give the
+ * same results.
+ *
+ * @param <O> how the backend refers to an object of the heap dump.
+ */
+interface HeapGraph<O> {
+
+  /**
+   * Returns the referent of the {@link KeyedWeakReference} for each key found in the heap dump.
+   * The referent is null if the weak reference was cleared in between key check and heap dump.
+   */
+  Map<String, O> referentsByKey();
+
+  /**
+   * Finds the shortest strong reference path from the gc roots to each of leakingObjects, with a
+   * single traversal. Objects that aren't reachable have no path in the returned map.
+   */
+  Map<O, LeakPath<O>> findPaths(ExcludedRefs excludedRefs, Set<O> leakingObjects);
+
+  String className(O object);
+
+  /**
+   * Returns the class name of object, followed by the names of its superclasses up to
+   * {@link Object} excluded if object is a class instance.
+   */
+  List<String> classHierarchy(O object);
+
+  /** Returns {@link LeakTraceElement.Holder#THREAD} for threads, whatever their class. */
+  LeakTraceElement.Holder holderType(O object);
+
+  String threadName(O thread);
+
+  /** Describes the static fields, instance fields or array entries of object. */
+  List<LeakReference> describeFields(O object);
+
+  long shallowSize(O object);
+
+  /** Computes the dominator tree, needed by the methods below that say so. */
+  void computeDominators();
+
+  /** Needs {@link #computeDominators()}. */
+  long retainedSize(O object);
+
+  /**
+   * Returns null if object is immediately dominated by the gc roots, or isn't reachable. Needs
+   * {@link #computeDominators()}.
+   */
+  O immediateDominator(O object);
+
+  /**
+   * Returns the next object on a shortest path to the gc roots, ignoring excluded references, or
+   * null if a gc root holds object. Needs {@link #computeDominators()}.
+   */
+  O shortestPathParent(O object);
+
+  /** Returns the {@link BitmapNativeSizes#BITMAP_CLASS_NAME} instances. */
+  List<O> bitmaps();
+
+  /** Returns the pixel array of a bitmap, or null if the pixels are native. */
+  O bitmapBuffer(O bitmap);
+
+  /** Returns the native size of each bitmap whose pixels are native, see BitmapNativeSizes. */
+  TObjectLongHashMap<O> nativeBitmapSizes();
+
+  /**
+   * Returns a new search whose results stop after maxObjects objects, see RetainedObjectFinder.
+   * The traversal from the gc roots is shared by the searches from leakingObjects.
+   */
+  RetainedObjectSearch<O> newRetainedObjectSearch(Set<O> leakingObjects, int maxObjects);
+
+  /** The shortest strong reference path from the gc roots to a leaking object. */
+  final class LeakPath<O> {
+    /** The references of the path, starting from the gc roots. */
+    final List<PathReference<O>> references;
+    final boolean excludingKnownLeaks;
+
+    LeakPath(List<PathReference<O>> references, boolean excludingKnownLeaks) {
+      this.references = references;
+      this.excludingKnownLeaks = excludingKnownLeaks;
+    }
+  }
+
+  final class PathReference<O> {
+    final O holder;
+    final LeakReference reference;
+    /** Set if the reference is excluded, for paths that had to go through excluded references. */
+    final Exclusion exclusion;
+
+    PathReference(O holder, LeakReference reference, Exclusion exclusion) {
+      this.holder = holder;
+      this.reference = reference;
+      this.exclusion = exclusion;
+    }
+  }
+
+  /** Finds the objects only reachable through an object. */
+  interface RetainedObjectSearch<O> {
+    /**
+     * Returns the objects retained by object, including itself.
+     *
+     * @param ignoreNativeRoots if true, objects held by native gc roots are also retained if they
+     * are otherwise only reachable through object.
+     */
+    RetainedObjects<O> findRetainedObjects(O object, boolean ignoreNativeRoots);
+  }
+
+  interface RetainedObjects<O> {
+    boolean contains(O object);
+
+    /** Returns the sum of the shallow sizes of the objects. */
+    long shallowSize();
+
+    /** Whether the search stopped at maxObjects. */
+    boolean truncated();
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import gnu.trove.TLongLongHashMap;
+import gnu.trove.TLongObjectHashMap;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static com.squareup.leakcanary.HprofIndex.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndex.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndex.PRIMITIVE_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.HEAP_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.HEAP_DUMP_SEGMENT;
+import static com.squareup.leakcanary.HprofIndexer.LOAD_CLASS;
+import static com.squareup.leakcanary.HprofIndexer.STRING_IN_UTF8;
+
+/**
+ * Copies a heap dump, replacing the content of primitive arrays with zeros. Leak traces and
+ * retained sizes don't depend on the content of primitive arrays, only on their length which is
+ * kept, so the copy is analyzed like the original. The content of the arrays that hold the
+ * characters of strings is kept, as it's needed to find the keyed weak references and to describe
+ * fields. Zeroed arrays make up most of an Android heap dump and compress to almost nothing.
+ *
+ * The heap dump is read three times: to find the layout of java.lang.String, to find the arrays
+ * that strings hold, and to write the copy. Only the ids of these arrays are kept in memory, the
+ * copy goes through a fixed size buffer.
+ *
+ * Not thread safe.
+ */
+final class HprofArrayStripper {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte[] STRING_CLASS_NAME = String.class.getName().getBytes(UTF_8);
+  private static final byte[] VALUE_FIELD_NAME = "value".getBytes(UTF_8);
+
+  /** Instance field layout of a class, as found in its class dump record. */
+  private static final class ClassLayout {
+    final long[] fieldNameIds;
+    final Type[] fieldTypes;
+
+    ClassLayout(long[] fieldNameIds, Type[] fieldTypes) {
+      this.fieldNameIds = fieldNameIds;
+      this.fieldTypes = fieldTypes;
+    }
+  }
+
+  private final HprofReader reader;
+  private final byte[] zeros = new byte[8192];
+  private final LongSet stringValueIds = new LongSet();
+  private long stringClassId;
+  /** Offset of String.value in the field values of a String instance dump. */
+  private int valueFieldOffset;
+
+  HprofArrayStripper(HprofBuffer buffer) {
+    reader = new HprofReader(buffer);
+  }
+
+  void strip(DataOutputStream out) throws IOException {
+    findStringLayout();
+    findStringValues();
+    write(out);
+  }
+
+  private void findStringLayout() {
+    long stringClassNameId = -1;
+    long valueFieldNameId = -1;
+    TLongLongHashMap classNameIds = new TLongLongHashMap();
+    TLongObjectHashMap<ClassLayout> layouts = new TLongObjectHashMap<>();
+    reader.readHeader();
+    while (reader.hasRemaining()) {
+      int tag = reader.readUnsignedByte();
+      // Time offset
+      reader.skip(4);
+      long length = reader.readUnsignedInt();
+      long end = reader.position() + length;
+      switch (tag) {
+        case STRING_IN_UTF8:
+          long stringId = reader.readId();
+          int stringLength = (int) (length - reader.idSize());
+          if (matches(STRING_CLASS_NAME, stringLength)) {
+            stringClassNameId = stringId;
+          } else if (matches(VALUE_FIELD_NAME, stringLength)) {
+            valueFieldNameId = stringId;
+          }
+          break;
+        case LOAD_CLASS:
+          // Class serial number
+          reader.skip(4);
+          long classId = reader.readId();
+          // Stack trace serial number
+          reader.skip(4);
+          classNameIds.put(classId, reader.readId());
+          break;
+        case HEAP_DUMP:
+        case HEAP_DUMP_SEGMENT:
+          while (reader.position() < end) {
+            int subTag = reader.readUnsignedByte();
+            if (subTag == CLASS_DUMP) {
+              long id = reader.readId();
+              layouts.put(id, readClassLayout());
+            } else {
+              reader.skipSubRecord(subTag);
+            }
+          }
+          break;
+        default:
+          break;
+      }
+      reader.setPosition(end);
+    }
+
+    stringClassId = -1;
+    for (long classId : classNameIds.keys()) {
+      if (classNameIds.get(classId) == stringClassNameId) {
+        stringClassId = classId;
+      }
+    }
+    ClassLayout stringLayout = layouts.get(stringClassId);
+    if (stringLayout == null) {
+      throw new IllegalStateException("Could not find the class dump of java.lang.String");
+    }
+    // The fields of a class come before the fields of its super class, so only the fields of
+    // String itself are before String.value.
+    valueFieldOffset = 0;
+    for (int i = 0; i < stringLayout.fieldNameIds.length; i++) {
+      if (stringLayout.fieldNameIds[i] == valueFieldNameId
+          && stringLayout.fieldTypes[i] == Type.OBJECT) {
+        return;
+      }
+      valueFieldOffset += reader.sizeOf(stringLayout.fieldTypes[i]);
+    }
+    throw new IllegalStateException("Could not find java.lang.String.value");
+  }
+
+  /** Returns true if the next length bytes are the same as expected. */
+  private boolean matches(byte[] expected, int length) {
+    if (length != expected.length) {
+      return false;
+    }
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) reader.readUnsignedByte();
+    }
+    return Arrays.equals(bytes, expected);
+  }
+
+  private ClassLayout readClassLayout() {
+    // Stack trace serial number, then super class, class loader, signers, protection domain and
+    // two reserved ids, then instance size.
+    reader.skip(4 + 6 * reader.idSize() + 4);
+    int constantPoolSize = reader.readUnsignedShort();
+    for (int i = 0; i < constantPoolSize; i++) {
+      reader.skip(2);
+      reader.skip(reader.sizeOf(Type.getType(reader.readUnsignedByte())));
+    }
+    int staticFieldCount = reader.readUnsignedShort();
+    for (int i = 0; i < staticFieldCount; i++) {
+      reader.skip(reader.idSize());
+      reader.skip(reader.sizeOf(Type.getType(reader.readUnsignedByte())));
+    }
+    int fieldCount = reader.readUnsignedShort();
+    long[] fieldNameIds = new long[fieldCount];
+    Type[] fieldTypes = new Type[fieldCount];
+    for (int i = 0; i < fieldCount; i++) {
+      fieldNameIds[i] = reader.readId();
+      fieldTypes[i] = Type.getType(reader.readUnsignedByte());
+    }
+    return new ClassLayout(fieldNameIds, fieldTypes);
+  }
+
+  private void findStringValues() {
+    reader.readHeader();
+    while (reader.hasRemaining()) {
+      int tag = reader.readUnsignedByte();
+      // Time offset
+      reader.skip(4);
+      long length = reader.readUnsignedInt();
+      long end = reader.position() + length;
+      if (tag == HEAP_DUMP || tag == HEAP_DUMP_SEGMENT) {
+        while (reader.position() < end) {
+          long position = reader.position();
+          int subTag = reader.readUnsignedByte();
+          if (subTag == INSTANCE_DUMP) {
+            // Object id and stack trace serial number
+            reader.skip(reader.idSize() + 4);
+            if (reader.readId() == stringClassId) {
+              // Length of the field values
+              reader.skip(4 + valueFieldOffset);
+              stringValueIds.add(reader.readId());
+            }
+            reader.setPosition(position + 1);
+          }
+          reader.skipSubRecord(subTag);
+        }
+      }
+      reader.setPosition(end);
+    }
+  }
+
+  private void write(DataOutputStream out) throws IOException {
+    reader.readHeader();
+    long copiedUpTo = 0;
+    while (reader.hasRemaining()) {
+      int tag = reader.readUnsignedByte();
+      // Time offset
+      reader.skip(4);
+      long length = reader.readUnsignedInt();
+      long end = reader.position() + length;
+      if (tag == HEAP_DUMP || tag == HEAP_DUMP_SEGMENT) {
+        while (reader.position() < end) {
+          int subTag = reader.readUnsignedByte();
+          if (subTag != PRIMITIVE_ARRAY_DUMP) {
+            reader.skipSubRecord(subTag);
+            continue;
+          }
+          long arrayId = reader.readId();
+          // Stack trace serial number
+          reader.skip(4);
+          long arrayLength = reader.readUnsignedInt();
+          Type type = Type.getType(reader.readUnsignedByte());
+          long dataStart = reader.position();
+          long dataEnd = dataStart + arrayLength * type.getSize();
+          if (dataEnd > dataStart && !stringValueIds.contains(arrayId)) {
+            reader.copy(copiedUpTo, dataStart, out);
+            writeZeros(dataEnd - dataStart, out);
+            copiedUpTo = dataEnd;
+          }
+          reader.setPosition(dataEnd);
+        }
+      }
+      reader.setPosition(end);
+    }
+    reader.copy(copiedUpTo, reader.position(), out);
+  }
+
+  private void writeZeros(long byteCount, DataOutputStream out) throws IOException {
+    while (byteCount > 0) {
+      int count = (int) Math.min(byteCount, zeros.length);
+      out.write(zeros, 0, count);
+      byteCount -= count;
+    }
+  }
+}
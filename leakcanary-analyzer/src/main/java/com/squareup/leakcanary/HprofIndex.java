@@ -0,0 +1,799 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongObjectHashMap;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
+import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
+import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+
+/**
+ * Compact index of a heap dump, built by {@link HprofIndexer}. Unlike a perflib Snapshot, it does
+ * not hold an object per instance in the heap: objects are identified by a dense int index (their
+ * rank in the sorted object ids) and their content is decoded from the heap dump buffer only when
+ * it's needed.
+ *
+ * Not thread safe.
+ */
+final class HprofIndex {
+
+  static final int CLASS_DUMP = 0x20;
+  static final int INSTANCE_DUMP = 0x21;
+  static final int OBJECT_ARRAY_DUMP = 0x22;
+  static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+  static final int PRIMITIVE_ARRAY_NODATA = 0xc3;
+
+  private static final RootType[] ROOT_TYPES = RootType.values();
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Layout of a class, as found in its class dump record. */
+  static final class ClassInfo {
+    final long id;
+    final String name;
+    final long superClassId;
+    /** Null for java.lang.Object and for classes with a super class missing from the dump. */
+    ClassInfo superClass;
+    final int instanceSize;
+    final Field[] fields;
+    final Field[] staticFields;
+    /** Raw values, see {@link HprofIndex#boxValue(Type, long)}. */
+    final long[] staticFieldValues;
+
+    ClassInfo(long id, String name, long superClassId, int instanceSize, Field[] fields,
+        Field[] staticFields, long[] staticFieldValues) {
+      this.id = id;
+      this.name = name;
+      this.superClassId = superClassId;
+      this.instanceSize = instanceSize;
+      this.fields = fields;
+      this.staticFields = staticFields;
+      this.staticFieldValues = staticFieldValues;
+    }
+  }
+
+  private final HprofBuffer buffer;
+  private final int idSize;
+  /** Sorted. The index of an object is the position of its id in this array. */
+  private final long[] objectIds;
+  /** File position of the heap dump sub-record of each object, by object index. */
+  private final long[] objectPositions;
+  private final TLongObjectHashMap<ClassInfo> classesById;
+  private final Map<String, ClassInfo> classesByName;
+  private final Map<String, int[]> instancesByClassName;
+  private int[] gcRootIndexes;
+  private byte[] gcRootTypes;
+  private int[] gcRootThreadIndexes;
+  private int gcRootCount;
+  private Map<String, Integer> referentsByKey;
+
+  HprofIndex(HprofBuffer buffer, int idSize, long[] objectIds, long[] objectPositions,
+      TLongObjectHashMap<ClassInfo> classesById, Map<String, ClassInfo> classesByName,
+      Map<String, int[]> instancesByClassName) {
+    this.buffer = buffer;
+    this.idSize = idSize;
+    this.objectIds = objectIds;
+    this.objectPositions = objectPositions;
+    this.classesById = classesById;
+    this.classesByName = classesByName;
+    this.instancesByClassName = instancesByClassName;
+  }
+
+  /**
+   * @param gcRootTypes {@link RootType} ordinals.
+   * @param gcRootThreadIndexes index of the thread of each root, or -1 if the root isn't tied to a
+   * thread or the thread is missing from the heap dump.
+   */
+  void setGcRoots(int[] gcRootIndexes, byte[] gcRootTypes, int[] gcRootThreadIndexes) {
+    this.gcRootIndexes = gcRootIndexes;
+    this.gcRootTypes = gcRootTypes;
+    this.gcRootThreadIndexes = gcRootThreadIndexes;
+    gcRootCount = gcRootIndexes.length;
+  }
+
+  /**
+   * Returns the referent index of each {@link KeyedWeakReference} by key, with null for cleared
+   * references, or null if {@link #setReferentsByKey(Map)} hasn't been called.
+   */
+  Map<String, Integer> referentsByKey() {
+    return referentsByKey;
+  }
+
+  void setReferentsByKey(Map<String, Integer> referentsByKey) {
+    this.referentsByKey = referentsByKey;
+  }
+
+  int objectCount() {
+    return objectIds.length;
+  }
+
+  /** Returns the index of the object with the provided id, or -1 if it isn't in the heap dump. */
+  int indexOf(long id) {
+    if (id == 0) {
+      return -1;
+    }
+    int index = Arrays.binarySearch(objectIds, id);
+    return index >= 0 ? index : -1;
+  }
+
+  long objectId(int index) {
+    return objectIds[index];
+  }
+
+  /** Returns the tag of the heap dump sub-record of an object, e.g. {@link #INSTANCE_DUMP}. */
+  int tag(int index) {
+    buffer.setPosition(objectPositions[index]);
+    return buffer.readByte() & 0xff;
+  }
+
+  int gcRootCount() {
+    return gcRootCount;
+  }
+
+  int gcRootIndex(int root) {
+    return gcRootIndexes[root];
+  }
+
+  RootType gcRootType(int root) {
+    return ROOT_TYPES[gcRootTypes[root]];
+  }
+
+  /** Returns the index of the thread that holds a local root, or -1 if unknown. */
+  int gcRootThreadIndex(int root) {
+    return gcRootThreadIndexes[root];
+  }
+
+  /**
+   * Removes roots with the same type and object as a previous root. Pruning duplicates reduces
+   * memory pressure from hprof bloat added in Marshmallow.
+   */
+  void deduplicateGcRoots() {
+    BitSet[] seenByType = new BitSet[ROOT_TYPES.length];
+    int uniqueCount = 0;
+    for (int root = 0; root < gcRootCount; root++) {
+      int type = gcRootTypes[root];
+      BitSet seen = seenByType[type];
+      if (seen == null) {
+        seen = new BitSet();
+        seenByType[type] = seen;
+      }
+      int index = gcRootIndexes[root];
+      if (seen.get(index)) {
+        continue;
+      }
+      seen.set(index);
+      gcRootIndexes[uniqueCount] = index;
+      gcRootTypes[uniqueCount] = gcRootTypes[root];
+      gcRootThreadIndexes[uniqueCount] = gcRootThreadIndexes[root];
+      uniqueCount++;
+    }
+    gcRootIndexes = Arrays.copyOf(gcRootIndexes, uniqueCount);
+    gcRootTypes = Arrays.copyOf(gcRootTypes, uniqueCount);
+    gcRootThreadIndexes = Arrays.copyOf(gcRootThreadIndexes, uniqueCount);
+    gcRootCount = uniqueCount;
+  }
+
+  /** Returns null if the class isn't in the heap dump. */
+  ClassInfo findClass(String className) {
+    return classesByName.get(className);
+  }
+
+  /**
+   * Returns the instances of a class that was passed to {@link HprofIndexer} when building this
+   * index.
+   */
+  int[] instancesOf(String className) {
+    int[] instances = instancesByClassName.get(className);
+    if (instances == null) {
+      throw new IllegalArgumentException(className + " was not indexed");
+    }
+    return instances;
+  }
+
+  /** Returns the class described by a class dump, or null if the object isn't a class. */
+  ClassInfo asClass(int index) {
+    return classesById.get(objectIds[index]);
+  }
+
+  /** Returns the class of an instance dump. */
+  ClassInfo classOf(int index) {
+    buffer.setPosition(objectPositions[index] + 1 + idSize + 4);
+    return classesById.get(readId());
+  }
+
+  /**
+   * Adds to references the index of each object directly referenced by an object: the static
+   * fields of a class, the fields of an instance and the elements of an object array. References
+   * to objects missing from the heap dump are skipped. Like perflib, the referent of a
+   * {@link java.lang.ref.Reference} isn't a strong reference and is skipped too.
+   */
+  void collectReferences(int index, TIntArrayList references) {
+    int tag = tag(index);
+    switch (tag) {
+      case CLASS_DUMP:
+        ClassInfo classInfo = asClass(index);
+        for (int i = 0; i < classInfo.staticFields.length; i++) {
+          if (classInfo.staticFields[i].getType() == Type.OBJECT) {
+            addReference(classInfo.staticFieldValues[i], references);
+          }
+        }
+        break;
+      case INSTANCE_DUMP:
+        ClassInfo instanceClass = classOf(index);
+        boolean isReference = isReference(instanceClass);
+        long position = instanceFieldsPosition(index);
+        for (ClassInfo current = instanceClass; current != null; current = current.superClass) {
+          for (Field field : current.fields) {
+            Type type = field.getType();
+            if (type == Type.OBJECT && !(isReference && field.getName().equals("referent"))) {
+              addReference(readId(position), references);
+            }
+            position += sizeOf(type);
+          }
+        }
+        break;
+      case OBJECT_ARRAY_DUMP:
+        int length = arrayLength(index);
+        long elementsPosition = objectArrayElementsPosition(index);
+        for (int i = 0; i < length; i++) {
+          addReference(readId(elementsPosition + (long) i * idSize), references);
+        }
+        break;
+      case PRIMITIVE_ARRAY_DUMP:
+      case PRIMITIVE_ARRAY_NODATA:
+        break;
+      default:
+        throw new IllegalStateException("Unexpected tag " + tag);
+    }
+  }
+
+  private void addReference(long id, TIntArrayList references) {
+    int index = indexOf(id);
+    if (index != -1) {
+      references.add(index);
+    }
+  }
+
+  private static boolean isReference(ClassInfo classInfo) {
+    for (ClassInfo current = classInfo; current != null; current = current.superClass) {
+      if (current.name.equals(Reference.class.getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the class name of an object, perflib style. */
+  String className(int index) {
+    int tag = tag(index);
+    switch (tag) {
+      case CLASS_DUMP:
+        return asClass(index).name;
+      case INSTANCE_DUMP:
+        ClassInfo classInfo = classOf(index);
+        return classInfo == null ? null : classInfo.name;
+      case OBJECT_ARRAY_DUMP:
+        buffer.setPosition(objectPositions[index] + 1 + idSize + 4 + 4);
+        ClassInfo arrayClass = classesById.get(readId());
+        return arrayClass == null ? null : arrayClass.name;
+      case PRIMITIVE_ARRAY_DUMP:
+      case PRIMITIVE_ARRAY_NODATA:
+        return Type.getClassNameOfPrimitiveArray(primitiveArrayType(index));
+      default:
+        throw new IllegalStateException("Unexpected tag " + tag);
+    }
+  }
+
+  /**
+   * Returns the shallow size of an object, perflib style: the instance size of its class for an
+   * instance, the size of its elements for an array, and the instance size of java.lang.Class plus
+   * the size of its static fields for a class.
+   */
+  int shallowSize(int index) {
+    int tag = tag(index);
+    switch (tag) {
+      case CLASS_DUMP:
+        ClassInfo javaLangClass = findClass(Class.class.getName());
+        int size = javaLangClass == null ? 0 : javaLangClass.instanceSize;
+        for (Field field : asClass(index).staticFields) {
+          size += sizeOf(field.getType());
+        }
+        return size;
+      case INSTANCE_DUMP:
+        ClassInfo classInfo = classOf(index);
+        return classInfo == null ? 0 : classInfo.instanceSize;
+      case OBJECT_ARRAY_DUMP:
+        return arrayLength(index) * idSize;
+      case PRIMITIVE_ARRAY_DUMP:
+      case PRIMITIVE_ARRAY_NODATA:
+        return arrayLength(index) * sizeOf(primitiveArrayType(index));
+      default:
+        throw new IllegalStateException("Unexpected tag " + tag);
+    }
+  }
+
+  /** File position of the field values of an instance dump. */
+  long instanceFieldsPosition(int index) {
+    return objectPositions[index] + 1 + idSize + 4 + idSize + 4;
+  }
+
+  int arrayLength(int index) {
+    buffer.setPosition(objectPositions[index] + 1 + idSize + 4);
+    return buffer.readInt();
+  }
+
+  /** File position of the elements of an object array dump. */
+  long objectArrayElementsPosition(int index) {
+    return objectPositions[index] + 1 + idSize + 4 + 4 + idSize;
+  }
+
+  Type primitiveArrayType(int index) {
+    buffer.setPosition(objectPositions[index] + 1 + idSize + 4 + 4);
+    return Type.getType(buffer.readByte() & 0xff);
+  }
+
+  int idSize() {
+    return idSize;
+  }
+
+  int sizeOf(Type type) {
+    return type == Type.OBJECT ? idSize : type.getSize();
+  }
+
+  long readId(long position) {
+    buffer.setPosition(position);
+    return readId();
+  }
+
+  /** Reads a value as stored in a field, see {@link #boxValue(Type, long)}. */
+  long readValue(Type type, long position) {
+    buffer.setPosition(position);
+    switch (type) {
+      case OBJECT:
+        return readId();
+      case BOOLEAN:
+      case BYTE:
+        return buffer.readByte();
+      case CHAR:
+        return buffer.readChar();
+      case SHORT:
+        return buffer.readShort();
+      case INT:
+      case FLOAT:
+        return buffer.readInt();
+      case LONG:
+      case DOUBLE:
+        return buffer.readLong();
+      default:
+        throw new IllegalStateException("Unexpected type " + type);
+    }
+  }
+
+  /**
+   * Returns the same boxed value as perflib for a raw primitive value, or for objects the index of
+   * the referenced object (null if the reference is null or points outside of the heap dump).
+   */
+  Object boxValue(Type type, long value) {
+    switch (type) {
+      case OBJECT:
+        int index = indexOf(value);
+        return index == -1 ? null : index;
+      case BOOLEAN:
+        return value != 0;
+      case BYTE:
+        return (byte) value;
+      case CHAR:
+        return (char) value;
+      case SHORT:
+        return (short) value;
+      case INT:
+        return (int) value;
+      case FLOAT:
+        return Float.intBitsToFloat((int) value);
+      case LONG:
+        return value;
+      case DOUBLE:
+        return Double.longBitsToDouble(value);
+      default:
+        throw new IllegalStateException("Unexpected type " + type);
+    }
+  }
+
+  static boolean hasField(ClassInfo classInfo, String fieldName) {
+    for (ClassInfo current = classInfo; current != null; current = current.superClass) {
+      for (Field field : current.fields) {
+        if (field.getName().equals(fieldName)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the value of an instance field, boxed with {@link #boxValue(Type, long)}.
+   *
+   * @throws IllegalArgumentException if the instance has no such field.
+   */
+  @SuppressWarnings({ "unchecked", "TypeParameterUnusedInFormals" })
+  <T> T fieldValue(int index, String fieldName) {
+    long position = instanceFieldsPosition(index);
+    for (ClassInfo current = classOf(index); current != null; current = current.superClass) {
+      for (int i = 0; i < current.fields.length; i++) {
+        Type type = current.fields[i].getType();
+        if (current.fields[i].getName().equals(fieldName)) {
+          return (T) boxValue(type, readValue(type, position));
+        }
+        position += sizeOf(type);
+      }
+    }
+    throw new IllegalArgumentException("Field " + fieldName + " does not exists");
+  }
+
+  String threadName(int threadIndex) {
+    Integer nameIndex = fieldValue(threadIndex, "name");
+    if (nameIndex == null) {
+      // Sometimes we can't find the String at the expected memory address in the heap dump.
+      // See https://github.com/square/leakcanary/issues/417 .
+      return "Thread name not available";
+    }
+    return asString(nameIndex);
+  }
+
+  static boolean extendsThread(ClassInfo classInfo) {
+    boolean extendsThread = false;
+    ClassInfo parentClass = classInfo;
+    while (parentClass.superClass != null) {
+      if (parentClass.name.equals(Thread.class.getName())) {
+        extendsThread = true;
+        break;
+      }
+      parentClass = parentClass.superClass;
+    }
+    return extendsThread;
+  }
+
+  String asString(int index) {
+    Integer count = fieldValue(index, "count");
+    checkNotNull(count, "count");
+    if (count == 0) {
+      return "";
+    }
+
+    Integer valueIndex = fieldValue(index, "value");
+    checkNotNull(valueIndex, "value");
+
+    int tag = tag(valueIndex);
+    Type arrayType = tag == PRIMITIVE_ARRAY_DUMP ? primitiveArrayType(valueIndex) : null;
+    long dataPosition = objectPositions[valueIndex] + 1 + idSize + 4 + 4 + 1;
+    if (arrayType == Type.CHAR) {
+      int offset = 0;
+      // < API 23
+      // As of Marshmallow, substrings no longer share their parent strings' char arrays
+      // eliminating the need for String.offset
+      // https://android-review.googlesource.com/#/c/83611/
+      if (hasField(classOf(index), "offset")) {
+        Integer offsetValue = fieldValue(index, "offset");
+        offset = checkNotNull(offsetValue, "offset");
+      }
+      buffer.setPosition(dataPosition + offset * 2L);
+      char[] chars = new char[count];
+      for (int i = 0; i < count; i++) {
+        chars[i] = buffer.readChar();
+      }
+      return new String(chars);
+    } else if (arrayType == Type.BYTE) {
+      // In API 26, Strings are now internally represented as byte arrays.
+      buffer.setPosition(dataPosition);
+      byte[] bytes = new byte[count];
+      buffer.read(bytes);
+      return new String(bytes, UTF_8);
+    } else {
+      throw new UnsupportedOperationException(
+          "Could not find char array in " + describe(objectIds[index]));
+    }
+  }
+
+  /** Returns the same description of the object with the provided id as perflib's toString(). */
+  String describe(long id) {
+    int index = indexOf(id);
+    if (index == -1) {
+      return "null";
+    }
+    int tag = tag(index);
+    switch (tag) {
+      case CLASS_DUMP:
+        return asClass(index).name.replace('/', '.');
+      case INSTANCE_DUMP:
+        return String.format("%s@%d (0x%x)", className(index), id, id);
+      case OBJECT_ARRAY_DUMP:
+      case PRIMITIVE_ARRAY_DUMP:
+      case PRIMITIVE_ARRAY_NODATA:
+        String className = className(index);
+        if (className != null && className.endsWith("[]")) {
+          className = className.substring(0, className.length() - 2);
+        }
+        return String.format("%s[%d]@%d (0x%x)", className, arrayLength(index), id, id);
+      default:
+        throw new IllegalStateException("Unexpected tag " + tag);
+    }
+  }
+
+  /** Describes all the fields of an object (static fields first) or entries of an array. */
+  List<LeakReference> describeFields(int index) {
+    List<LeakReference> leakReferences = new ArrayList<>();
+    int tag = tag(index);
+    if (tag == CLASS_DUMP) {
+      describeStaticFields(asClass(index), leakReferences);
+    } else if (tag == OBJECT_ARRAY_DUMP) {
+      int length = arrayLength(index);
+      long position = objectArrayElementsPosition(index);
+      for (int i = 0; i < length; i++) {
+        String name = Integer.toString(i);
+        String value = describe(readId(position + (long) i * idSize));
+        leakReferences.add(new LeakReference(ARRAY_ENTRY, name, value));
+      }
+    } else if (tag == INSTANCE_DUMP) {
+      ClassInfo classInfo = classOf(index);
+      describeStaticFields(classInfo, leakReferences);
+      long position = instanceFieldsPosition(index);
+      for (ClassInfo current = classInfo; current != null; current = current.superClass) {
+        for (int i = 0; i < current.fields.length; i++) {
+          Type type = current.fields[i].getType();
+          String value = describeValue(type, readValue(type, position));
+          leakReferences.add(new LeakReference(INSTANCE_FIELD, current.fields[i].getName(), value));
+          position += sizeOf(type);
+        }
+      }
+    }
+    return leakReferences;
+  }
+
+  private void describeStaticFields(ClassInfo classInfo, List<LeakReference> leakReferences) {
+    for (int i = 0; i < classInfo.staticFields.length; i++) {
+      Field field = classInfo.staticFields[i];
+      String value = describeValue(field.getType(), classInfo.staticFieldValues[i]);
+      leakReferences.add(new LeakReference(STATIC_FIELD, field.getName(), value));
+    }
+  }
+
+  String describeValue(Type type, long value) {
+    if (type == Type.OBJECT) {
+      return describe(value);
+    }
+    return String.valueOf(boxValue(type, value));
+  }
+
+  /**
+   * Writes everything but the heap dump itself, to be read back with
+   * {@link #read(HprofBuffer, HprofBuffer)}.
+   */
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(idSize);
+    out.writeInt(objectIds.length);
+    for (long id : objectIds) {
+      out.writeLong(id);
+    }
+    for (long position : objectPositions) {
+      out.writeLong(position);
+    }
+
+    Object[] classes = classesById.getValues();
+    out.writeInt(classes.length);
+    for (Object value : classes) {
+      writeClass(out, (ClassInfo) value);
+    }
+    out.writeInt(classesByName.size());
+    for (ClassInfo classInfo : classesByName.values()) {
+      out.writeLong(classInfo.id);
+    }
+
+    out.writeInt(instancesByClassName.size());
+    for (Map.Entry<String, int[]> entry : instancesByClassName.entrySet()) {
+      writeString(out, entry.getKey());
+      int[] instances = entry.getValue();
+      out.writeInt(instances.length);
+      for (int instance : instances) {
+        out.writeInt(instance);
+      }
+    }
+
+    out.writeInt(gcRootCount);
+    for (int root = 0; root < gcRootCount; root++) {
+      out.writeInt(gcRootIndexes[root]);
+      out.writeByte(gcRootTypes[root]);
+      out.writeInt(gcRootThreadIndexes[root]);
+    }
+
+    if (referentsByKey == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(referentsByKey.size());
+      for (Map.Entry<String, Integer> entry : referentsByKey.entrySet()) {
+        writeString(out, entry.getKey());
+        Integer referent = entry.getValue();
+        out.writeInt(referent == null ? -1 : referent);
+      }
+    }
+  }
+
+  /**
+   * Reads an index written by {@link #write(DataOutputStream)}.
+   *
+   * @param in positioned at the start of the written index.
+   * @param heapDumpBuffer the heap dump the index was built from.
+   */
+  static HprofIndex read(HprofBuffer in, HprofBuffer heapDumpBuffer) {
+    int idSize = in.readInt();
+    int objectCount = in.readInt();
+    long[] objectIds = new long[objectCount];
+    for (int i = 0; i < objectCount; i++) {
+      objectIds[i] = in.readLong();
+    }
+    long[] objectPositions = new long[objectCount];
+    for (int i = 0; i < objectCount; i++) {
+      objectPositions[i] = in.readLong();
+    }
+
+    int classCount = in.readInt();
+    TLongObjectHashMap<ClassInfo> classesById = new TLongObjectHashMap<>(classCount);
+    for (int i = 0; i < classCount; i++) {
+      ClassInfo classInfo = readClass(in);
+      classesById.put(classInfo.id, classInfo);
+    }
+    for (Object value : classesById.getValues()) {
+      ClassInfo classInfo = (ClassInfo) value;
+      classInfo.superClass = classesById.get(classInfo.superClassId);
+    }
+    int namedClassCount = in.readInt();
+    Map<String, ClassInfo> classesByName = new LinkedHashMap<>();
+    for (int i = 0; i < namedClassCount; i++) {
+      ClassInfo classInfo = classesById.get(in.readLong());
+      classesByName.put(classInfo.name, classInfo);
+    }
+
+    int indexedClassCount = in.readInt();
+    Map<String, int[]> instancesByClassName = new HashMap<>();
+    for (int i = 0; i < indexedClassCount; i++) {
+      String className = readString(in);
+      int[] instances = new int[in.readInt()];
+      for (int j = 0; j < instances.length; j++) {
+        instances[j] = in.readInt();
+      }
+      instancesByClassName.put(className, instances);
+    }
+
+    HprofIndex index =
+        new HprofIndex(heapDumpBuffer, idSize, objectIds, objectPositions, classesById,
+            classesByName, instancesByClassName);
+
+    int rootCount = in.readInt();
+    int[] rootIndexes = new int[rootCount];
+    byte[] rootTypes = new byte[rootCount];
+    int[] rootThreadIndexes = new int[rootCount];
+    for (int root = 0; root < rootCount; root++) {
+      rootIndexes[root] = in.readInt();
+      rootTypes[root] = in.readByte();
+      rootThreadIndexes[root] = in.readInt();
+    }
+    index.setGcRoots(rootIndexes, rootTypes, rootThreadIndexes);
+
+    int keyCount = in.readInt();
+    if (keyCount >= 0) {
+      Map<String, Integer> referentsByKey = new LinkedHashMap<>();
+      for (int i = 0; i < keyCount; i++) {
+        String key = readString(in);
+        int referent = in.readInt();
+        referentsByKey.put(key, referent == -1 ? null : referent);
+      }
+      index.setReferentsByKey(referentsByKey);
+    }
+    return index;
+  }
+
+  private static void writeClass(DataOutputStream out, ClassInfo classInfo) throws IOException {
+    out.writeLong(classInfo.id);
+    writeString(out, classInfo.name);
+    out.writeLong(classInfo.superClassId);
+    out.writeInt(classInfo.instanceSize);
+    out.writeInt(classInfo.fields.length);
+    for (Field field : classInfo.fields) {
+      out.writeByte(field.getType().getTypeId());
+      writeString(out, field.getName());
+    }
+    out.writeInt(classInfo.staticFields.length);
+    for (int i = 0; i < classInfo.staticFields.length; i++) {
+      Field field = classInfo.staticFields[i];
+      out.writeByte(field.getType().getTypeId());
+      writeString(out, field.getName());
+      out.writeLong(classInfo.staticFieldValues[i]);
+    }
+  }
+
+  private static ClassInfo readClass(HprofBuffer in) {
+    long id = in.readLong();
+    String name = readString(in);
+    long superClassId = in.readLong();
+    int instanceSize = in.readInt();
+    Field[] fields = new Field[in.readInt()];
+    for (int i = 0; i < fields.length; i++) {
+      Type type = Type.getType(in.readByte());
+      fields[i] = new Field(type, readString(in));
+    }
+    Field[] staticFields = new Field[in.readInt()];
+    long[] staticFieldValues = new long[staticFields.length];
+    for (int i = 0; i < staticFields.length; i++) {
+      Type type = Type.getType(in.readByte());
+      staticFields[i] = new Field(type, readString(in));
+      staticFieldValues[i] = in.readLong();
+    }
+    return new ClassInfo(id, name, superClassId, instanceSize, fields, staticFields,
+        staticFieldValues);
+  }
+
+  /** Writes a nullable UTF-8 string, as a length followed by the bytes. */
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    if (string == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = string.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(HprofBuffer in) {
+    int length = in.readInt();
+    if (length == -1) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.read(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private long readId() {
+    switch (idSize) {
+      case 1:
+        return buffer.readByte() & 0xffL;
+      case 2:
+        return buffer.readShort() & 0xffffL;
+      case 4:
+        return buffer.readInt() & 0xffffffffL;
+      case 8:
+        return buffer.readLong();
+      default:
+        throw new IllegalStateException("ID Length must be 1, 2, 4, or 8");
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Stores a {@link HprofIndex} in a sidecar file next to the heap dump it was built from, e.g.
+ * {@code dump.hprof.idx} for {@code dump.hprof}, so that later analyses of the same heap dump can
+ * skip indexing. The sidecar records the size and last modified time of the heap dump and is
+ * ignored if they don't match anymore.
+ */
+final class HprofIndexFile {
+
+  private static final String SUFFIX = ".idx";
+  /** "LCIX" */
+  private static final int MAGIC = 0x4c434958;
+  /** Bump when the format written by {@link HprofIndex#write(DataOutputStream)} changes. */
+  private static final int VERSION = 3;
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+  static File sidecarFor(File heapDumpFile) {
+    return new File(heapDumpFile.getPath() + SUFFIX);
+  }
+
+  /**
+   * Returns the index stored next to the heap dump, or null if there is none or if it's stale or
+   * unreadable.
+   */
+  static HprofIndex read(File heapDumpFile, HprofBuffer heapDumpBuffer) {
+    File sidecar = sidecarFor(heapDumpFile);
+    if (!sidecar.isFile() || sidecar.length() < HEADER_SIZE) {
+      return null;
+    }
+    try {
+      // The mapping is released when the buffer is garbage collected, the index copies everything
+      // it needs.
+      HprofBuffer in = new MemoryMappedFileBuffer(sidecar);
+      if (in.readInt() != MAGIC
+          || in.readInt() != VERSION
+          || in.readLong() != heapDumpFile.length()
+          || in.readLong() != heapDumpFile.lastModified()) {
+        return null;
+      }
+      return HprofIndex.read(in, heapDumpBuffer);
+    } catch (IOException | RuntimeException e) {
+      // Truncated or corrupted, the heap dump will be indexed again.
+      return null;
+    }
+  }
+
+  /**
+   * Writes the index next to the heap dump. The sidecar is only a cache: if it can't be written,
+   * any partial file is deleted and the error is ignored.
+   */
+  static void write(File heapDumpFile, HprofIndex index) {
+    File sidecar = sidecarFor(heapDumpFile);
+    File tmpFile = new File(sidecar.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(heapDumpFile.length());
+      out.writeLong(heapDumpFile.lastModified());
+      index.write(out);
+      out.close();
+      out = null;
+      // File.renameTo() may fail if the destination exists.
+      sidecar.delete();
+      if (!tmpFile.renameTo(sidecar)) {
+        tmpFile.delete();
+      }
+    } catch (IOException e) {
+      closeQuietly(out);
+      tmpFile.delete();
+    }
+  }
+
+  private static void closeQuietly(DataOutputStream out) {
+    if (out == null) {
+      return;
+    }
+    try {
+      out.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  private HprofIndexFile() {
+    throw new AssertionError();
+  }
+}
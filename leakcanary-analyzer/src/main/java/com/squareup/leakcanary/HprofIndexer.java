@@ -0,0 +1,700 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import gnu.trove.TByteArrayList;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntLongHashMap;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongLongHashMap;
+import gnu.trove.TLongObjectHashMap;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.squareup.leakcanary.HprofIndex.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndex.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndex.OBJECT_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndex.PRIMITIVE_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndex.PRIMITIVE_ARRAY_NODATA;
+
+/**
+ * Builds a {@link HprofIndex} with a single sequential pass over a heap dump. Only the id and the
+ * file position of each object are kept, along with the class layouts and the gc roots, so the
+ * memory needed is a few bytes per object instead of a full perflib Snapshot.
+ *
+ * When created with a parallelism greater than 1, the sequential pass only records the bounds of
+ * the heap dump segments. The segments are then split in contiguous groups that are indexed on
+ * separate threads, each reading its own mapping of the heap dump file, and the groups are merged
+ * in file order so that the index is the same as with a sequential pass.
+ *
+ * Not thread safe.
+ */
+final class HprofIndexer {
+
+  static final int STRING_IN_UTF8 = 0x01;
+  static final int LOAD_CLASS = 0x02;
+  static final int HEAP_DUMP = 0x0c;
+  static final int HEAP_DUMP_SEGMENT = 0x1c;
+
+  static final int ROOT_UNKNOWN = 0xff;
+  static final int ROOT_JNI_GLOBAL = 0x01;
+  static final int ROOT_JNI_LOCAL = 0x02;
+  static final int ROOT_JAVA_FRAME = 0x03;
+  static final int ROOT_NATIVE_STACK = 0x04;
+  static final int ROOT_STICKY_CLASS = 0x05;
+  static final int ROOT_THREAD_BLOCK = 0x06;
+  static final int ROOT_MONITOR_USED = 0x07;
+  static final int ROOT_THREAD_OBJECT = 0x08;
+  static final int ROOT_HEAP_DUMP_INFO = 0xfe;
+  static final int ROOT_INTERNED_STRING = 0x89;
+  static final int ROOT_FINALIZING = 0x8a;
+  static final int ROOT_DEBUGGER = 0x8b;
+  static final int ROOT_REFERENCE_CLEANUP = 0x8c;
+  static final int ROOT_VM_INTERNAL = 0x8d;
+  static final int ROOT_JNI_MONITOR = 0x8e;
+  static final int ROOT_UNREACHABLE = 0x90;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final HprofBuffer buffer;
+  private final Collection<String> indexedClassNames;
+  private final byte[][] indexedClassNameBytes;
+  private final File heapDumpFile;
+  private final int parallelism;
+  private int idSize;
+
+  /** Position of the length field of the record of each string, by string id. */
+  private final TLongLongHashMap stringPositions = new TLongLongHashMap();
+  private final TLongLongHashMap classNameStringIds = new TLongLongHashMap();
+  private final TLongObjectHashMap<String> indexedNamesByStringId = new TLongObjectHashMap<>();
+  private final TLongObjectHashMap<String> indexedNamesByClassId = new TLongObjectHashMap<>();
+  private final TLongArrayList objectIds = new TLongArrayList();
+  private final TLongArrayList objectPositions = new TLongArrayList();
+  private final TLongArrayList classPositions = new TLongArrayList();
+  private final TLongArrayList rootIds = new TLongArrayList();
+  private final TByteArrayList rootTypes = new TByteArrayList();
+  private final TIntArrayList rootThreadSerials = new TIntArrayList();
+  private final TIntLongHashMap threadIdsBySerial = new TIntLongHashMap();
+  private final Map<String, TLongArrayList> indexedInstanceIds = new HashMap<>();
+  private final TLongArrayList segmentStarts = new TLongArrayList();
+  private final TLongArrayList segmentEnds = new TLongArrayList();
+
+  /**
+   * @param indexedClassNames classes for which {@link HprofIndex#instancesOf(String)} can be
+   * called. Finding the instances of other classes would require another pass on the heap dump.
+   */
+  HprofIndexer(HprofBuffer buffer, Collection<String> indexedClassNames) {
+    this(buffer, indexedClassNames, null, 1);
+  }
+
+  /**
+   * @param heapDumpFile the file buffer reads from, opened again by each thread when parallelism
+   * is greater than 1.
+   * @param parallelism maximum number of threads indexing heap dump segments.
+   */
+  HprofIndexer(HprofBuffer buffer, Collection<String> indexedClassNames, File heapDumpFile,
+      int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1, not " + parallelism);
+    }
+    if (parallelism > 1 && heapDumpFile == null) {
+      throw new IllegalArgumentException("heapDumpFile is required when parallelism > 1");
+    }
+    this.buffer = buffer;
+    this.indexedClassNames = indexedClassNames;
+    this.heapDumpFile = heapDumpFile;
+    this.parallelism = parallelism;
+    indexedClassNameBytes = new byte[indexedClassNames.size()][];
+    int i = 0;
+    for (String className : indexedClassNames) {
+      indexedClassNameBytes[i++] = className.getBytes(UTF_8);
+    }
+  }
+
+  /** Indexes a group of heap dump segments for parent, reading from buffer. */
+  private HprofIndexer(HprofIndexer parent, HprofBuffer buffer) {
+    this.buffer = buffer;
+    indexedClassNames = parent.indexedClassNames;
+    indexedClassNameBytes = parent.indexedClassNameBytes;
+    heapDumpFile = parent.heapDumpFile;
+    parallelism = 1;
+    idSize = parent.idSize;
+    for (long classId : parent.indexedNamesByClassId.keys()) {
+      indexedNamesByClassId.put(classId, parent.indexedNamesByClassId.get(classId));
+    }
+  }
+
+  HprofIndex index() throws IOException {
+    buffer.setPosition(0);
+    // Null terminated format name, e.g. "JAVA PROFILE 1.0.3".
+    byte versionByte;
+    do {
+      versionByte = buffer.readByte();
+    } while (versionByte != 0);
+    idSize = buffer.readInt();
+    // Timestamp
+    buffer.readLong();
+
+    while (buffer.hasRemaining()) {
+      int tag = readUnsignedByte();
+      // Time offset
+      buffer.readInt();
+      long length = readUnsignedInt();
+      long end = buffer.position() + length;
+      switch (tag) {
+        case STRING_IN_UTF8:
+          indexString(length);
+          break;
+        case LOAD_CLASS:
+          indexLoadClass();
+          break;
+        case HEAP_DUMP:
+        case HEAP_DUMP_SEGMENT:
+          if (parallelism > 1) {
+            segmentStarts.add(buffer.position());
+            segmentEnds.add(end);
+          } else {
+            indexHeapDump(end);
+          }
+          break;
+        default:
+          break;
+      }
+      buffer.setPosition(end);
+    }
+    if (!segmentStarts.isEmpty()) {
+      indexSegmentsInParallel();
+    }
+    return buildIndex();
+  }
+
+  private void indexSegmentsInParallel() throws IOException {
+    final long[] starts = segmentStarts.toNativeArray();
+    final long[] ends = segmentEnds.toNativeArray();
+    long totalSize = 0;
+    for (int i = 0; i < starts.length; i++) {
+      totalSize += ends[i] - starts[i];
+    }
+    // Contiguous groups of segments with about the same number of bytes.
+    int groupCount = Math.min(parallelism, starts.length);
+    TIntArrayList groupStarts = new TIntArrayList(groupCount + 1);
+    groupStarts.add(0);
+    long groupedSize = 0;
+    for (int i = 0; i < starts.length - 1 && groupStarts.size() < groupCount; i++) {
+      groupedSize += ends[i] - starts[i];
+      if (groupedSize * groupCount >= totalSize * groupStarts.size()) {
+        groupStarts.add(i + 1);
+      }
+    }
+    groupStarts.add(starts.length);
+
+    ExecutorService executor = Executors.newFixedThreadPool(groupStarts.size() - 1);
+    try {
+      List<Future<HprofIndexer>> groups = new ArrayList<>();
+      for (int group = 0; group < groupStarts.size() - 1; group++) {
+        final int first = groupStarts.get(group);
+        final int last = groupStarts.get(group + 1);
+        groups.add(executor.submit(new Callable<HprofIndexer>() {
+          @Override public HprofIndexer call() throws IOException {
+            HprofBuffer groupBuffer = CompressedHprof.openBuffer(heapDumpFile);
+            try {
+              HprofIndexer groupIndexer = new HprofIndexer(HprofIndexer.this, groupBuffer);
+              for (int segment = first; segment < last; segment++) {
+                groupIndexer.buffer.setPosition(starts[segment]);
+                groupIndexer.indexHeapDump(ends[segment]);
+              }
+              return groupIndexer;
+            } finally {
+              CompressedHprof.closeBuffer(groupBuffer);
+            }
+          }
+        }));
+      }
+      for (Future<HprofIndexer> group : groups) {
+        merge(getUninterruptibly(group));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static HprofIndexer getUninterruptibly(Future<HprofIndexer> future) throws IOException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IllegalStateException(cause);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Appends what a group indexer found, groups must be merged in file order. */
+  private void merge(HprofIndexer group) {
+    objectIds.add(group.objectIds.toNativeArray());
+    objectPositions.add(group.objectPositions.toNativeArray());
+    classPositions.add(group.classPositions.toNativeArray());
+    rootIds.add(group.rootIds.toNativeArray());
+    rootTypes.add(group.rootTypes.toNativeArray());
+    rootThreadSerials.add(group.rootThreadSerials.toNativeArray());
+    for (int serial : group.threadIdsBySerial.keys()) {
+      threadIdsBySerial.put(serial, group.threadIdsBySerial.get(serial));
+    }
+    for (Map.Entry<String, TLongArrayList> entry : group.indexedInstanceIds.entrySet()) {
+      for (long instanceId : entry.getValue().toNativeArray()) {
+        addIndexedInstance(entry.getKey(), instanceId);
+      }
+    }
+  }
+
+  private void indexString(long length) {
+    long lengthPosition = buffer.position() - 4;
+    long stringId = readId();
+    stringPositions.put(stringId, lengthPosition);
+    int stringLength = (int) (length - idSize);
+    for (byte[] classNameBytes : indexedClassNameBytes) {
+      if (classNameBytes.length == stringLength) {
+        byte[] bytes = new byte[stringLength];
+        buffer.read(bytes);
+        if (Arrays.equals(classNameBytes, bytes)) {
+          indexedNamesByStringId.put(stringId, new String(bytes, UTF_8));
+          return;
+        }
+        buffer.setPosition(lengthPosition + 4 + idSize);
+      }
+    }
+  }
+
+  private void indexLoadClass() {
+    // Serial number
+    buffer.readInt();
+    long classId = readId();
+    // Stack trace serial number
+    buffer.readInt();
+    long nameStringId = readId();
+    classNameStringIds.put(classId, nameStringId);
+    String indexedName = indexedNamesByStringId.get(nameStringId);
+    if (indexedName != null) {
+      indexedNamesByClassId.put(classId, indexedName);
+    }
+  }
+
+  private void indexHeapDump(long end) {
+    while (buffer.position() < end) {
+      long position = buffer.position();
+      int tag = readUnsignedByte();
+      switch (tag) {
+        case ROOT_UNKNOWN:
+          addRoot(RootType.UNKNOWN, readId(), 0);
+          break;
+        case ROOT_JNI_GLOBAL:
+          addRoot(RootType.NATIVE_STATIC, readId(), 0);
+          // JNI global ref id
+          skip(idSize);
+          break;
+        case ROOT_JNI_LOCAL:
+          addRoot(RootType.NATIVE_LOCAL, readId(), buffer.readInt());
+          // Frame number
+          skip(4);
+          break;
+        case ROOT_JAVA_FRAME:
+          addRoot(RootType.JAVA_LOCAL, readId(), buffer.readInt());
+          // Frame number
+          skip(4);
+          break;
+        case ROOT_NATIVE_STACK:
+          addRoot(RootType.NATIVE_STACK, readId(), buffer.readInt());
+          break;
+        case ROOT_STICKY_CLASS:
+          addRoot(RootType.SYSTEM_CLASS, readId(), 0);
+          break;
+        case ROOT_THREAD_BLOCK:
+          addRoot(RootType.THREAD_BLOCK, readId(), buffer.readInt());
+          break;
+        case ROOT_MONITOR_USED:
+          addRoot(RootType.BUSY_MONITOR, readId(), 0);
+          break;
+        case ROOT_THREAD_OBJECT:
+          long threadId = readId();
+          threadIdsBySerial.put(buffer.readInt(), threadId);
+          // Stack trace serial number
+          skip(4);
+          break;
+        case ROOT_INTERNED_STRING:
+          addRoot(RootType.INTERNED_STRING, readId(), 0);
+          break;
+        case ROOT_FINALIZING:
+          addRoot(RootType.FINALIZING, readId(), 0);
+          break;
+        case ROOT_DEBUGGER:
+          addRoot(RootType.DEBUGGER, readId(), 0);
+          break;
+        case ROOT_REFERENCE_CLEANUP:
+          addRoot(RootType.REFERENCE_CLEANUP, readId(), 0);
+          break;
+        case ROOT_VM_INTERNAL:
+          addRoot(RootType.VM_INTERNAL, readId(), 0);
+          break;
+        case ROOT_JNI_MONITOR:
+          addRoot(RootType.NATIVE_MONITOR, readId(), buffer.readInt());
+          // Stack depth
+          skip(4);
+          break;
+        case ROOT_UNREACHABLE:
+          addRoot(RootType.UNREACHABLE, readId(), 0);
+          break;
+        case ROOT_HEAP_DUMP_INFO:
+          // Heap id and heap name string id.
+          skip(4 + idSize);
+          break;
+        case CLASS_DUMP:
+          addObject(readId(), position);
+          classPositions.add(position);
+          skipClassDump();
+          break;
+        case INSTANCE_DUMP:
+          long instanceId = readId();
+          addObject(instanceId, position);
+          // Stack trace serial number
+          skip(4);
+          String indexedName = indexedNamesByClassId.get(readId());
+          if (indexedName != null) {
+            addIndexedInstance(indexedName, instanceId);
+          }
+          skip(readUnsignedInt());
+          break;
+        case OBJECT_ARRAY_DUMP:
+          addObject(readId(), position);
+          skip(4);
+          long length = readUnsignedInt();
+          // Array class id, then elements.
+          skip(idSize + length * idSize);
+          break;
+        case PRIMITIVE_ARRAY_DUMP:
+        case PRIMITIVE_ARRAY_NODATA:
+          addObject(readId(), position);
+          skip(4);
+          long arrayLength = readUnsignedInt();
+          Type type = Type.getType(readUnsignedByte());
+          if (tag == PRIMITIVE_ARRAY_DUMP) {
+            skip(arrayLength * type.getSize());
+          }
+          break;
+        default:
+          throw new IllegalStateException(
+              "Unexpected heap dump tag " + tag + " at position " + position);
+      }
+    }
+  }
+
+  private void skipClassDump() {
+    // Stack trace serial number, then super class, class loader, signers, protection domain and
+    // two reserved ids.
+    skip(4 + 6 * idSize);
+    // Instance size
+    skip(4);
+    int constantPoolSize = readUnsignedShort();
+    for (int i = 0; i < constantPoolSize; i++) {
+      skip(2);
+      skip(sizeOf(Type.getType(readUnsignedByte())));
+    }
+    int staticFieldCount = readUnsignedShort();
+    for (int i = 0; i < staticFieldCount; i++) {
+      skip(idSize);
+      skip(sizeOf(Type.getType(readUnsignedByte())));
+    }
+    int fieldCount = readUnsignedShort();
+    skip(fieldCount * (idSize + 1L));
+  }
+
+  private void addRoot(RootType rootType, long id, int threadSerial) {
+    rootIds.add(id);
+    rootTypes.add((byte) rootType.ordinal());
+    rootThreadSerials.add(threadSerial);
+  }
+
+  private void addObject(long id, long position) {
+    objectIds.add(id);
+    objectPositions.add(position);
+  }
+
+  private void addIndexedInstance(String className, long instanceId) {
+    TLongArrayList instanceIds = indexedInstanceIds.get(className);
+    if (instanceIds == null) {
+      instanceIds = new TLongArrayList();
+      indexedInstanceIds.put(className, instanceIds);
+    }
+    instanceIds.add(instanceId);
+  }
+
+  private HprofIndex buildIndex() {
+    long[] ids = objectIds.toNativeArray();
+    long[] positions = objectPositions.toNativeArray();
+    objectIds.clear();
+    objectPositions.clear();
+    sort(ids, positions, 0, ids.length - 1);
+
+    TLongObjectHashMap<HprofIndex.ClassInfo> classesById = new TLongObjectHashMap<>();
+    Map<String, HprofIndex.ClassInfo> classesByName = new LinkedHashMap<>();
+    for (int i = 0; i < classPositions.size(); i++) {
+      HprofIndex.ClassInfo classInfo = readClassDump(classPositions.get(i));
+      classesById.put(classInfo.id, classInfo);
+      if (!classesByName.containsKey(classInfo.name)) {
+        classesByName.put(classInfo.name, classInfo);
+      }
+    }
+    for (Object value : classesById.getValues()) {
+      HprofIndex.ClassInfo classInfo = (HprofIndex.ClassInfo) value;
+      classInfo.superClass = classesById.get(classInfo.superClassId);
+    }
+
+    Map<String, int[]> instancesByClassName = new HashMap<>();
+    for (String className : indexedClassNames) {
+      TLongArrayList instanceIds = indexedInstanceIds.get(className);
+      TIntArrayList instances = new TIntArrayList();
+      for (int i = 0; instanceIds != null && i < instanceIds.size(); i++) {
+        instances.add(Arrays.binarySearch(ids, instanceIds.get(i)));
+      }
+      instancesByClassName.put(className, instances.toNativeArray());
+    }
+
+    // Roots pointing to objects that aren't in the heap dump can't lead to a leak.
+    TIntArrayList rootIndexes = new TIntArrayList(rootIds.size());
+    TByteArrayList types = new TByteArrayList(rootIds.size());
+    TIntArrayList threadIndexes = new TIntArrayList(rootIds.size());
+    for (int i = 0; i < rootIds.size(); i++) {
+      int index = indexOf(ids, rootIds.get(i));
+      if (index == -1) {
+        continue;
+      }
+      rootIndexes.add(index);
+      types.add(rootTypes.get(i));
+      int threadSerial = rootThreadSerials.get(i);
+      if (threadIdsBySerial.containsKey(threadSerial)) {
+        threadIndexes.add(indexOf(ids, threadIdsBySerial.get(threadSerial)));
+      } else {
+        threadIndexes.add(-1);
+      }
+    }
+
+    HprofIndex index = new HprofIndex(buffer, idSize, ids, positions, classesById, classesByName,
+        instancesByClassName);
+    index.setGcRoots(rootIndexes.toNativeArray(), types.toNativeArray(),
+        threadIndexes.toNativeArray());
+    return index;
+  }
+
+  private HprofIndex.ClassInfo readClassDump(long position) {
+    buffer.setPosition(position + 1);
+    long id = readId();
+    // Stack trace serial number
+    skip(4);
+    long superClassId = readId();
+    // Class loader, signers, protection domain and two reserved ids.
+    skip(5 * idSize);
+    int instanceSize = buffer.readInt();
+    int constantPoolSize = readUnsignedShort();
+    for (int i = 0; i < constantPoolSize; i++) {
+      skip(2);
+      skip(sizeOf(Type.getType(readUnsignedByte())));
+    }
+    int staticFieldCount = readUnsignedShort();
+    Type[] staticFieldTypes = new Type[staticFieldCount];
+    long[] staticFieldValues = new long[staticFieldCount];
+    long[] staticFieldNameIds = new long[staticFieldCount];
+    for (int i = 0; i < staticFieldCount; i++) {
+      staticFieldNameIds[i] = readId();
+      staticFieldTypes[i] = Type.getType(readUnsignedByte());
+      staticFieldValues[i] = readValue(staticFieldTypes[i]);
+    }
+    int fieldCount = readUnsignedShort();
+    Type[] fieldTypes = new Type[fieldCount];
+    long[] fieldNameIds = new long[fieldCount];
+    for (int i = 0; i < fieldCount; i++) {
+      fieldNameIds[i] = readId();
+      fieldTypes[i] = Type.getType(readUnsignedByte());
+    }
+    Field[] staticFields = new Field[staticFieldCount];
+    for (int i = 0; i < staticFieldCount; i++) {
+      staticFields[i] = new Field(staticFieldTypes[i], readString(staticFieldNameIds[i]));
+    }
+    Field[] fields = new Field[fieldCount];
+    for (int i = 0; i < fieldCount; i++) {
+      fields[i] = new Field(fieldTypes[i], readString(fieldNameIds[i]));
+    }
+    String name = readString(classNameStringIds.get(id));
+    return new HprofIndex.ClassInfo(id, name, superClassId, instanceSize, fields, staticFields,
+        staticFieldValues);
+  }
+
+  private String readString(long stringId) {
+    if (!stringPositions.containsKey(stringId)) {
+      return null;
+    }
+    buffer.setPosition(stringPositions.get(stringId));
+    int length = (int) (readUnsignedInt() - idSize);
+    skip(idSize);
+    byte[] bytes = new byte[length];
+    buffer.read(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private long readValue(Type type) {
+    switch (type) {
+      case OBJECT:
+        return readId();
+      case BOOLEAN:
+      case BYTE:
+        return buffer.readByte();
+      case CHAR:
+        return buffer.readChar();
+      case SHORT:
+        return buffer.readShort();
+      case INT:
+      case FLOAT:
+        return buffer.readInt();
+      case LONG:
+      case DOUBLE:
+        return buffer.readLong();
+      default:
+        throw new IllegalStateException("Unexpected type " + type);
+    }
+  }
+
+  private int sizeOf(Type type) {
+    return type == Type.OBJECT ? idSize : type.getSize();
+  }
+
+  private long readId() {
+    switch (idSize) {
+      case 1:
+        return buffer.readByte() & 0xffL;
+      case 2:
+        return buffer.readShort() & 0xffffL;
+      case 4:
+        return buffer.readInt() & 0xffffffffL;
+      case 8:
+        return buffer.readLong();
+      default:
+        throw new IllegalStateException("ID Length must be 1, 2, 4, or 8");
+    }
+  }
+
+  private int readUnsignedByte() {
+    return buffer.readByte() & 0xff;
+  }
+
+  private int readUnsignedShort() {
+    return buffer.readShort() & 0xffff;
+  }
+
+  private long readUnsignedInt() {
+    return buffer.readInt() & 0xffffffffL;
+  }
+
+  private void skip(long byteCount) {
+    buffer.setPosition(buffer.position() + byteCount);
+  }
+
+  private static int indexOf(long[] sortedIds, long id) {
+    int index = Arrays.binarySearch(sortedIds, id);
+    return index >= 0 ? index : -1;
+  }
+
+  /** Sorts ids in ascending order, applying the same permutation to positions. */
+  private static void sort(long[] ids, long[] positions, int low, int high) {
+    while (high - low > 16) {
+      long pivot = medianOfThree(ids[low], ids[(low + high) >>> 1], ids[high]);
+      int left = low;
+      int right = high;
+      while (left <= right) {
+        while (ids[left] < pivot) {
+          left++;
+        }
+        while (ids[right] > pivot) {
+          right--;
+        }
+        if (left <= right) {
+          swap(ids, positions, left, right);
+          left++;
+          right--;
+        }
+      }
+      // Recurse on the smaller half to bound the stack depth.
+      if (right - low < high - left) {
+        sort(ids, positions, low, right);
+        low = left;
+      } else {
+        sort(ids, positions, left, high);
+        high = right;
+      }
+    }
+    for (int i = low + 1; i <= high; i++) {
+      for (int j = i; j > low && ids[j - 1] > ids[j]; j--) {
+        swap(ids, positions, j - 1, j);
+      }
+    }
+  }
+
+  private static long medianOfThree(long a, long b, long c) {
+    if (a < b) {
+      return b < c ? b : (a < c ? c : a);
+    }
+    return a < c ? a : (b < c ? c : b);
+  }
+
+  private static void swap(long[] ids, long[] positions, int i, int j) {
+    long id = ids[i];
+    ids[i] = ids[j];
+    ids[j] = id;
+    long position = positions[i];
+    positions[i] = positions[j];
+    positions[j] = position;
+  }
+}
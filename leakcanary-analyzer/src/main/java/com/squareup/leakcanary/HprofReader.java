@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Type;
+import com.squareup.haha.perflib.io.HprofBuffer;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static com.squareup.leakcanary.HprofIndex.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndex.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndex.OBJECT_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndex.PRIMITIVE_ARRAY_DUMP;
+import static com.squareup.leakcanary.HprofIndex.PRIMITIVE_ARRAY_NODATA;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_DEBUGGER;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_FINALIZING;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_HEAP_DUMP_INFO;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_INTERNED_STRING;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JAVA_FRAME;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JNI_GLOBAL;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JNI_LOCAL;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_JNI_MONITOR;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_MONITOR_USED;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_NATIVE_STACK;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_REFERENCE_CLEANUP;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_STICKY_CLASS;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_THREAD_BLOCK;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_THREAD_OBJECT;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_UNKNOWN;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_UNREACHABLE;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_VM_INTERNAL;
+
+/**
+ * Reads the records of a heap dump for the classes that rewrite heap dumps, and copies them.
+ *
+ * Not thread safe.
+ */
+final class HprofReader {
+
+  private final HprofBuffer buffer;
+  private final byte[] copyBuffer = new byte[8192];
+  private int idSize;
+
+  HprofReader(HprofBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /** Reads the header of the heap dump, and leaves the position on the first record. */
+  void readHeader() {
+    buffer.setPosition(0);
+    // Null terminated format name, e.g. "JAVA PROFILE 1.0.3".
+    byte versionByte;
+    do {
+      versionByte = buffer.readByte();
+    } while (versionByte != 0);
+    idSize = buffer.readInt();
+    // Timestamp
+    buffer.readLong();
+  }
+
+  int idSize() {
+    return idSize;
+  }
+
+  long position() {
+    return buffer.position();
+  }
+
+  void setPosition(long position) {
+    buffer.setPosition(position);
+  }
+
+  boolean hasRemaining() {
+    return buffer.hasRemaining();
+  }
+
+  int readInt() {
+    return buffer.readInt();
+  }
+
+  /** Moves the position past a heap dump sub record, whose tag was just read. */
+  void skipSubRecord(int tag) {
+    switch (tag) {
+      case ROOT_UNKNOWN:
+      case ROOT_STICKY_CLASS:
+      case ROOT_MONITOR_USED:
+      case ROOT_INTERNED_STRING:
+      case ROOT_FINALIZING:
+      case ROOT_DEBUGGER:
+      case ROOT_REFERENCE_CLEANUP:
+      case ROOT_VM_INTERNAL:
+      case ROOT_UNREACHABLE:
+        skip(idSize);
+        break;
+      case ROOT_JNI_GLOBAL:
+        // Object id and JNI global ref id.
+        skip(2 * idSize);
+        break;
+      case ROOT_NATIVE_STACK:
+      case ROOT_THREAD_BLOCK:
+        // Object id and thread serial number.
+        skip(idSize + 4);
+        break;
+      case ROOT_JNI_LOCAL:
+      case ROOT_JAVA_FRAME:
+      case ROOT_THREAD_OBJECT:
+      case ROOT_JNI_MONITOR:
+        // Object id and two serial numbers or a serial number and a frame number or depth.
+        skip(idSize + 8);
+        break;
+      case ROOT_HEAP_DUMP_INFO:
+        // Heap id and heap name string id.
+        skip(4 + idSize);
+        break;
+      case CLASS_DUMP:
+        skipClassDump();
+        break;
+      case INSTANCE_DUMP:
+        // Object id, stack trace serial number and class id.
+        skip(idSize + 4 + idSize);
+        skip(readUnsignedInt());
+        break;
+      case OBJECT_ARRAY_DUMP:
+        skip(idSize + 4);
+        long length = readUnsignedInt();
+        // Array class id, then elements.
+        skip(idSize + length * idSize);
+        break;
+      case PRIMITIVE_ARRAY_DUMP:
+      case PRIMITIVE_ARRAY_NODATA:
+        skip(idSize + 4);
+        long arrayLength = readUnsignedInt();
+        Type type = Type.getType(readUnsignedByte());
+        if (tag == PRIMITIVE_ARRAY_DUMP) {
+          skip(arrayLength * type.getSize());
+        }
+        break;
+      default:
+        throw new IllegalStateException(
+            "Unexpected heap dump tag " + tag + " at position " + (position() - 1));
+    }
+  }
+
+  private void skipClassDump() {
+    // Class id, stack trace serial number, then super class, class loader, signers, protection
+    // domain and two reserved ids.
+    skip(idSize + 4 + 6 * idSize);
+    // Instance size
+    skip(4);
+    int constantPoolSize = readUnsignedShort();
+    for (int i = 0; i < constantPoolSize; i++) {
+      skip(2);
+      skip(sizeOf(Type.getType(readUnsignedByte())));
+    }
+    int staticFieldCount = readUnsignedShort();
+    for (int i = 0; i < staticFieldCount; i++) {
+      skip(idSize);
+      skip(sizeOf(Type.getType(readUnsignedByte())));
+    }
+    int fieldCount = readUnsignedShort();
+    skip(fieldCount * (idSize + 1L));
+  }
+
+  /** Copies the bytes of the heap dump between start and end, and moves the position to end. */
+  void copy(long start, long end, DataOutputStream out) throws IOException {
+    buffer.setPosition(start);
+    long remaining = end - start;
+    while (remaining >= copyBuffer.length) {
+      buffer.read(copyBuffer);
+      out.write(copyBuffer);
+      remaining -= copyBuffer.length;
+    }
+    // MemoryMappedFileBuffer.readSubSequence() checks the array length instead of the read length
+    // against the end of the mapped region, so the tail is read byte by byte.
+    for (int i = 0; i < remaining; i++) {
+      out.writeByte(buffer.readByte());
+    }
+  }
+
+  int sizeOf(Type type) {
+    return type == Type.OBJECT ? idSize : type.getSize();
+  }
+
+  long readId() {
+    switch (idSize) {
+      case 1:
+        return buffer.readByte() & 0xffL;
+      case 2:
+        return buffer.readShort() & 0xffffL;
+      case 4:
+        return buffer.readInt() & 0xffffffffL;
+      case 8:
+        return buffer.readLong();
+      default:
+        throw new IllegalStateException("ID Length must be 1, 2, 4, or 8");
+    }
+  }
+
+  int readUnsignedByte() {
+    return buffer.readByte() & 0xff;
+  }
+
+  int readUnsignedShort() {
+    return buffer.readShort() & 0xffff;
+  }
+
+  long readUnsignedInt() {
+    return buffer.readInt() & 0xffffffffL;
+  }
+
+  void skip(long byteCount) {
+    buffer.setPosition(buffer.position() + byteCount);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+import static com.squareup.leakcanary.HprofIndex.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.HEAP_DUMP;
+import static com.squareup.leakcanary.HprofIndexer.HEAP_DUMP_SEGMENT;
+import static com.squareup.leakcanary.HprofIndexer.ROOT_HEAP_DUMP_INFO;
+
+/**
+ * Copies a heap dump, keeping only some of its objects. Records outside of the heap dump (strings,
+ * loaded classes, stack traces) and all class dumps are copied as is, so the result is a valid
+ * heap dump in the same format. Instances and arrays are copied only if kept, and gc roots only if
+ * the object they hold is kept. References from the copied objects to dropped objects are left
+ * dangling, which heap dump parsers handle like references to objects missing from the dump.
+ *
+ * Each heap dump record is read twice, once to compute its new length and once to copy the kept
+ * sub records, so the memory needed doesn't depend on the size of the heap dump.
+ *
+ * Not thread safe.
+ */
+final class HprofTrimmer {
+
+  private final HprofReader reader;
+  private final HprofIndex index;
+  private final BitSet keptObjects;
+
+  /**
+   * @param buffer the heap dump that index was built from.
+   * @param keptObjects indexes of the instances and arrays to keep.
+   */
+  HprofTrimmer(HprofBuffer buffer, HprofIndex index, BitSet keptObjects) {
+    reader = new HprofReader(buffer);
+    this.index = index;
+    this.keptObjects = keptObjects;
+  }
+
+  void trim(DataOutputStream out) throws IOException {
+    reader.readHeader();
+    reader.copy(0, reader.position(), out);
+
+    while (reader.hasRemaining()) {
+      long recordPosition = reader.position();
+      int tag = reader.readUnsignedByte();
+      int timeOffset = reader.readInt();
+      long length = reader.readUnsignedInt();
+      long start = reader.position();
+      long end = start + length;
+      if (tag == HEAP_DUMP || tag == HEAP_DUMP_SEGMENT) {
+        out.writeByte(tag);
+        out.writeInt(timeOffset);
+        out.writeInt((int) trimHeapDump(start, end, null));
+        trimHeapDump(start, end, out);
+      } else {
+        reader.copy(recordPosition, end, out);
+      }
+      reader.setPosition(end);
+    }
+  }
+
+  /**
+   * Goes over the sub records of a heap dump record and copies the kept ones to out, if not null.
+   *
+   * @return the length of the kept sub records.
+   */
+  private long trimHeapDump(long start, long end, DataOutputStream out) throws IOException {
+    long keptLength = 0;
+    reader.setPosition(start);
+    while (reader.position() < end) {
+      long position = reader.position();
+      int tag = reader.readUnsignedByte();
+      // Every root and object sub record starts with the id of the object.
+      boolean keep =
+          tag == CLASS_DUMP || tag == ROOT_HEAP_DUMP_INFO || isKept(reader.readId());
+      reader.setPosition(position + 1);
+      reader.skipSubRecord(tag);
+      if (keep) {
+        long subRecordEnd = reader.position();
+        keptLength += subRecordEnd - position;
+        if (out != null) {
+          reader.copy(position, subRecordEnd, out);
+        }
+      }
+    }
+    return keptLength;
+  }
+
+  private boolean isKept(long id) {
+    int objectIndex = index.indexOf(id);
+    return objectIndex != -1
+        && (keptObjects.get(objectIndex) || index.tag(objectIndex) == CLASS_DUMP);
+  }
+}
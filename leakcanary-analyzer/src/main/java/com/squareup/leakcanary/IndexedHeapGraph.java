@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Instance;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntLongIterator;
+import gnu.trove.TObjectLongHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.squareup.leakcanary.BitmapNativeSizes.BITMAP_CLASS_NAME;
+import static com.squareup.leakcanary.HprofIndex.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndex.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndex.extendsThread;
+import static com.squareup.leakcanary.HprofIndex.hasField;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.ARRAY;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.CLASS;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.THREAD;
+import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
+import static com.squareup.leakcanary.LeakTraceElement.Type.LOCAL;
+
+/**
+ * {@link HeapGraph} of an {@link HprofIndex}, for {@link HeapAnalyzer.Backend#HPROF_INDEX}.
+ * Objects are referred to by their index. Like perflib's sentinel root, the virtual root that
+ * dominates the gc roots counts as a native root.
+ */
+final class IndexedHeapGraph implements HeapGraph<Integer> {
+
+  private final HprofIndex index;
+  private DominatorTree dominatorTree;
+  private int[] shortestPathParents;
+
+  IndexedHeapGraph(HprofIndex index) {
+    this.index = index;
+  }
+
+  @Override public Map<String, Integer> referentsByKey() {
+    return index.referentsByKey();
+  }
+
+  @Override public Map<Integer, LeakPath<Integer>> findPaths(ExcludedRefs excludedRefs,
+      Set<Integer> leakingObjects) {
+    IndexedShortestPathFinder pathFinder = new IndexedShortestPathFinder(excludedRefs);
+    Map<Integer, LeakPath<Integer>> paths = new LinkedHashMap<>();
+    for (Map.Entry<Integer, IndexedShortestPathFinder.Result> entry : pathFinder.findPaths(index,
+        leakingObjects).entrySet()) {
+      IndexedShortestPathFinder.Result result = entry.getValue();
+      if (result.leakingNode == null) {
+        continue;
+      }
+      List<PathReference<Integer>> references = new ArrayList<>();
+      // We iterate from the leak to the GC root
+      for (IndexedShortestPathFinder.Node node = result.leakingNode; node.parent != null;
+          node = node.parent) {
+        references.add(
+            new PathReference<>(node.parent.index, describeReference(node), node.exclusion));
+      }
+      Collections.reverse(references);
+      paths.put(entry.getKey(), new LeakPath<>(references, result.excludingKnownLeaks));
+    }
+    return paths;
+  }
+
+  /** Describes the reference from the parent of node to node, null if there is none. */
+  private LeakReference describeReference(IndexedShortestPathFinder.Node node) {
+    if (node.referenceType == null) {
+      return null;
+    }
+    String value = index.describe(index.objectId(node.index));
+    switch (node.referenceType) {
+      case LOCAL:
+        return new LeakReference(LOCAL, null, null);
+      case ARRAY_ENTRY:
+        return new LeakReference(ARRAY_ENTRY, Integer.toString(node.arrayIndex), value);
+      default:
+        return new LeakReference(node.referenceType, node.referenceName, value);
+    }
+  }
+
+  @Override public String className(Integer object) {
+    return index.className(object);
+  }
+
+  @Override public List<String> classHierarchy(Integer object) {
+    List<String> classHierarchy = new ArrayList<>();
+    classHierarchy.add(index.className(object));
+    String rootClassName = Object.class.getName();
+    if (index.tag(object) == INSTANCE_DUMP) {
+      HprofIndex.ClassInfo superClass = index.classOf(object);
+      while (!(superClass = superClass.superClass).name.equals(rootClassName)) {
+        classHierarchy.add(superClass.name);
+      }
+    }
+    return classHierarchy;
+  }
+
+  @Override public LeakTraceElement.Holder holderType(Integer object) {
+    int tag = index.tag(object);
+    if (tag == CLASS_DUMP) {
+      return CLASS;
+    } else if (tag != INSTANCE_DUMP) {
+      return ARRAY;
+    } else if (extendsThread(index.classOf(object))) {
+      return THREAD;
+    }
+    return OBJECT;
+  }
+
+  @Override public String threadName(Integer thread) {
+    return index.threadName(thread);
+  }
+
+  @Override public List<LeakReference> describeFields(Integer object) {
+    return index.describeFields(object);
+  }
+
+  @Override public long shallowSize(Integer object) {
+    return index.shallowSize(object);
+  }
+
+  @Override public void computeDominators() {
+    dominatorTree = DominatorTree.compute(index);
+  }
+
+  @Override public long retainedSize(Integer object) {
+    return dominatorTree.retainedSize(object);
+  }
+
+  @Override public Integer immediateDominator(Integer object) {
+    int immediateDominator = dominatorTree.immediateDominator(object);
+    return immediateDominator == DominatorTree.NO_DOMINATOR ? null : immediateDominator;
+  }
+
+  @Override public Integer shortestPathParent(Integer object) {
+    if (shortestPathParents == null) {
+      shortestPathParents = findShortestPathParents();
+    }
+    int parent = shortestPathParents[object];
+    return parent == -1 ? null : parent;
+  }
+
+  /**
+   * Returns the parent of each object on a shortest path from the gc roots, or -1 for the gc roots
+   * and unreachable objects, like {@link Instance#getNextInstanceToGcRoot()}.
+   */
+  private int[] findShortestPathParents() {
+    int[] parents = new int[index.objectCount()];
+    Arrays.fill(parents, -1);
+    BitSet reached = new BitSet(index.objectCount());
+    IntQueue toVisit = new IntQueue();
+    for (int root = 0; root < index.gcRootCount(); root++) {
+      int rootIndex = index.gcRootIndex(root);
+      if (!reached.get(rootIndex)) {
+        reached.set(rootIndex);
+        toVisit.add(rootIndex);
+      }
+    }
+    TIntArrayList references = new TIntArrayList();
+    while (!toVisit.isEmpty()) {
+      int objectIndex = toVisit.poll();
+      references.clear();
+      index.collectReferences(objectIndex, references);
+      for (int i = 0; i < references.size(); i++) {
+        int reference = references.get(i);
+        if (!reached.get(reference)) {
+          reached.set(reference);
+          parents[reference] = objectIndex;
+          toVisit.add(reference);
+        }
+      }
+    }
+    return parents;
+  }
+
+  @Override public List<Integer> bitmaps() {
+    int[] bitmaps = index.instancesOf(BITMAP_CLASS_NAME);
+    List<Integer> bitmapList = new ArrayList<>(bitmaps.length);
+    for (int bitmap : bitmaps) {
+      bitmapList.add(bitmap);
+    }
+    return bitmapList;
+  }
+
+  @Override public Integer bitmapBuffer(Integer bitmap) {
+    if (!hasField(index.classOf(bitmap), "mBuffer")) {
+      return null;
+    }
+    return index.fieldValue(bitmap, "mBuffer");
+  }
+
+  @Override public TObjectLongHashMap<Integer> nativeBitmapSizes() {
+    TObjectLongHashMap<Integer> nativeBitmapSizes = new TObjectLongHashMap<>();
+    for (TIntLongIterator iterator = BitmapNativeSizes.find(index).iterator();
+        iterator.hasNext();) {
+      iterator.advance();
+      nativeBitmapSizes.put(iterator.key(), iterator.value());
+    }
+    return nativeBitmapSizes;
+  }
+
+  @Override public RetainedObjectSearch<Integer> newRetainedObjectSearch(
+      Set<Integer> leakingObjects, int maxObjects) {
+    BitSet leakingIndexes = new BitSet(index.objectCount());
+    for (int leakingIndex : leakingObjects) {
+      leakingIndexes.set(leakingIndex);
+    }
+    final RetainedObjectFinder retainedObjectFinder =
+        new RetainedObjectFinder(index, leakingIndexes, maxObjects);
+    return new RetainedObjectSearch<Integer>() {
+      @Override public RetainedObjects<Integer> findRetainedObjects(Integer leakingIndex,
+          boolean ignoreNativeRoots) {
+        final BitSet retained =
+            retainedObjectFinder.findRetainedObjects(leakingIndex, ignoreNativeRoots);
+        final boolean truncated = retainedObjectFinder.truncated();
+        return new RetainedObjects<Integer>() {
+          @Override public boolean contains(Integer object) {
+            return retained.get(object);
+          }
+
+          @Override public long shallowSize() {
+            return retainedObjectFinder.shallowSize(retained);
+          }
+
+          @Override public boolean truncated() {
+            return truncated;
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Type;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongObjectHashMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.squareup.leakcanary.HahaHelper.WRAPPER_TYPES;
+import static com.squareup.leakcanary.HprofIndex.CLASS_DUMP;
+import static com.squareup.leakcanary.HprofIndex.INSTANCE_DUMP;
+import static com.squareup.leakcanary.HprofIndex.OBJECT_ARRAY_DUMP;
+import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
+import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
+import static com.squareup.leakcanary.LeakTraceElement.Type.LOCAL;
+import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
+
+/**
+ * Not thread safe.
+ *
+ * Same as {@link ShortestPathFinder}, but on a {@link HprofIndex}: the fields of an object are
+ * read from the heap dump when the object is visited. Objects are only referred to by their
+ * index: the queues hold indexes, and for each reached object the finder records the index of its
+ * parent, the reference type and the field or array index of the reference, and the exclusion if
+ * any. {@link Node}s are only created for the paths to the leaking objects, and values are only
+ * described when building the leak trace.
+ */
+final class IndexedShortestPathFinder {
+
+  private static final LeakTraceElement.Type[] REFERENCE_TYPES = LeakTraceElement.Type.values();
+  /** Stored in {@link #referenceTypes} for objects directly held by a gc root. */
+  private static final byte NO_REFERENCE = -1;
+
+  private final ExcludedRefs excludedRefs;
+  private final IntQueue toVisitQueue;
+  private final IntQueue toVisitIfNoPathQueue;
+  private final BitSet toVisitSet;
+  private final BitSet toVisitIfNoPathSet;
+  private final BitSet visitedSet;
+  /**
+   * Index of the object holding the reference to each reached object, or -1 for objects directly
+   * held by a gc root. For {@link LeakTraceElement.Type#LOCAL} references, the thread.
+   */
+  private int[] parents;
+  /** Ordinal of the {@link LeakTraceElement.Type} of the reference, or {@link #NO_REFERENCE}. */
+  private byte[] referenceTypes;
+  /**
+   * Static field index, instance field index across the class hierarchy or array index of the
+   * reference, see {@link #fieldName}.
+   */
+  private int[] edges;
+  private Exclusion[] exclusions;
+  /** Computed when the first instance of each class is visited. */
+  private final TLongObjectHashMap<InstanceExclusions> instanceExclusionsByClassId;
+  private HprofIndex index;
+  private boolean canIgnoreStrings;
+
+  IndexedShortestPathFinder(ExcludedRefs excludedRefs) {
+    this.excludedRefs = excludedRefs;
+    toVisitQueue = new IntQueue();
+    toVisitIfNoPathQueue = new IntQueue();
+    toVisitSet = new BitSet();
+    toVisitIfNoPathSet = new BitSet();
+    visitedSet = new BitSet();
+    instanceExclusionsByClassId = new TLongObjectHashMap<>();
+  }
+
+  /**
+   * An object on the path to a leaking object. The reference from the parent is described by a
+   * type, a field name and an array index, which are turned into a {@link LeakReference} only for
+   * the leak trace.
+   */
+  static final class Node {
+    /** May be null. */
+    final Exclusion exclusion;
+    final int index;
+    /** Null for objects directly held by a gc root. */
+    final Node parent;
+    /** Null if there is no parent. */
+    final LeakTraceElement.Type referenceType;
+    final String referenceName;
+    final int arrayIndex;
+
+    Node(Exclusion exclusion, int index, Node parent, LeakTraceElement.Type referenceType,
+        String referenceName, int arrayIndex) {
+      this.exclusion = exclusion;
+      this.index = index;
+      this.parent = parent;
+      this.referenceType = referenceType;
+      this.referenceName = referenceName;
+      this.arrayIndex = arrayIndex;
+    }
+  }
+
+  static final class Result {
+    final Node leakingNode;
+    final boolean excludingKnownLeaks;
+
+    Result(Node leakingNode, boolean excludingKnownLeaks) {
+      this.leakingNode = leakingNode;
+      this.excludingKnownLeaks = excludingKnownLeaks;
+    }
+  }
+
+  /**
+   * Returns a {@link Result} for each of the provided leaking object indexes, see
+   * {@link ShortestPathFinder#findPaths}.
+   */
+  Map<Integer, Result> findPaths(HprofIndex index, Set<Integer> leakingRefs) {
+    clearState(index.objectCount());
+    this.index = index;
+    BitSet leakingSet = new BitSet();
+    canIgnoreStrings = true;
+    for (int leakingRef : leakingRefs) {
+      leakingSet.set(leakingRef);
+      if (isString(leakingRef)) {
+        canIgnoreStrings = false;
+      }
+    }
+
+    enqueueGcRoots();
+
+    boolean excludingKnownLeaks = false;
+    Map<Integer, Result> results = new LinkedHashMap<>();
+    while (!toVisitQueue.isEmpty() || !toVisitIfNoPathQueue.isEmpty()) {
+      int objectIndex;
+      if (!toVisitQueue.isEmpty()) {
+        objectIndex = toVisitQueue.poll();
+      } else {
+        objectIndex = toVisitIfNoPathQueue.poll();
+        excludingKnownLeaks = true;
+        // Reached without exclusion while it was waiting in this queue.
+        if (visitedSet.get(objectIndex)) {
+          continue;
+        }
+        if (exclusions[objectIndex] == null) {
+          throw new IllegalStateException("Expected node to have an exclusion " + objectIndex);
+        }
+      }
+
+      // Termination
+      if (leakingSet.get(objectIndex) && !results.containsKey(objectIndex)) {
+        results.put(objectIndex, new Result(buildPath(objectIndex), excludingKnownLeaks));
+        if (results.size() == leakingRefs.size()) {
+          break;
+        }
+      }
+
+      if (visitedSet.get(objectIndex)) {
+        continue;
+      }
+      visitedSet.set(objectIndex);
+
+      int tag = index.tag(objectIndex);
+      if (tag == CLASS_DUMP) {
+        visitClass(objectIndex);
+      } else if (tag == INSTANCE_DUMP) {
+        visitInstance(objectIndex);
+      } else if (tag == OBJECT_ARRAY_DUMP) {
+        visitObjectArray(objectIndex);
+      }
+    }
+    for (int leakingRef : leakingRefs) {
+      if (!results.containsKey(leakingRef)) {
+        results.put(leakingRef, new Result(null, excludingKnownLeaks));
+      }
+    }
+    this.index = null;
+    return results;
+  }
+
+  private void clearState(int objectCount) {
+    toVisitQueue.clear();
+    toVisitIfNoPathQueue.clear();
+    toVisitSet.clear();
+    toVisitIfNoPathSet.clear();
+    visitedSet.clear();
+    instanceExclusionsByClassId.clear();
+    // Only entries of enqueued objects are read, so stale entries don't need to be cleared.
+    if (parents == null || parents.length < objectCount) {
+      parents = new int[objectCount];
+      referenceTypes = new byte[objectCount];
+      edges = new int[objectCount];
+      exclusions = new Exclusion[objectCount];
+    }
+  }
+
+  private void enqueueGcRoots() {
+    for (int root = 0; root < index.gcRootCount(); root++) {
+      RootType rootType = index.gcRootType(root);
+      int child = index.gcRootIndex(root);
+      switch (rootType) {
+        case JAVA_LOCAL:
+          int thread = index.gcRootThreadIndex(root);
+          if (thread == -1) {
+            enqueue(null, -1, child, null, -1);
+            break;
+          }
+          String threadName = index.threadName(thread);
+          Exclusion params = excludedRefs.threadNames.get(threadName);
+          if (params == null || !params.alwaysExclude) {
+            // The thread that holds the local reference is the parent.
+            enqueue(params, thread, child, LOCAL, -1);
+          }
+          break;
+        case INTERNED_STRING:
+        case DEBUGGER:
+        case INVALID_TYPE:
+          // An object that is unreachable from any other root, but not a root itself.
+        case UNREACHABLE:
+        case UNKNOWN:
+          // An object that is in a queue, waiting for a finalizer to run.
+        case FINALIZING:
+          break;
+        case SYSTEM_CLASS:
+        case VM_INTERNAL:
+          // A local variable in native code.
+        case NATIVE_LOCAL:
+          // A global variable in native code.
+        case NATIVE_STATIC:
+          // An object that was referenced from an active thread block.
+        case THREAD_BLOCK:
+          // Everything that called the wait() or notify() methods, or that is synchronized.
+        case BUSY_MONITOR:
+        case NATIVE_MONITOR:
+        case REFERENCE_CLEANUP:
+          // Input or output parameters in native code.
+        case NATIVE_STACK:
+        case JAVA_STATIC:
+          enqueue(null, -1, child, null, -1);
+          break;
+        default:
+          throw new UnsupportedOperationException("Unknown root type:" + rootType);
+      }
+    }
+  }
+
+  private void visitClass(int parent) {
+    HprofIndex.ClassInfo classInfo = index.asClass(parent);
+    Map<String, Exclusion> ignoredStaticFields =
+        excludedRefs.staticFieldNameByClassName.get(classInfo.name);
+    for (int i = 0; i < classInfo.staticFields.length; i++) {
+      if (classInfo.staticFields[i].getType() != Type.OBJECT) {
+        continue;
+      }
+      String fieldName = classInfo.staticFields[i].getName();
+      if (fieldName.equals("$staticOverhead")) {
+        continue;
+      }
+      int child = index.indexOf(classInfo.staticFieldValues[i]);
+      boolean visit = true;
+      if (ignoredStaticFields != null) {
+        Exclusion params = ignoredStaticFields.get(fieldName);
+        if (params != null) {
+          visit = false;
+          if (!params.alwaysExclude) {
+            enqueue(params, parent, child, STATIC_FIELD, i);
+          }
+        }
+      }
+      if (visit) {
+        enqueue(null, parent, child, STATIC_FIELD, i);
+      }
+    }
+  }
+
+  private void visitInstance(int parent) {
+    HprofIndex.ClassInfo classInfo = index.classOf(parent);
+    if (classInfo == null) {
+      return;
+    }
+    InstanceExclusions exclusions = instanceExclusions(classInfo);
+    if (exclusions.alwaysExcluded()) {
+      return;
+    }
+
+    long position = index.instanceFieldsPosition(parent);
+    int fieldIndex = 0;
+    for (HprofIndex.ClassInfo current = classInfo; current != null;
+        current = current.superClass) {
+      for (int i = 0; i < current.fields.length; i++, fieldIndex++) {
+        Type type = current.fields[i].getType();
+        if (type == Type.OBJECT) {
+          int child = index.indexOf(index.readId(position));
+          enqueue(exclusions.fieldExclusions[fieldIndex], parent, child, INSTANCE_FIELD,
+              fieldIndex);
+        }
+        position += index.sizeOf(type);
+      }
+    }
+  }
+
+  private InstanceExclusions instanceExclusions(HprofIndex.ClassInfo classInfo) {
+    InstanceExclusions exclusions = instanceExclusionsByClassId.get(classInfo.id);
+    if (exclusions == null) {
+      List<String> classNames = new ArrayList<>();
+      List<Field[]> fields = new ArrayList<>();
+      for (HprofIndex.ClassInfo current = classInfo; current != null;
+          current = current.superClass) {
+        classNames.add(current.name);
+        fields.add(current.fields);
+      }
+      exclusions = InstanceExclusions.create(excludedRefs, classNames, fields);
+      instanceExclusionsByClassId.put(classInfo.id, exclusions);
+    }
+    return exclusions;
+  }
+
+  private void visitObjectArray(int parent) {
+    int length = index.arrayLength(parent);
+    long position = index.objectArrayElementsPosition(parent);
+    int idSize = index.idSize();
+    for (int i = 0; i < length; i++) {
+      int child = index.indexOf(index.readId(position + (long) i * idSize));
+      enqueue(null, parent, child, ARRAY_ENTRY, i);
+    }
+  }
+
+  private void enqueue(Exclusion exclusion, int parent, int child,
+      LeakTraceElement.Type referenceType, int edge) {
+    if (child == -1) {
+      return;
+    }
+    // Whether we want to visit now or later, we should skip if this is already to visit.
+    if (toVisitSet.get(child)) {
+      return;
+    }
+    boolean visitNow = exclusion == null;
+    if (!visitNow && toVisitIfNoPathSet.get(child)) {
+      return;
+    }
+    if (visitedSet.get(child)) {
+      return;
+    }
+    // Checked last as it reads the heap dump.
+    if (isIgnoredType(child)) {
+      return;
+    }
+    // An object waiting to be visited if there's no path gets the parent of the path without
+    // exclusion.
+    parents[child] = parent;
+    referenceTypes[child] = referenceType == null ? NO_REFERENCE : (byte) referenceType.ordinal();
+    edges[child] = edge;
+    exclusions[child] = exclusion;
+    if (visitNow) {
+      toVisitSet.set(child);
+      toVisitQueue.add(child);
+    } else {
+      toVisitIfNoPathSet.set(child);
+      toVisitIfNoPathQueue.add(child);
+    }
+  }
+
+  /**
+   * Creates the nodes from a gc root to objectIndex. The recorded parents of visited objects don't
+   * change, so they can't form a cycle.
+   */
+  private Node buildPath(int objectIndex) {
+    TIntArrayList path = new TIntArrayList();
+    boolean heldByThread = false;
+    for (int current = objectIndex; current != -1 && !heldByThread; current = parents[current]) {
+      path.add(current);
+      heldByThread = referenceTypes[current] == LOCAL.ordinal();
+    }
+    int last = path.size() - 1;
+    Node node;
+    if (heldByThread) {
+      // The thread is the first node, whatever its own parent.
+      node = new Node(null, parents[path.get(last)], null, null, null, -1);
+    } else {
+      node = new Node(exclusions[path.get(last)], path.get(last), null, null, null, -1);
+      last--;
+    }
+    for (int i = last; i >= 0; i--) {
+      int current = path.get(i);
+      LeakTraceElement.Type referenceType = REFERENCE_TYPES[referenceTypes[current]];
+      String referenceName = null;
+      int arrayIndex = -1;
+      if (referenceType == ARRAY_ENTRY) {
+        arrayIndex = edges[current];
+      } else if (referenceType != LOCAL) {
+        referenceName = fieldName(node.index, referenceType, edges[current]);
+      }
+      node = new Node(exclusions[current], current, node, referenceType, referenceName,
+          arrayIndex);
+    }
+    return node;
+  }
+
+  private String fieldName(int parent, LeakTraceElement.Type referenceType, int fieldIndex) {
+    if (referenceType == STATIC_FIELD) {
+      return index.asClass(parent).staticFields[fieldIndex].getName();
+    }
+    for (HprofIndex.ClassInfo current = index.classOf(parent); current != null;
+        current = current.superClass) {
+      if (fieldIndex < current.fields.length) {
+        return current.fields[fieldIndex].getName();
+      }
+      fieldIndex -= current.fields.length;
+    }
+    throw new IllegalStateException("No field " + fieldIndex + " in " + index.className(parent));
+  }
+
+  /** Primitive arrays, primitive wrappers and their arrays, and strings if possible. */
+  private boolean isIgnoredType(int objectIndex) {
+    int tag = index.tag(objectIndex);
+    if (tag == CLASS_DUMP) {
+      return false;
+    } else if (tag == OBJECT_ARRAY_DUMP) {
+      return WRAPPER_TYPES.contains(index.className(objectIndex));
+    } else if (tag != INSTANCE_DUMP) {
+      return true;
+    }
+    HprofIndex.ClassInfo classInfo = index.classOf(objectIndex);
+    if (classInfo == null) {
+      return false;
+    }
+    return WRAPPER_TYPES.contains(classInfo.name) || (canIgnoreStrings && classInfo.name.equals(
+        String.class.getName()));
+  }
+
+  private boolean isString(int objectIndex) {
+    if (index.tag(objectIndex) != INSTANCE_DUMP) {
+      return false;
+    }
+    HprofIndex.ClassInfo classInfo = index.classOf(objectIndex);
+    return classInfo != null && classInfo.name.equals(String.class.getName());
+  }
+}
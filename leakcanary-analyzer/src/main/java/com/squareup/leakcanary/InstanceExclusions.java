@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link ExcludedRefs} that apply to the instances of a class, resolved once per class so that
+ * visiting an instance doesn't look up class and field names.
+ */
+final class InstanceExclusions {
+
+  /** Exclusion of the class or of one of its super classes, may be null. */
+  final Exclusion classExclusion;
+  /**
+   * Exclusion of each instance field, in the order of the field values of an instance: the fields
+   * of the class, then the fields of each super class. Null for fields that aren't excluded.
+   */
+  final Exclusion[] fieldExclusions;
+
+  private InstanceExclusions(Exclusion classExclusion, Exclusion[] fieldExclusions) {
+    this.classExclusion = classExclusion;
+    this.fieldExclusions = fieldExclusions;
+  }
+
+  /** True if the fields of the instances should never be followed. */
+  boolean alwaysExcluded() {
+    return classExclusion != null && classExclusion.alwaysExclude;
+  }
+
+  /**
+   * @param classNames the name of the class, then of each super class.
+   * @param fields the instance fields declared by each class in classNames.
+   */
+  static InstanceExclusions create(ExcludedRefs excludedRefs, List<String> classNames,
+      List<Field[]> fields) {
+    Map<String, Exclusion> ignoredFields = new LinkedHashMap<>();
+    Exclusion classExclusion = null;
+    int fieldCount = 0;
+    for (int i = 0; i < classNames.size(); i++) {
+      String className = classNames.get(i);
+      Exclusion params = excludedRefs.classNames.get(className);
+      if (params != null) {
+        // true overrides null or false.
+        if (classExclusion == null || !classExclusion.alwaysExclude) {
+          classExclusion = params;
+        }
+      }
+      Map<String, Exclusion> classIgnoredFields = excludedRefs.fieldNameByClassName.get(className);
+      if (classIgnoredFields != null) {
+        ignoredFields.putAll(classIgnoredFields);
+      }
+      fieldCount += fields.get(i).length;
+    }
+
+    Exclusion[] fieldExclusions = new Exclusion[fieldCount];
+    int fieldIndex = 0;
+    for (Field[] classFields : fields) {
+      for (Field field : classFields) {
+        Exclusion fieldExclusion = classExclusion;
+        Exclusion params = ignoredFields.get(field.getName());
+        // If we found a field exclusion and it's stronger than a class exclusion
+        if (params != null && (fieldExclusion == null || (params.alwaysExclude
+            && !fieldExclusion.alwaysExclude))) {
+          fieldExclusion = params;
+        }
+        fieldExclusions[fieldIndex++] = fieldExclusion;
+      }
+    }
+    return new InstanceExclusions(classExclusion, fieldExclusions);
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.NoSuchElementException;
+
+/**
+ * FIFO queue of ints stored in a ring buffer that doubles when full. Unlike a
+ * {@code Deque<Integer>}, it allocates nothing per element.
+ *
+ * Not thread safe.
+ */
+final class IntQueue {
+
+  private int[] elements;
+  private int head;
+  private int size;
+
+  IntQueue() {
+    this(16);
+  }
+
+  IntQueue(int initialCapacity) {
+    if (initialCapacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1, not " + initialCapacity);
+    }
+    elements = new int[initialCapacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void add(int element) {
+    if (size == elements.length) {
+      grow();
+    }
+    elements[(head + size) % elements.length] = element;
+    size++;
+  }
+
+  int poll() {
+    if (size == 0) {
+      throw new NoSuchElementException();
+    }
+    int element = elements[head];
+    head = (head + 1) % elements.length;
+    size--;
+    return element;
+  }
+
+  void clear() {
+    head = 0;
+    size = 0;
+  }
+
+  private void grow() {
+    int[] grown = new int[elements.length * 2];
+    int firstPart = elements.length - head;
+    System.arraycopy(elements, head, grown, 0, firstPart);
+    System.arraycopy(elements, 0, grown, firstPart, head);
+    elements = grown;
+    head = 0;
+  }
+}
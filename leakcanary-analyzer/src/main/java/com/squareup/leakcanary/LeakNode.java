@@ -17,17 +17,30 @@ package com.squareup.leakcanary;
 
 import com.squareup.haha.perflib.Instance;
 
+/**
+ * An object reached by {@link ShortestPathFinder}. The reference from the parent is kept as a
+ * type and a position in the parent, and only described for the leak trace, see
+ * {@link HeapAnalyzer}.
+ */
 final class LeakNode {
   /** May be null. */
   final Exclusion exclusion;
   final Instance instance;
   final LeakNode parent;
-  final LeakReference leakReference;
+  /** Null if there is no parent. */
+  final LeakTraceElement.Type referenceType;
+  /**
+   * Position of the reference in the static field values of the parent class, in the field values
+   * of the parent instance or in the parent array. -1 for other reference types.
+   */
+  final int referenceIndex;
 
-  LeakNode(Exclusion exclusion, Instance instance, LeakNode parent, LeakReference leakReference) {
+  LeakNode(Exclusion exclusion, Instance instance, LeakNode parent,
+      LeakTraceElement.Type referenceType, int referenceIndex) {
     this.exclusion = exclusion;
     this.instance = instance;
     this.parent = parent;
-    this.leakReference = leakReference;
+    this.referenceType = referenceType;
+    this.referenceIndex = referenceIndex;
   }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys to int values, stored in two parallel arrays with open addressing and linear
+ * probing. Unlike a {@code Map<Long, Integer>}, it allocates nothing per entry: 12 bytes per slot
+ * and at least 1.5 slots per entry.
+ *
+ * Not thread safe.
+ */
+final class LongIntMap {
+
+  /** Marks empty slots. The entry for key 0, if any, is stored out of the arrays. */
+  private static final long FREE_KEY = 0;
+  private static final float LOAD_FACTOR = 0.66f;
+
+  private long[] keys;
+  private int[] values;
+  private int mask;
+  private int threshold;
+  private int size;
+  private boolean hasFreeKey;
+  private int freeKeyValue;
+
+  LongIntMap() {
+    this(16);
+  }
+
+  LongIntMap(int expectedSize) {
+    allocate(LongSet.capacityFor(expectedSize, LOAD_FACTOR));
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean containsKey(long key) {
+    if (key == FREE_KEY) {
+      return hasFreeKey;
+    }
+    return keys[slot(key)] != FREE_KEY;
+  }
+
+  /** Returns the value mapped to key, or missingValue if there is none. */
+  int get(long key, int missingValue) {
+    if (key == FREE_KEY) {
+      return hasFreeKey ? freeKeyValue : missingValue;
+    }
+    int slot = slot(key);
+    return keys[slot] == FREE_KEY ? missingValue : values[slot];
+  }
+
+  void put(long key, int value) {
+    if (key == FREE_KEY) {
+      if (!hasFreeKey) {
+        hasFreeKey = true;
+        size++;
+      }
+      freeKeyValue = value;
+      return;
+    }
+    int slot = slot(key);
+    values[slot] = value;
+    if (keys[slot] == FREE_KEY) {
+      keys[slot] = key;
+      if (++size > threshold) {
+        rehash(keys.length * 2);
+      }
+    }
+  }
+
+  void clear() {
+    Arrays.fill(keys, FREE_KEY);
+    hasFreeKey = false;
+    size = 0;
+  }
+
+  /** Returns the slot that holds key, or the free slot where it should be inserted. */
+  private int slot(long key) {
+    int slot = LongSet.hash(key) & mask;
+    while (keys[slot] != FREE_KEY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+    threshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      long key = oldKeys[i];
+      if (key != FREE_KEY) {
+        int slot = slot(key);
+        keys[slot] = key;
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
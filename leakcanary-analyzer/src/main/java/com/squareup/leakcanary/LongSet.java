@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.Arrays;
+
+/**
+ * Set of longs stored in an array with open addressing and linear probing. Unlike a
+ * {@code Set<Long>}, it allocates nothing per element: 8 bytes per slot and at least 1.5 slots per
+ * element.
+ *
+ * Not thread safe.
+ */
+final class LongSet {
+
+  /** Marks empty slots. Whether 0 is in the set is stored out of the array. */
+  private static final long FREE_KEY = 0;
+  private static final float LOAD_FACTOR = 0.66f;
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  private long[] keys;
+  private int mask;
+  private int threshold;
+  private int size;
+  private boolean hasFreeKey;
+
+  LongSet() {
+    this(16);
+  }
+
+  LongSet(int expectedSize) {
+    allocate(capacityFor(expectedSize, LOAD_FACTOR));
+  }
+
+  LongSet(LongSet other) {
+    keys = other.keys.clone();
+    mask = other.mask;
+    threshold = other.threshold;
+    size = other.size;
+    hasFreeKey = other.hasFreeKey;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean contains(long key) {
+    if (key == FREE_KEY) {
+      return hasFreeKey;
+    }
+    return keys[slot(key)] != FREE_KEY;
+  }
+
+  /** Returns true if the set did not already contain key. */
+  boolean add(long key) {
+    if (key == FREE_KEY) {
+      if (hasFreeKey) {
+        return false;
+      }
+      hasFreeKey = true;
+      size++;
+      return true;
+    }
+    int slot = slot(key);
+    if (keys[slot] != FREE_KEY) {
+      return false;
+    }
+    keys[slot] = key;
+    if (++size > threshold) {
+      rehash(keys.length * 2);
+    }
+    return true;
+  }
+
+  void clear() {
+    Arrays.fill(keys, FREE_KEY);
+    hasFreeKey = false;
+    size = 0;
+  }
+
+  private int slot(long key) {
+    int slot = hash(key) & mask;
+    while (keys[slot] != FREE_KEY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    mask = capacity - 1;
+    threshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    allocate(capacity);
+    for (long key : oldKeys) {
+      if (key != FREE_KEY) {
+        keys[slot(key)] = key;
+      }
+    }
+  }
+
+  /**
+   * Spreads the bits of key. Object ids are aligned addresses, so their low bits are mostly
+   * constant.
+   */
+  static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /** Returns the power of two capacity needed to hold expectedSize keys. */
+  static int capacityFor(int expectedSize, float loadFactor) {
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("Negative expected size " + expectedSize);
+    }
+    long needed = (long) Math.ceil(expectedSize / (double) loadFactor) + 1;
+    int capacity = 2;
+    while (capacity < needed) {
+      if (capacity == MAX_CAPACITY) {
+        throw new IllegalArgumentException("Expected size too large " + expectedSize);
+      }
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.RootType;
+import gnu.trove.TIntArrayList;
+import java.util.BitSet;
+
+/**
+ * Finds the objects retained by an object, i.e. the objects it dominates, without building a
+ * dominator tree. An object is retained by the leaking instance if it's reachable from the leaking
+ * instance and not reachable from the gc roots through paths that avoid the leaking instance, so
+ * this takes two linear passes over the heap. The retained size is the sum of the shallow sizes of
+ * these objects, which is what a dominator tree gives.
+ *
+ * When several leaking objects are known upfront, the traversal from the gc roots that avoids all
+ * of them is done once and shared by their searches. Each search then only traverses again the
+ * objects that are reachable through the other leaking objects.
+ *
+ * The traversal from an object can be bounded to maxObjects objects, in which case the objects
+ * found are only part of the retained objects. The traversal from the gc roots isn't bounded.
+ *
+ * Not thread safe.
+ */
+final class RetainedObjectFinder {
+
+  private final HprofIndex index;
+  private final BitSet leakingObjects;
+  private final int maxObjects;
+  private final TIntArrayList toVisit = new TIntArrayList();
+  private final TIntArrayList references = new TIntArrayList();
+  /** Indexed by ignoreNativeRoots, computed on first use. */
+  private final RootReachability[] rootReachabilities = new RootReachability[2];
+  private boolean truncated;
+
+  RetainedObjectFinder(HprofIndex index) {
+    this(index, new BitSet(), Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param leakingObjects the objects that share the traversal from the gc roots. Searches from
+   * other objects work too, they just traverse the heap from the gc roots again.
+   * @param maxObjects maximum number of objects returned by each search.
+   */
+  RetainedObjectFinder(HprofIndex index, BitSet leakingObjects, int maxObjects) {
+    if (maxObjects < 1) {
+      throw new IllegalArgumentException("maxObjects must be at least 1, not " + maxObjects);
+    }
+    this.index = index;
+    this.leakingObjects = leakingObjects;
+    this.maxObjects = maxObjects;
+  }
+
+  /**
+   * Returns the indexes of the objects retained by leakingIndex, including itself. If there are
+   * more than maxObjects, returns maxObjects of them and {@link #truncated()} becomes true.
+   */
+  BitSet findRetainedObjects(int leakingIndex) {
+    return findRetainedObjects(leakingIndex, false);
+  }
+
+  /**
+   * @param ignoreNativeRoots if true, objects held by native gc roots ({@link RootType#UNKNOWN})
+   * are also retained if they are otherwise only reachable through leakingIndex.
+   */
+  BitSet findRetainedObjects(int leakingIndex, boolean ignoreNativeRoots) {
+    BitSet reached;
+    if (leakingObjects.get(leakingIndex)) {
+      RootReachability rootReachability = rootReachability(ignoreNativeRoots);
+      reached = (BitSet) rootReachability.reached.clone();
+      reached.set(leakingIndex);
+      // Whatever the other leaking objects reach is reachable without going through this one.
+      BitSet reachedLeakingObjects = rootReachability.reachedLeakingObjects;
+      for (int i = reachedLeakingObjects.nextSetBit(0); i >= 0;
+          i = reachedLeakingObjects.nextSetBit(i + 1)) {
+        enqueue(i, reached, null);
+      }
+    } else {
+      reached = new BitSet(index.objectCount());
+      // Marking the leaking instance as reached first keeps the traversal from the gc roots from
+      // going through it.
+      reached.set(leakingIndex);
+      enqueueRoots(reached, ignoreNativeRoots, null);
+    }
+    visitAll(reached, null, Integer.MAX_VALUE);
+
+    // Whatever is reached from now on is only reachable through the leaking instance.
+    BitSet reachedWithoutLeak = (BitSet) reached.clone();
+    toVisit.add(leakingIndex);
+    truncated = visitAll(reached, null, maxObjects - 1);
+    reached.andNot(reachedWithoutLeak);
+    reached.set(leakingIndex);
+    return reached;
+  }
+
+  /** Whether the last search of this finder stopped at maxObjects. */
+  boolean truncated() {
+    return truncated;
+  }
+
+  /** Returns the sum of the shallow sizes of objects. */
+  long shallowSize(BitSet objects) {
+    long size = 0;
+    for (int i = objects.nextSetBit(0); i >= 0; i = objects.nextSetBit(i + 1)) {
+      size += index.shallowSize(i);
+    }
+    return size;
+  }
+
+  private RootReachability rootReachability(boolean ignoreNativeRoots) {
+    int cacheIndex = ignoreNativeRoots ? 1 : 0;
+    if (rootReachabilities[cacheIndex] == null) {
+      BitSet reached = new BitSet(index.objectCount());
+      BitSet reachedLeakingObjects = new BitSet(index.objectCount());
+      enqueueRoots(reached, ignoreNativeRoots, reachedLeakingObjects);
+      visitAll(reached, reachedLeakingObjects, Integer.MAX_VALUE);
+      rootReachabilities[cacheIndex] = new RootReachability(reached, reachedLeakingObjects);
+    }
+    return rootReachabilities[cacheIndex];
+  }
+
+  private void enqueueRoots(BitSet reached, boolean ignoreNativeRoots,
+      BitSet reachedLeakingObjects) {
+    for (int root = 0; root < index.gcRootCount(); root++) {
+      if (ignoreNativeRoots && index.gcRootType(root) == RootType.UNKNOWN) {
+        continue;
+      }
+      enqueue(index.gcRootIndex(root), reached, reachedLeakingObjects);
+    }
+  }
+
+  /**
+   * @param reachedLeakingObjects if not null, the leaking objects aren't traversed, they're added
+   * to reachedLeakingObjects instead.
+   */
+  private boolean enqueue(int objectIndex, BitSet reached, BitSet reachedLeakingObjects) {
+    if (reached.get(objectIndex)) {
+      return false;
+    }
+    if (reachedLeakingObjects != null && leakingObjects.get(objectIndex)) {
+      reachedLeakingObjects.set(objectIndex);
+      return false;
+    }
+    reached.set(objectIndex);
+    toVisit.add(objectIndex);
+    return true;
+  }
+
+  /**
+   * Visits the objects to visit and the objects they reach, until maxEnqueued new objects have
+   * been reached. Returns true if there were more.
+   */
+  private boolean visitAll(BitSet reached, BitSet reachedLeakingObjects, int maxEnqueued) {
+    int enqueued = 0;
+    while (!toVisit.isEmpty()) {
+      int objectIndex = toVisit.remove(toVisit.size() - 1);
+      references.clear();
+      index.collectReferences(objectIndex, references);
+      for (int i = 0; i < references.size(); i++) {
+        int reference = references.get(i);
+        if (enqueued == maxEnqueued && !reached.get(reference)) {
+          toVisit.clear();
+          return true;
+        }
+        if (enqueue(reference, reached, reachedLeakingObjects)) {
+          enqueued++;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** The objects reachable from the gc roots without going through the leaking objects. */
+  private static final class RootReachability {
+    final BitSet reached;
+    /** The leaking objects directly referenced by reached objects or by gc roots. */
+    final BitSet reachedLeakingObjects;
+
+    RootReachability(BitSet reached, BitSet reachedLeakingObjects) {
+      this.reached = reached;
+      this.reachedLeakingObjects = reachedLeakingObjects;
+    }
+  }
+}
@@ -25,11 +25,15 @@ import com.squareup.haha.perflib.RootObj;
 import com.squareup.haha.perflib.RootType;
 import com.squareup.haha.perflib.Snapshot;
 import com.squareup.haha.perflib.Type;
+import gnu.trove.TLongObjectHashMap;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Deque;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static com.squareup.leakcanary.HahaHelper.isPrimitiveOrWrapperArray;
 import static com.squareup.leakcanary.HahaHelper.isPrimitiveWrapper;
@@ -42,27 +46,40 @@ import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
 /**
  * Not thread safe.
  *
- * Finds the shortest path from a leaking reference to a gc root, ignoring excluded
+ * Finds the shortest path from leaking references to a gc root, ignoring excluded
  * refs first and then including the ones that are not "always ignorable" as needed if no path is
- * found.
+ * found. Several leaking references can be searched for in a single traversal.
+ *
+ * This is a single pass 0-1 breadth first search where excluded references cost 1: toVisitQueue
+ * holds the objects at the current number of excluded references, toVisitIfNoPathQueue the
+ * objects one excluded reference further, in order. Each object is visited once, so finding a
+ * leak that is only reachable through excluded references costs one traversal of the objects
+ * reachable without them, which any search for the path with the fewest excluded references has
+ * to do before it can rule out a path without them.
  */
 final class ShortestPathFinder {
 
   private final ExcludedRefs excludedRefs;
   private final Deque<LeakNode> toVisitQueue;
   private final Deque<LeakNode> toVisitIfNoPathQueue;
-  private final LinkedHashSet<Instance> toVisitSet;
-  private final LinkedHashSet<Instance> toVisitIfNoPathSet;
-  private final LinkedHashSet<Instance> visitedSet;
+  /** Dense index of each instance seen so far, by id. Indexes the bit sets below. */
+  private final LongIntMap instanceIndexes;
+  private final BitSet toVisitSet;
+  private final BitSet toVisitIfNoPathSet;
+  private final BitSet visitedSet;
+  /** Computed when the first instance of each class is visited. */
+  private final TLongObjectHashMap<InstanceExclusions> instanceExclusionsByClassId;
   private boolean canIgnoreStrings;
 
   ShortestPathFinder(ExcludedRefs excludedRefs) {
     this.excludedRefs = excludedRefs;
     toVisitQueue = new ArrayDeque<>();
     toVisitIfNoPathQueue = new ArrayDeque<>();
-    toVisitSet = new LinkedHashSet<>();
-    toVisitIfNoPathSet = new LinkedHashSet<>();
-    visitedSet = new LinkedHashSet<>();
+    instanceIndexes = new LongIntMap();
+    toVisitSet = new BitSet();
+    toVisitIfNoPathSet = new BitSet();
+    visitedSet = new BitSet();
+    instanceExclusionsByClassId = new TLongObjectHashMap<>();
   }
 
   static final class Result {
@@ -75,14 +92,25 @@ final class ShortestPathFinder {
     }
   }
 
-  Result findPath(Snapshot snapshot, Instance leakingRef) {
+  /**
+   * Returns a {@link Result} for each of the provided leaking references. The traversal stops as
+   * soon as all of them have been reached. A leaking reference found along the way is still
+   * visited, as it may hold the path to another one.
+   */
+  Map<Instance, Result> findPaths(Snapshot snapshot, Set<Instance> leakingRefs) {
     clearState();
-    canIgnoreStrings = !isString(leakingRef);
+    canIgnoreStrings = true;
+    for (Instance leakingRef : leakingRefs) {
+      if (isString(leakingRef)) {
+        canIgnoreStrings = false;
+        break;
+      }
+    }
 
     enqueueGcRoots(snapshot);
 
     boolean excludingKnownLeaks = false;
-    LeakNode leakingNode = null;
+    Map<Instance, Result> results = new LinkedHashMap<>();
     while (!toVisitQueue.isEmpty() || !toVisitIfNoPathQueue.isEmpty()) {
       LeakNode node;
       if (!toVisitQueue.isEmpty()) {
@@ -96,9 +124,11 @@ final class ShortestPathFinder {
       }
 
       // Termination
-      if (node.instance == leakingRef) {
-        leakingNode = node;
-        break;
+      if (leakingRefs.contains(node.instance) && !results.containsKey(node.instance)) {
+        results.put(node.instance, new Result(node, excludingKnownLeaks));
+        if (results.size() == leakingRefs.size()) {
+          break;
+        }
       }
 
       if (checkSeen(node)) {
@@ -117,15 +147,22 @@ final class ShortestPathFinder {
         throw new IllegalStateException("Unexpected type for " + node.instance);
       }
     }
-    return new Result(leakingNode, excludingKnownLeaks);
+    for (Instance leakingRef : leakingRefs) {
+      if (!results.containsKey(leakingRef)) {
+        results.put(leakingRef, new Result(null, excludingKnownLeaks));
+      }
+    }
+    return results;
   }
 
   private void clearState() {
     toVisitQueue.clear();
     toVisitIfNoPathQueue.clear();
+    instanceIndexes.clear();
     toVisitSet.clear();
     toVisitIfNoPathSet.clear();
     visitedSet.clear();
+    instanceExclusionsByClassId.clear();
   }
 
   private void enqueueGcRoots(Snapshot snapshot) {
@@ -136,7 +173,7 @@ final class ShortestPathFinder {
           String threadName = threadName(thread);
           Exclusion params = excludedRefs.threadNames.get(threadName);
           if (params == null || !params.alwaysExclude) {
-            enqueue(params, null, rootObj, null);
+            enqueue(params, null, rootObj, null, -1);
           }
           break;
         case INTERNED_STRING:
@@ -163,7 +200,7 @@ final class ShortestPathFinder {
           // Input or output parameters in native code.
         case NATIVE_STACK:
         case JAVA_STATIC:
-          enqueue(null, null, rootObj, null);
+          enqueue(null, null, rootObj, null, -1);
           break;
         default:
           throw new UnsupportedOperationException("Unknown root type:" + rootObj.getRootType());
@@ -172,7 +209,25 @@ final class ShortestPathFinder {
   }
 
   private boolean checkSeen(LeakNode node) {
-    return !visitedSet.add(node.instance);
+    if (node.instance instanceof RootObj) {
+      return false;
+    }
+    int index = indexOf(node.instance);
+    if (visitedSet.get(index)) {
+      return true;
+    }
+    visitedSet.set(index);
+    return false;
+  }
+
+  private int indexOf(Instance instance) {
+    long id = instance.getId();
+    int index = instanceIndexes.get(id, -1);
+    if (index == -1) {
+      index = instanceIndexes.size();
+      instanceIndexes.put(id, index);
+    }
+    return index;
   }
 
   private void visitRootObj(LeakNode node) {
@@ -187,10 +242,10 @@ final class ShortestPathFinder {
       if (node.exclusion != null) {
         exclusion = node.exclusion;
       }
-      LeakNode parent = new LeakNode(null, holder, null, null);
-      enqueue(exclusion, parent, child, new LeakReference(LOCAL, null, null));
+      LeakNode parent = new LeakNode(null, holder, null, null, -1);
+      enqueue(exclusion, parent, child, LOCAL, -1);
     } else {
-      enqueue(null, node, child, null);
+      enqueue(null, node, child, null, -1);
     }
   }
 
@@ -198,7 +253,9 @@ final class ShortestPathFinder {
     ClassObj classObj = (ClassObj) node.instance;
     Map<String, Exclusion> ignoredStaticFields =
         excludedRefs.staticFieldNameByClassName.get(classObj.getClassName());
+    int fieldIndex = -1;
     for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
+      fieldIndex++;
       Field field = entry.getKey();
       if (field.getType() != Type.OBJECT) {
         continue;
@@ -209,65 +266,52 @@ final class ShortestPathFinder {
       }
       Instance child = (Instance) entry.getValue();
       boolean visit = true;
-      String fieldValue = entry.getValue() == null ? "null" : entry.getValue().toString();
-      LeakReference leakReference = new LeakReference(STATIC_FIELD, fieldName, fieldValue);
       if (ignoredStaticFields != null) {
         Exclusion params = ignoredStaticFields.get(fieldName);
         if (params != null) {
           visit = false;
           if (!params.alwaysExclude) {
-            enqueue(params, node, child, leakReference);
+            enqueue(params, node, child, STATIC_FIELD, fieldIndex);
           }
         }
       }
       if (visit) {
-        enqueue(null, node, child, leakReference);
+        enqueue(null, node, child, STATIC_FIELD, fieldIndex);
       }
     }
   }
 
   private void visitClassInstance(LeakNode node) {
     ClassInstance classInstance = (ClassInstance) node.instance;
-    Map<String, Exclusion> ignoredFields = new LinkedHashMap<>();
-    ClassObj superClassObj = classInstance.getClassObj();
-    Exclusion classExclusion = null;
-    while (superClassObj != null) {
-      Exclusion params = excludedRefs.classNames.get(superClassObj.getClassName());
-      if (params != null) {
-        // true overrides null or false.
-        if (classExclusion == null || !classExclusion.alwaysExclude) {
-          classExclusion = params;
-        }
-      }
-      Map<String, Exclusion> classIgnoredFields =
-          excludedRefs.fieldNameByClassName.get(superClassObj.getClassName());
-      if (classIgnoredFields != null) {
-        ignoredFields.putAll(classIgnoredFields);
-      }
-      superClassObj = superClassObj.getSuperClassObj();
-    }
-
-    if (classExclusion != null && classExclusion.alwaysExclude) {
+    InstanceExclusions exclusions = instanceExclusions(classInstance.getClassObj());
+    if (exclusions.alwaysExcluded()) {
       return;
     }
 
-    for (ClassInstance.FieldValue fieldValue : classInstance.getValues()) {
-      Exclusion fieldExclusion = classExclusion;
-      Field field = fieldValue.getField();
-      if (field.getType() != Type.OBJECT) {
+    List<ClassInstance.FieldValue> fieldValues = classInstance.getValues();
+    for (int i = 0; i < fieldValues.size(); i++) {
+      ClassInstance.FieldValue fieldValue = fieldValues.get(i);
+      if (fieldValue.getField().getType() != Type.OBJECT) {
         continue;
       }
       Instance child = (Instance) fieldValue.getValue();
-      String fieldName = field.getName();
-      Exclusion params = ignoredFields.get(fieldName);
-      // If we found a field exclusion and it's stronger than a class exclusion
-      if (params != null && (fieldExclusion == null || (params.alwaysExclude
-          && !fieldExclusion.alwaysExclude))) {
-        fieldExclusion = params;
+      enqueue(exclusions.fieldExclusions[i], node, child, INSTANCE_FIELD, i);
+    }
+  }
+
+  private InstanceExclusions instanceExclusions(ClassObj classObj) {
+    InstanceExclusions exclusions = instanceExclusionsByClassId.get(classObj.getId());
+    if (exclusions == null) {
+      List<String> classNames = new ArrayList<>();
+      List<Field[]> fields = new ArrayList<>();
+      for (ClassObj current = classObj; current != null; current = current.getSuperClassObj()) {
+        classNames.add(current.getClassName());
+        fields.add(current.getFields());
       }
-      String value = fieldValue.getValue() == null ? "null" : fieldValue.getValue().toString();
-      enqueue(fieldExclusion, node, child, new LeakReference(INSTANCE_FIELD, fieldName, value));
+      exclusions = InstanceExclusions.create(excludedRefs, classNames, fields);
+      instanceExclusionsByClassId.put(classObj.getId(), exclusions);
     }
+    return exclusions;
   }
 
   private void visitArrayInstance(LeakNode node) {
@@ -276,42 +320,47 @@ final class ShortestPathFinder {
     if (arrayType == Type.OBJECT) {
       Object[] values = arrayInstance.getValues();
       for (int i = 0; i < values.length; i++) {
-        Instance child = (Instance) values[i];
-        String name = Integer.toString(i);
-        String value = child == null ? "null" : child.toString();
-        enqueue(null, node, child, new LeakReference(ARRAY_ENTRY, name, value));
+        enqueue(null, node, (Instance) values[i], ARRAY_ENTRY, i);
       }
     }
   }
 
   private void enqueue(Exclusion exclusion, LeakNode parent, Instance child,
-      LeakReference leakReference) {
+      LeakTraceElement.Type referenceType, int referenceIndex) {
     if (child == null) {
       return;
     }
     if (isPrimitiveOrWrapperArray(child) || isPrimitiveWrapper(child)) {
       return;
     }
+    boolean visitNow = exclusion == null;
+    // Root objects are enqueued once each and share their id with the instance they refer to, so
+    // they aren't tracked in the sets.
+    boolean isRoot = child instanceof RootObj;
+    int index = isRoot ? -1 : indexOf(child);
     // Whether we want to visit now or later, we should skip if this is already to visit.
-    if (toVisitSet.contains(child)) {
+    if (!isRoot && toVisitSet.get(index)) {
       return;
     }
-    boolean visitNow = exclusion == null;
-    if (!visitNow && toVisitIfNoPathSet.contains(child)) {
+    if (!isRoot && !visitNow && toVisitIfNoPathSet.get(index)) {
       return;
     }
     if (canIgnoreStrings && isString(child)) {
       return;
     }
-    if (visitedSet.contains(child)) {
+    if (!isRoot && visitedSet.get(index)) {
       return;
     }
-    LeakNode childNode = new LeakNode(exclusion, child, parent, leakReference);
+    LeakNode childNode = new LeakNode(exclusion, child, parent, referenceType, referenceIndex);
     if (visitNow) {
-      toVisitSet.add(child);
+      if (!isRoot) {
+        toVisitSet.set(index);
+      }
       toVisitQueue.add(childNode);
     } else {
-      toVisitIfNoPathSet.add(child);
+      if (!isRoot) {
+        toVisitIfNoPathSet.set(index);
+      }
       toVisitIfNoPathQueue.add(childNode);
     }
   }
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ArrayInstance;
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.Type;
+import gnu.trove.TObjectLongHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.squareup.leakcanary.BitmapNativeSizes.BITMAP_CLASS_NAME;
+import static com.squareup.leakcanary.HahaHelper.asString;
+import static com.squareup.leakcanary.HahaHelper.classInstanceValues;
+import static com.squareup.leakcanary.HahaHelper.extendsThread;
+import static com.squareup.leakcanary.HahaHelper.fieldValue;
+import static com.squareup.leakcanary.HahaHelper.hasField;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.ARRAY;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.CLASS;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.OBJECT;
+import static com.squareup.leakcanary.LeakTraceElement.Holder.THREAD;
+import static com.squareup.leakcanary.LeakTraceElement.Type.ARRAY_ENTRY;
+import static com.squareup.leakcanary.LeakTraceElement.Type.INSTANCE_FIELD;
+import static com.squareup.leakcanary.LeakTraceElement.Type.LOCAL;
+import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
+
+/**
+ * {@link HeapGraph} of a perflib {@link Snapshot}, for {@link HeapAnalyzer.Backend#SNAPSHOT}.
+ * Perflib's sentinel root, which dominates the gc roots, counts as a native root.
+ */
+final class SnapshotHeapGraph implements HeapGraph<Instance> {
+
+  private final Snapshot snapshot;
+
+  SnapshotHeapGraph(Snapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  @Override public Map<String, Instance> referentsByKey() {
+    Map<String, Instance> referentsByKey = new LinkedHashMap<>();
+    ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
+    if (refClass == null) {
+      return referentsByKey;
+    }
+    for (Instance instance : refClass.getInstancesList()) {
+      List<ClassInstance.FieldValue> values = classInstanceValues(instance);
+      String key = asString(fieldValue(values, "key"));
+      Instance referent = fieldValue(values, "referent");
+      referentsByKey.put(key, referent);
+    }
+    return referentsByKey;
+  }
+
+  @Override public Map<Instance, LeakPath<Instance>> findPaths(ExcludedRefs excludedRefs,
+      Set<Instance> leakingObjects) {
+    ShortestPathFinder pathFinder = new ShortestPathFinder(excludedRefs);
+    Map<Instance, LeakPath<Instance>> paths = new LinkedHashMap<>();
+    for (Map.Entry<Instance, ShortestPathFinder.Result> entry : pathFinder.findPaths(snapshot,
+        leakingObjects).entrySet()) {
+      ShortestPathFinder.Result result = entry.getValue();
+      if (result.leakingNode == null) {
+        continue;
+      }
+      List<PathReference<Instance>> references = new ArrayList<>();
+      // We iterate from the leak to the GC root
+      for (LeakNode node = result.leakingNode; node.parent != null; node = node.parent) {
+        Instance holder = node.parent.instance;
+        if (!(holder instanceof RootObj)) {
+          references.add(new PathReference<>(holder, describeReference(node), node.exclusion));
+        }
+      }
+      Collections.reverse(references);
+      paths.put(entry.getKey(), new LeakPath<>(references, result.excludingKnownLeaks));
+    }
+    return paths;
+  }
+
+  /** Describes the reference from the parent of node to node, null if there is none. */
+  private LeakReference describeReference(LeakNode node) {
+    if (node.referenceType == null) {
+      return null;
+    }
+    Instance holder = node.parent.instance;
+    Object value;
+    switch (node.referenceType) {
+      case LOCAL:
+        return new LeakReference(LOCAL, null, null);
+      case STATIC_FIELD:
+        int fieldIndex = 0;
+        for (Map.Entry<Field, Object> entry : ((ClassObj) holder).getStaticFieldValues()
+            .entrySet()) {
+          if (fieldIndex++ == node.referenceIndex) {
+            value = entry.getValue();
+            return new LeakReference(STATIC_FIELD, entry.getKey().getName(),
+                value == null ? "null" : value.toString());
+          }
+        }
+        throw new IllegalStateException(
+            "No static field " + node.referenceIndex + " in " + holder);
+      case INSTANCE_FIELD:
+        ClassInstance.FieldValue fieldValue =
+            ((ClassInstance) holder).getValues().get(node.referenceIndex);
+        value = fieldValue.getValue();
+        return new LeakReference(INSTANCE_FIELD, fieldValue.getField().getName(),
+            value == null ? "null" : value.toString());
+      case ARRAY_ENTRY:
+        value = ((ArrayInstance) holder).getValues()[node.referenceIndex];
+        return new LeakReference(ARRAY_ENTRY, Integer.toString(node.referenceIndex),
+            value == null ? "null" : value.toString());
+      default:
+        throw new IllegalStateException("Unknown reference type " + node.referenceType);
+    }
+  }
+
+  @Override public String className(Instance instance) {
+    if (instance instanceof ClassObj) {
+      return ((ClassObj) instance).getClassName();
+    }
+    return instance.getClassObj().getClassName();
+  }
+
+  @Override public List<String> classHierarchy(Instance instance) {
+    List<String> classHierarchy = new ArrayList<>();
+    classHierarchy.add(className(instance));
+    String rootClassName = Object.class.getName();
+    if (instance instanceof ClassInstance) {
+      ClassObj classObj = instance.getClassObj();
+      while (!(classObj = classObj.getSuperClassObj()).getClassName().equals(rootClassName)) {
+        classHierarchy.add(classObj.getClassName());
+      }
+    }
+    return classHierarchy;
+  }
+
+  @Override public LeakTraceElement.Holder holderType(Instance instance) {
+    if (instance instanceof ClassObj) {
+      return CLASS;
+    } else if (instance instanceof ArrayInstance) {
+      return ARRAY;
+    } else if (extendsThread(instance.getClassObj())) {
+      return THREAD;
+    }
+    return OBJECT;
+  }
+
+  @Override public String threadName(Instance thread) {
+    return HahaHelper.threadName(thread);
+  }
+
+  @Override public List<LeakReference> describeFields(Instance instance) {
+    List<LeakReference> leakReferences = new ArrayList<>();
+
+    if (instance instanceof ClassObj) {
+      ClassObj classObj = (ClassObj) instance;
+      for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
+        String name = entry.getKey().getName();
+        String value = entry.getValue() == null ? "null" : entry.getValue().toString();
+        leakReferences.add(new LeakReference(STATIC_FIELD, name, value));
+      }
+    } else if (instance instanceof ArrayInstance) {
+      ArrayInstance arrayInstance = (ArrayInstance) instance;
+      if (arrayInstance.getArrayType() == Type.OBJECT) {
+        Object[] values = arrayInstance.getValues();
+        for (int i = 0; i < values.length; i++) {
+          String name = Integer.toString(i);
+          String value = values[i] == null ? "null" : values[i].toString();
+          leakReferences.add(new LeakReference(ARRAY_ENTRY, name, value));
+        }
+      }
+    } else {
+      ClassObj classObj = instance.getClassObj();
+      for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
+        String name = entry.getKey().getName();
+        String value = entry.getValue() == null ? "null" : entry.getValue().toString();
+        leakReferences.add(new LeakReference(STATIC_FIELD, name, value));
+      }
+      ClassInstance classInstance = (ClassInstance) instance;
+      for (ClassInstance.FieldValue field : classInstance.getValues()) {
+        String name = field.getField().getName();
+        String value = field.getValue() == null ? "null" : field.getValue().toString();
+        leakReferences.add(new LeakReference(INSTANCE_FIELD, name, value));
+      }
+    }
+    return leakReferences;
+  }
+
+  @Override public long shallowSize(Instance instance) {
+    return instance.getSize();
+  }
+
+  @Override public void computeDominators() {
+    // Side effect: computes retained size.
+    snapshot.computeDominators();
+  }
+
+  @Override public long retainedSize(Instance instance) {
+    return instance.getTotalRetainedSize();
+  }
+
+  @Override public Instance immediateDominator(Instance instance) {
+    Instance immediateDominator = instance.getImmediateDominator();
+    return immediateDominator instanceof RootObj ? null : immediateDominator;
+  }
+
+  @Override public Instance shortestPathParent(Instance instance) {
+    Instance parent = instance.getNextInstanceToGcRoot();
+    return parent instanceof RootObj ? null : parent;
+  }
+
+  @Override public List<Instance> bitmaps() {
+    ClassObj bitmapClass = snapshot.findClass(BITMAP_CLASS_NAME);
+    if (bitmapClass == null) {
+      return Collections.emptyList();
+    }
+    return bitmapClass.getInstancesList();
+  }
+
+  /** mBuffer is null before Oreo for native pixels and doesn't exist from Oreo. */
+  @Override public Instance bitmapBuffer(Instance bitmap) {
+    List<ClassInstance.FieldValue> values = classInstanceValues(bitmap);
+    if (!hasField(values, "mBuffer")) {
+      return null;
+    }
+    return fieldValue(values, "mBuffer");
+  }
+
+  @Override public TObjectLongHashMap<Instance> nativeBitmapSizes() {
+    return BitmapNativeSizes.find(snapshot);
+  }
+
+  @Override public RetainedObjectSearch<Instance> newRetainedObjectSearch(
+      Set<Instance> leakingInstances, int maxObjects) {
+    final SnapshotRetainedObjectFinder retainedObjectFinder =
+        new SnapshotRetainedObjectFinder(snapshot, leakingInstances, maxObjects);
+    return new RetainedObjectSearch<Instance>() {
+      @Override public RetainedObjects<Instance> findRetainedObjects(Instance leakingInstance,
+          boolean ignoreNativeRoots) {
+        final List<Instance> retained =
+            retainedObjectFinder.findRetainedInstances(leakingInstance, ignoreNativeRoots);
+        final boolean truncated = retainedObjectFinder.truncated();
+        return new RetainedObjects<Instance>() {
+          /** Only built for lookups, most searches are just summed up. */
+          private Set<Instance> retainedSet;
+
+          @Override public boolean contains(Instance instance) {
+            if (retainedSet == null) {
+              retainedSet = new HashSet<>(retained);
+            }
+            return retainedSet.contains(instance);
+          }
+
+          @Override public long shallowSize() {
+            long size = 0;
+            for (Instance instance : retained) {
+              size += instance.getSize();
+            }
+            return size;
+          }
+
+          @Override public boolean truncated() {
+            return truncated;
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ArrayInstance;
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Snapshot;
+import com.squareup.haha.perflib.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Same as {@link RetainedObjectFinder}, but on a perflib {@link Snapshot}, without calling
+ * {@link Snapshot#computeDominators()}. Instances are tracked by id.
+ *
+ * Not thread safe.
+ */
+final class SnapshotRetainedObjectFinder {
+
+  private final Snapshot snapshot;
+  private final LongSet leakingIds = new LongSet();
+  private final int maxObjects;
+  private final Deque<Instance> toVisit = new ArrayDeque<>();
+  /** Indexed by ignoreNativeRoots, computed on first use. */
+  private final RootReachability[] rootReachabilities = new RootReachability[2];
+  private boolean truncated;
+
+  SnapshotRetainedObjectFinder(Snapshot snapshot) {
+    this(snapshot, Collections.<Instance>emptySet(), Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param leakingInstances see {@link RetainedObjectFinder#RetainedObjectFinder(HprofIndex,
+   * java.util.BitSet, int)}.
+   * @param maxObjects maximum number of instances returned by each search.
+   */
+  SnapshotRetainedObjectFinder(Snapshot snapshot, Set<Instance> leakingInstances,
+      int maxObjects) {
+    if (maxObjects < 1) {
+      throw new IllegalArgumentException("maxObjects must be at least 1, not " + maxObjects);
+    }
+    this.snapshot = snapshot;
+    for (Instance leakingInstance : leakingInstances) {
+      leakingIds.add(leakingInstance.getId());
+    }
+    this.maxObjects = maxObjects;
+  }
+
+  /**
+   * Returns the instances retained by leakingInstance, including itself. If there are more than
+   * maxObjects, returns maxObjects of them and {@link #truncated()} becomes true.
+   *
+   * @param ignoreNativeRoots see {@link RetainedObjectFinder#findRetainedObjects(int, boolean)}.
+   */
+  List<Instance> findRetainedInstances(Instance leakingInstance, boolean ignoreNativeRoots) {
+    LongSet reached;
+    if (leakingIds.contains(leakingInstance.getId())) {
+      RootReachability rootReachability = rootReachability(ignoreNativeRoots);
+      reached = new LongSet(rootReachability.reached);
+      reached.add(leakingInstance.getId());
+      // Whatever the other leaking instances reach is reachable without going through this one.
+      for (Instance reachedLeakingInstance : rootReachability.reachedLeakingInstances) {
+        enqueue(reachedLeakingInstance, reached, null, null);
+      }
+    } else {
+      reached = new LongSet();
+      // Marking the leaking instance as reached first keeps the traversal from the gc roots from
+      // going through it.
+      reached.add(leakingInstance.getId());
+      enqueueRoots(reached, ignoreNativeRoots, null);
+    }
+    visitAll(reached, null, null);
+
+    // Whatever is reached from now on is only reachable through the leaking instance.
+    truncated = false;
+    List<Instance> retained = new ArrayList<>();
+    retained.add(leakingInstance);
+    toVisit.add(leakingInstance);
+    visitAll(reached, null, retained);
+    return retained;
+  }
+
+  /** Whether the last search of this finder stopped at maxObjects. */
+  boolean truncated() {
+    return truncated;
+  }
+
+  private RootReachability rootReachability(boolean ignoreNativeRoots) {
+    int cacheIndex = ignoreNativeRoots ? 1 : 0;
+    if (rootReachabilities[cacheIndex] == null) {
+      LongSet reached = new LongSet();
+      Set<Instance> reachedLeakingInstances = new LinkedHashSet<>();
+      enqueueRoots(reached, ignoreNativeRoots, reachedLeakingInstances);
+      visitAll(reached, reachedLeakingInstances, null);
+      rootReachabilities[cacheIndex] = new RootReachability(reached, reachedLeakingInstances);
+    }
+    return rootReachabilities[cacheIndex];
+  }
+
+  private void enqueueRoots(LongSet reached, boolean ignoreNativeRoots,
+      Set<Instance> reachedLeakingInstances) {
+    for (RootObj root : snapshot.getGCRoots()) {
+      if (ignoreNativeRoots && root.getRootType() == RootType.UNKNOWN) {
+        continue;
+      }
+      enqueue(root.getReferredInstance(), reached, reachedLeakingInstances, null);
+    }
+  }
+
+  /**
+   * @param reachedLeakingInstances if not null, the leaking instances aren't traversed, they're
+   * added to reachedLeakingInstances instead.
+   */
+  private void enqueue(Instance instance, LongSet reached, Set<Instance> reachedLeakingInstances,
+      List<Instance> retained) {
+    if (instance == null || reached.contains(instance.getId())) {
+      return;
+    }
+    if (reachedLeakingInstances != null && leakingIds.contains(instance.getId())) {
+      reachedLeakingInstances.add(instance);
+      return;
+    }
+    if (retained != null && retained.size() == maxObjects) {
+      toVisit.clear();
+      truncated = true;
+      return;
+    }
+    reached.add(instance.getId());
+    toVisit.add(instance);
+    if (retained != null) {
+      retained.add(instance);
+    }
+  }
+
+  private void visitAll(LongSet reached, Set<Instance> reachedLeakingInstances,
+      List<Instance> retained) {
+    while (!toVisit.isEmpty()) {
+      Instance instance = toVisit.poll();
+      if (instance instanceof ClassObj) {
+        for (Object value : ((ClassObj) instance).getStaticFieldValues().values()) {
+          if (value instanceof Instance) {
+            enqueue((Instance) value, reached, reachedLeakingInstances, retained);
+          }
+        }
+      } else if (instance instanceof ClassInstance) {
+        ClassInstance classInstance = (ClassInstance) instance;
+        // Like perflib, the referent of a java.lang.ref.Reference isn't a strong reference.
+        boolean isReference = classInstance.getClassObj() != null
+            && classInstance.getClassObj().getIsSoftReference();
+        for (ClassInstance.FieldValue fieldValue : classInstance.getValues()) {
+          if (fieldValue.getValue() instanceof Instance
+              && !(isReference && fieldValue.getField().getName().equals("referent"))) {
+            enqueue((Instance) fieldValue.getValue(), reached, reachedLeakingInstances,
+                retained);
+          }
+        }
+      } else if (instance instanceof ArrayInstance) {
+        ArrayInstance arrayInstance = (ArrayInstance) instance;
+        if (arrayInstance.getArrayType() == Type.OBJECT) {
+          for (Object value : arrayInstance.getValues()) {
+            enqueue((Instance) value, reached, reachedLeakingInstances, retained);
+          }
+        }
+      }
+    }
+  }
+
+  /** The instances reachable from the gc roots without going through the leaking instances. */
+  private static final class RootReachability {
+    final LongSet reached;
+    /** The leaking instances directly referenced by reached instances or by gc roots. */
+    final Set<Instance> reachedLeakingInstances;
+
+    RootReachability(LongSet reached, Set<Instance> reachedLeakingInstances) {
+      this.reached = reached;
+      this.reachedLeakingInstances = reachedLeakingInstances;
+    }
+  }
+}
@@ -24,6 +24,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import static com.squareup.leakcanary.HeapAnalyzer.Backend.HPROF_INDEX;
+import static com.squareup.leakcanary.HeapAnalyzer.Backend.SNAPSHOT;
 import static com.squareup.leakcanary.LeakTraceElement.Holder.THREAD;
 import static com.squareup.leakcanary.LeakTraceElement.Type.STATIC_FIELD;
 import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
@@ -47,17 +49,22 @@ public class AsyncTaskLeakTest {
 
   @Parameterized.Parameters public static Collection<Object[]> data() {
     return asList(new Object[][] {
-        { ASYNC_TASK_PRE_M }, //
-        { ASYNC_TASK_M }, //
-        { ASYNC_TASK_O } //
+        { ASYNC_TASK_PRE_M, SNAPSHOT }, //
+        { ASYNC_TASK_M, SNAPSHOT }, //
+        { ASYNC_TASK_O, SNAPSHOT }, //
+        { ASYNC_TASK_PRE_M, HPROF_INDEX }, //
+        { ASYNC_TASK_M, HPROF_INDEX }, //
+        { ASYNC_TASK_O, HPROF_INDEX } //
     });
   }
 
   private final TestUtil.HeapDumpFile heapDumpFile;
+  private final HeapAnalyzer.Backend backend;
   ExcludedRefs.BuilderWithParams excludedRefs;
 
-  public AsyncTaskLeakTest(TestUtil.HeapDumpFile heapDumpFile) {
+  public AsyncTaskLeakTest(TestUtil.HeapDumpFile heapDumpFile, HeapAnalyzer.Backend backend) {
     this.heapDumpFile = heapDumpFile;
+    this.backend = backend;
   }
 
   @Before public void setUp() {
@@ -71,7 +78,7 @@ public class AsyncTaskLeakTest {
   }
 
   @Test public void leakFound() {
-    AnalysisResult result = analyze(heapDumpFile, excludedRefs);
+    AnalysisResult result = analyze(heapDumpFile, excludedRefs, backend);
     assertTrue(result.leakFound);
     assertFalse(result.excludedLeak);
     LeakTraceElement gcRoot = result.leakTrace.elements.get(0);
@@ -82,7 +89,7 @@ public class AsyncTaskLeakTest {
 
   @Test public void excludeThread() {
     excludedRefs.thread(ASYNC_TASK_THREAD);
-    AnalysisResult result = analyze(heapDumpFile, excludedRefs);
+    AnalysisResult result = analyze(heapDumpFile, excludedRefs, backend);
     assertTrue(result.leakFound);
     assertFalse(result.excludedLeak);
     LeakTraceElement gcRoot = result.leakTrace.elements.get(0);
@@ -96,7 +103,7 @@ public class AsyncTaskLeakTest {
     excludedRefs.thread(ASYNC_TASK_THREAD).named(ASYNC_TASK_THREAD);
     excludedRefs.staticField(ASYNC_TASK_CLASS, EXECUTOR_FIELD_1).named(EXECUTOR_FIELD_1);
     excludedRefs.staticField(ASYNC_TASK_CLASS, EXECUTOR_FIELD_2).named(EXECUTOR_FIELD_2);
-    AnalysisResult result = analyze(heapDumpFile, excludedRefs);
+    AnalysisResult result = analyze(heapDumpFile, excludedRefs, backend);
     assertTrue(result.leakFound);
     assertTrue(result.excludedLeak);
     LeakTrace leakTrace = result.leakTrace;
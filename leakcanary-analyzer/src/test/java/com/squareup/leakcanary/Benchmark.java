@@ -0,0 +1,55 @@
+package com.squareup.leakcanary;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Code measured by the benchmarks of this module, which are main methods run from the IDE since
+ * there is no benchmark task in the build. Allocations are counted on the calling thread with
+ * {@link com.sun.management.ThreadMXBean}, which needs a HotSpot JVM.
+ */
+abstract class Benchmark {
+
+  /** Called before each iteration, outside of the measure. */
+  void setUp() throws IOException {
+  }
+
+  abstract void run() throws IOException;
+
+  /** Runs warmupIterations iterations, then returns the average measure of iterations more. */
+  final Measure measure(int warmupIterations, int iterations) throws IOException {
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    for (int i = 0; i < warmupIterations; i++) {
+      setUp();
+      run();
+    }
+    long totalNanos = 0;
+    long totalBytes = 0;
+    for (int i = 0; i < iterations; i++) {
+      setUp();
+      long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+      long start = System.nanoTime();
+      run();
+      totalNanos += System.nanoTime() - start;
+      totalBytes += threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+    }
+    return new Measure(totalNanos / iterations, totalBytes / iterations);
+  }
+
+  /** Wall time and allocations of an iteration. */
+  static final class Measure {
+    final long nanos;
+    final long allocatedBytes;
+
+    Measure(long nanos, long allocatedBytes) {
+      this.nanos = nanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+
+    @Override public String toString() {
+      return String.format("%.1f ms and %.1f MB allocated", nanos / 1e6, allocatedBytes / 1e6);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static com.squareup.leakcanary.TestUtil.findTrackedReferences;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class CheckForLeaksTest {
+
+  @Test public void sameResultsAsOneKeyAtATime() {
+    File file = fileFromName(ASYNC_TASK_PRE_M.filename);
+    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(NO_EXCLUDED_REFS);
+    Set<String> keys = trackedKeys();
+
+    Map<String, AnalysisResult> results = heapAnalyzer.checkForLeaks(file, keys, true);
+
+    assertThat(results.keySet()).containsExactlyElementsOf(keys);
+    for (String key : keys) {
+      AnalysisResult expected = heapAnalyzer.checkForLeak(file, key, true);
+      AnalysisResult result = results.get(key);
+      assertThat(result.failure).isNull();
+      assertThat(result.leakFound).isEqualTo(expected.leakFound);
+      assertThat(result.excludedLeak).isEqualTo(expected.excludedLeak);
+      assertThat(result.className).isEqualTo(expected.className);
+      assertThat(result.retainedHeapSize).isEqualTo(expected.retainedHeapSize);
+      assertThat(String.valueOf(result.leakTrace)).isEqualTo(String.valueOf(expected.leakTrace));
+    }
+  }
+
+  @Test public void unknownKeyFailsAlone() {
+    File file = fileFromName(ASYNC_TASK_PRE_M.filename);
+    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(NO_EXCLUDED_REFS);
+    Set<String> keys = new LinkedHashSet<>();
+    keys.add(ASYNC_TASK_PRE_M.referenceKey);
+    keys.add("unknown");
+
+    Map<String, AnalysisResult> results = heapAnalyzer.checkForLeaks(file, keys, false);
+
+    assertThat(results.get(ASYNC_TASK_PRE_M.referenceKey).leakFound).isTrue();
+    assertThat(results.get("unknown").failure).isInstanceOf(IllegalStateException.class);
+  }
+
+  private static Set<String> trackedKeys() {
+    List<TrackedReference> trackedReferences = findTrackedReferences(ASYNC_TASK_PRE_M);
+    Set<String> keys = new LinkedHashSet<>();
+    for (TrackedReference trackedReference : trackedReferences) {
+      keys.add(trackedReference.key);
+    }
+    return keys;
+  }
+}
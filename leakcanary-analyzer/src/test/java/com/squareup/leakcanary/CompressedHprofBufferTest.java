@@ -0,0 +1,118 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.HprofBuffer;
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.HeapAnalyzer.Backend.HPROF_INDEX;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class CompressedHprofBufferTest {
+
+  private static final int CHUNK_SIZE = 7;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File file;
+  private File compressedFile;
+
+  @Before public void setUp() throws IOException {
+    byte[] bytes = new byte[1000];
+    new Random(42).nextBytes(bytes);
+    file = temporaryFolder.newFile("bytes");
+    OutputStream out = new FileOutputStream(file);
+    out.write(bytes);
+    out.close();
+    compressedFile = temporaryFolder.newFile("bytes.z");
+    CompressedHprof.compress(file, compressedFile, CHUNK_SIZE);
+  }
+
+  @Test public void detectsCompressedFiles() throws IOException {
+    assertThat(CompressedHprof.isCompressed(compressedFile)).isTrue();
+    assertThat(CompressedHprof.isCompressed(file)).isFalse();
+  }
+
+  @Test public void readsSameValuesAcrossChunks() throws IOException {
+    HprofBuffer expected = new MemoryMappedFileBuffer(file);
+    HprofBuffer buffer = new CompressedHprofBuffer(compressedFile, 2);
+
+    assertThat(buffer.remaining()).isEqualTo(expected.remaining());
+    for (int position = 0; position < 1000 - 8; position += 5) {
+      expected.setPosition(position);
+      buffer.setPosition(position);
+      assertThat(buffer.readLong()).isEqualTo(expected.readLong());
+      assertThat(buffer.readByte()).isEqualTo(expected.readByte());
+      assertThat(buffer.position()).isEqualTo(expected.position());
+    }
+    for (int position = 1000 - 8; position >= 0; position -= 3) {
+      expected.setPosition(position);
+      buffer.setPosition(position);
+      assertThat(buffer.readInt()).isEqualTo(expected.readInt());
+      assertThat(buffer.readChar()).isEqualTo(expected.readChar());
+      assertThat(buffer.readShort()).isEqualTo(expected.readShort());
+    }
+  }
+
+  @Test public void reusesEvictedChunks() throws IOException {
+    HprofBuffer expected = new MemoryMappedFileBuffer(file);
+    CompressedHprofBuffer buffer = new CompressedHprofBuffer(compressedFile, 1);
+
+    for (int position = 0; position < 1000; position += CHUNK_SIZE + 1) {
+      expected.setPosition(position);
+      buffer.setPosition(position);
+      assertThat(buffer.readByte()).isEqualTo(expected.readByte());
+      buffer.setPosition(0);
+      expected.setPosition(0);
+      assertThat(buffer.readByte()).isEqualTo(expected.readByte());
+    }
+    buffer.close();
+  }
+
+  @Test public void readsByteArraysAcrossChunks() throws IOException {
+    HprofBuffer expected = new MemoryMappedFileBuffer(file);
+    HprofBuffer buffer = new CompressedHprofBuffer(compressedFile, 2);
+    byte[] expectedBytes = new byte[100];
+    byte[] bytes = new byte[100];
+
+    expected.setPosition(3);
+    expected.read(expectedBytes);
+    buffer.setPosition(3);
+    buffer.read(bytes);
+
+    assertThat(bytes).isEqualTo(expectedBytes);
+    assertThat(buffer.position()).isEqualTo(103);
+    assertThat(buffer.hasRemaining()).isTrue();
+  }
+
+  @Test public void sameLeakTraceFromCompressedHeapDump() throws IOException {
+    File heapDumpFile = fileFromName(ASYNC_TASK_M.filename);
+    File compressedHeapDumpFile = temporaryFolder.newFile("compressed.hprof");
+    HeapAnalyzer heapAnalyzer = HeapAnalyzer.builder(NO_EXCLUDED_REFS).backend(HPROF_INDEX).build();
+    heapAnalyzer.compressHeapDump(heapDumpFile, compressedHeapDumpFile);
+    AnalysisResult expected =
+        heapAnalyzer.checkForLeak(heapDumpFile, ASYNC_TASK_M.referenceKey, false);
+
+    AnalysisResult result =
+        heapAnalyzer.checkForLeak(compressedHeapDumpFile, ASYNC_TASK_M.referenceKey, false);
+
+    assertThat(compressedHeapDumpFile.length()).isLessThan(heapDumpFile.length() / 2);
+    assertThat(result.failure).isNull();
+    assertThat(result.leakFound).isTrue();
+    assertThat(result.leakTrace.toDetailedString()).isEqualTo(
+        expected.leakTrace.toDetailedString());
+  }
+}
@@ -0,0 +1,70 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.RootObj;
+import com.squareup.haha.perflib.RootType;
+import com.squareup.haha.perflib.Snapshot;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+
+/**
+ * Measures {@link HeapAnalyzer#deduplicateGcRoots(Snapshot)} on a million roots with about as many
+ * duplicates as a Marshmallow heap dump.
+ */
+public final class DeduplicateGcRootsBenchmark {
+
+  private static final int ROOT_COUNT = 1_000_000;
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int ITERATIONS = 10;
+
+  public static void main(String[] args) throws IOException {
+    final List<RootObj> roots = createRoots();
+    final HeapAnalyzer heapAnalyzer = new HeapAnalyzer(NO_EXCLUDED_REFS);
+    Benchmark.Measure measure = new Benchmark() {
+      Snapshot snapshot;
+
+      @Override void setUp() {
+        snapshot = createSnapshot(roots);
+      }
+
+      @Override void run() {
+        heapAnalyzer.deduplicateGcRoots(snapshot);
+      }
+    }.measure(WARMUP_ITERATIONS, ITERATIONS);
+    Snapshot snapshot = createSnapshot(roots);
+    heapAnalyzer.deduplicateGcRoots(snapshot);
+    System.out.printf("%d roots, %d unique: %s%n", ROOT_COUNT, snapshot.getGCRoots().size(),
+        measure);
+  }
+
+  private static List<RootObj> createRoots() {
+    Random random = new Random(42);
+    RootType[] types = { RootType.SYSTEM_CLASS, RootType.NATIVE_STATIC, RootType.JAVA_LOCAL };
+    List<RootObj> roots = new ArrayList<>(ROOT_COUNT);
+    // Every root is added twice, so half of the roots duplicate another one.
+    for (int i = 0; i < ROOT_COUNT / 2; i++) {
+      long id = 0x12c00000L + 16L * i;
+      RootType type = types[random.nextInt(types.length)];
+      roots.add(new RootObj(type, id));
+      roots.add(new RootObj(type, id));
+    }
+    Collections.shuffle(roots, random);
+    return roots;
+  }
+
+  private static Snapshot createSnapshot(List<RootObj> roots) {
+    Snapshot snapshot = new Snapshot(null);
+    for (RootObj root : roots) {
+      snapshot.addRoot(root);
+    }
+    return snapshot;
+  }
+
+  private DeduplicateGcRootsBenchmark() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,64 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Snapshot;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+
+/**
+ * Compares {@link DominatorTree#compute(HprofIndex)} with perflib's
+ * {@link Snapshot#computeDominators()} on the heap dump passed as argument. Perflib only computes
+ * dominators once per snapshot, so the heap dump is parsed again before each iteration. Use a
+ * large heap dump.
+ */
+public final class DominatorTreeBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 1;
+  private static final int ITERATIONS = 3;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      throw new IllegalArgumentException("Usage: DominatorTreeBenchmark <heap dump>");
+    }
+    File heapDumpFile = new File(args[0]);
+    System.out.printf("DominatorTree: %s%n", measureDominatorTree(heapDumpFile));
+    System.out.printf("Perflib: %s%n", measurePerflib(heapDumpFile));
+  }
+
+  private static Benchmark.Measure measureDominatorTree(File heapDumpFile) throws IOException {
+    final HprofIndex index = new HprofIndexer(CompressedHprof.openBuffer(heapDumpFile),
+        Collections.<String>emptyList()).index();
+    index.deduplicateGcRoots();
+    System.out.printf("%d objects%n", index.objectCount());
+    return new Benchmark() {
+      @Override void run() {
+        DominatorTree.compute(index);
+      }
+    }.measure(WARMUP_ITERATIONS, ITERATIONS);
+  }
+
+  private static Benchmark.Measure measurePerflib(final File heapDumpFile) throws IOException {
+    final HeapAnalyzer heapAnalyzer = new HeapAnalyzer(NO_EXCLUDED_REFS);
+    return new Benchmark() {
+      Snapshot snapshot;
+
+      @Override void setUp() throws IOException {
+        // Lets the previous snapshot be collected while parsing.
+        snapshot = null;
+        snapshot = new HprofParser(CompressedHprof.openBuffer(heapDumpFile)).parse();
+        heapAnalyzer.deduplicateGcRoots(snapshot);
+      }
+
+      @Override void run() {
+        snapshot.computeDominators();
+      }
+    }.measure(WARMUP_ITERATIONS, ITERATIONS);
+  }
+
+  private DominatorTreeBenchmark() {
+    throw new AssertionError();
+  }
+}
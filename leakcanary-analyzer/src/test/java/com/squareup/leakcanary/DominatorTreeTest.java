@@ -0,0 +1,98 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_O;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Checks the dominator tree against the objects found by {@link RetainedObjectFinder}. */
+@RunWith(Parameterized.class) //
+public class DominatorTreeTest {
+
+  private static final List<String> INDEXED_CLASS_NAMES =
+      singletonList(KeyedWeakReference.class.getName());
+
+  @Parameterized.Parameters public static Collection<Object[]> data() {
+    return asList(new Object[][] {
+        { ASYNC_TASK_PRE_M }, //
+        { ASYNC_TASK_M }, //
+        { ASYNC_TASK_O }, //
+    });
+  }
+
+  private final TestUtil.HeapDumpFile heapDumpFile;
+  private HprofIndex index;
+  private int leakingIndex;
+
+  public DominatorTreeTest(TestUtil.HeapDumpFile heapDumpFile) {
+    this.heapDumpFile = heapDumpFile;
+  }
+
+  @Before public void setUp() throws IOException {
+    File file = fileFromName(heapDumpFile.filename);
+    index = new HprofIndexer(new MemoryMappedFileBuffer(file), INDEXED_CLASS_NAMES).index();
+    index.deduplicateGcRoots();
+    leakingIndex = -1;
+    for (int weakRef : index.instancesOf(KeyedWeakReference.class.getName())) {
+      if (heapDumpFile.referenceKey.equals(index.asString(index.fieldValue(weakRef, "key")))) {
+        leakingIndex = index.fieldValue(weakRef, "referent");
+      }
+    }
+    assertThat(leakingIndex).isNotEqualTo(-1);
+  }
+
+  @Test public void retainedSizeSameAsRetainedObjects() {
+    DominatorTree dominatorTree = DominatorTree.compute(index);
+    RetainedObjectFinder retainedObjectFinder = new RetainedObjectFinder(index);
+
+    BitSet retained = retainedObjectFinder.findRetainedObjects(leakingIndex);
+
+    assertThat(dominatorTree.retainedSize(leakingIndex))
+        .isEqualTo(retainedObjectFinder.shallowSize(retained));
+  }
+
+  @Test public void retainedObjectsDominatedByLeakingInstance() {
+    DominatorTree dominatorTree = DominatorTree.compute(index);
+
+    BitSet retained = new RetainedObjectFinder(index).findRetainedObjects(leakingIndex);
+
+    for (int i = retained.nextSetBit(0); i >= 0; i = retained.nextSetBit(i + 1)) {
+      int dominator = i;
+      while (dominator != leakingIndex && dominator != DominatorTree.NO_DOMINATOR) {
+        dominator = dominatorTree.immediateDominator(dominator);
+      }
+      assertThat(dominator).isEqualTo(leakingIndex);
+    }
+  }
+
+  @Test public void sharedRootTraversalSameRetainedObjects() {
+    // Some leaking objects only reachable through another one, and some that are not.
+    BitSet leakingObjects = new RetainedObjectFinder(index).findRetainedObjects(leakingIndex);
+    for (int weakRef : index.instancesOf(KeyedWeakReference.class.getName())) {
+      leakingObjects.set(weakRef);
+    }
+    RetainedObjectFinder sharedFinder =
+        new RetainedObjectFinder(index, leakingObjects, Integer.MAX_VALUE);
+
+    int searches = 0;
+    for (int i = leakingObjects.nextSetBit(0); i >= 0 && searches++ < 20;
+        i = leakingObjects.nextSetBit(i + 1)) {
+      assertThat(sharedFinder.findRetainedObjects(i))
+          .isEqualTo(new RetainedObjectFinder(index).findRetainedObjects(i));
+    }
+  }
+}
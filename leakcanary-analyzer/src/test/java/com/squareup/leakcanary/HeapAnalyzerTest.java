@@ -54,6 +54,16 @@ public class HeapAnalyzerTest {
     assertThat(rootIds).containsExactly(3L, 3L, 5L, 6L);
   }
 
+  @Test
+  public void keepsFirstRootOfEachTypeAndIdInOrder() {
+    Snapshot snapshot = createSnapshot(DUP_ROOTS);
+
+    heapAnalyzer.deduplicateGcRoots(snapshot);
+
+    assertThat(snapshot.getGCRoots()).containsExactly(DUP_ROOTS.get(0), DUP_ROOTS.get(1),
+        DUP_ROOTS.get(2), DUP_ROOTS.get(4));
+  }
+
   private Snapshot createSnapshot(List<RootObj> gcRoots) {
     Snapshot snapshot = new Snapshot(null);
     for (RootObj root : gcRoots) {
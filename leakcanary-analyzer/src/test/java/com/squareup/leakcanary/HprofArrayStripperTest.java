@@ -0,0 +1,83 @@
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static com.squareup.leakcanary.HeapAnalyzer.Backend.HPROF_INDEX;
+import static com.squareup.leakcanary.HeapAnalyzer.Backend.SNAPSHOT;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_O;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(Parameterized.class) //
+public class HprofArrayStripperTest {
+
+  @Parameterized.Parameters public static Collection<Object[]> data() {
+    return asList(new Object[][] {
+        { ASYNC_TASK_PRE_M }, //
+        { ASYNC_TASK_M }, //
+        { ASYNC_TASK_O }, //
+    });
+  }
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final TestUtil.HeapDumpFile heapDumpFile;
+  private File file;
+  private File strippedFile;
+
+  public HprofArrayStripperTest(TestUtil.HeapDumpFile heapDumpFile) {
+    this.heapDumpFile = heapDumpFile;
+  }
+
+  @Before public void setUp() throws IOException {
+    file = fileFromName(heapDumpFile.filename);
+    strippedFile = temporaryFolder.newFile("stripped.hprof");
+    new HeapAnalyzer(NO_EXCLUDED_REFS).stripPrimitiveArrays(file, strippedFile);
+  }
+
+  @Test public void strippedHeapDumpHasSameSize() {
+    assertThat(strippedFile.length()).isEqualTo(file.length());
+  }
+
+  @Test public void sameAnalysisWithSnapshot() {
+    HeapAnalyzer heapAnalyzer = HeapAnalyzer.builder(NO_EXCLUDED_REFS).backend(SNAPSHOT).build();
+    AnalysisResult expected = heapAnalyzer.checkForLeak(file, heapDumpFile.referenceKey, true);
+
+    AnalysisResult result =
+        heapAnalyzer.checkForLeak(strippedFile, heapDumpFile.referenceKey, true);
+
+    assertSameAnalysis(result, expected);
+    assertThat(String.valueOf(result.leakTrace)).isEqualTo(String.valueOf(expected.leakTrace));
+  }
+
+  @Test public void sameAnalysisWithIndex() {
+    HeapAnalyzer heapAnalyzer = HeapAnalyzer.builder(NO_EXCLUDED_REFS).backend(HPROF_INDEX).build();
+    AnalysisResult expected = heapAnalyzer.checkForLeak(file, heapDumpFile.referenceKey, true);
+
+    AnalysisResult result =
+        heapAnalyzer.checkForLeak(strippedFile, heapDumpFile.referenceKey, true);
+
+    assertSameAnalysis(result, expected);
+    assertThat(result.leakTrace.toDetailedString()).isEqualTo(
+        expected.leakTrace.toDetailedString());
+  }
+
+  private static void assertSameAnalysis(AnalysisResult result, AnalysisResult expected) {
+    assertThat(result.failure).isNull();
+    assertThat(result.leakFound).isTrue();
+    assertThat(result.className).isEqualTo(expected.className);
+    assertThat(result.retainedHeapSize).isEqualTo(expected.retainedHeapSize);
+  }
+}
@@ -0,0 +1,96 @@
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.HeapAnalyzer.Backend.HPROF_INDEX;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class HprofIndexFileTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File heapDumpFile;
+  private HeapAnalyzer heapAnalyzer;
+
+  @Before public void setUp() throws IOException {
+    heapDumpFile = temporaryFolder.newFile(ASYNC_TASK_M.filename);
+    copy(fileFromName(ASYNC_TASK_M.filename), heapDumpFile);
+    heapAnalyzer = HeapAnalyzer.builder(NO_EXCLUDED_REFS).backend(HPROF_INDEX).persistIndex(true)
+        .build();
+  }
+
+  @Test public void writesSidecar() {
+    heapAnalyzer.checkForLeak(heapDumpFile, ASYNC_TASK_M.referenceKey, false);
+
+    assertThat(HprofIndexFile.sidecarFor(heapDumpFile)).exists();
+  }
+
+  @Test public void sameResultFromSidecar() {
+    AnalysisResult expected = heapAnalyzer.checkForLeak(heapDumpFile, ASYNC_TASK_M.referenceKey,
+        false);
+
+    AnalysisResult result = heapAnalyzer.checkForLeak(heapDumpFile, ASYNC_TASK_M.referenceKey,
+        false);
+
+    assertThat(result.failure).isNull();
+    assertThat(result.leakFound).isTrue();
+    assertThat(result.className).isEqualTo(expected.className);
+    assertThat(String.valueOf(result.leakTrace)).isEqualTo(String.valueOf(expected.leakTrace));
+  }
+
+  @Test public void readsIndexFromSidecar() {
+    heapAnalyzer.checkForLeak(heapDumpFile, ASYNC_TASK_M.referenceKey, false);
+
+    HprofIndex index = HprofIndexFile.read(heapDumpFile, new FakeHprofBuffer());
+
+    assertThat(index).isNotNull();
+    assertThat(index.referentsByKey()).containsKey(ASYNC_TASK_M.referenceKey);
+  }
+
+  @Test public void ignoresStaleSidecar() {
+    heapAnalyzer.checkForLeak(heapDumpFile, ASYNC_TASK_M.referenceKey, false);
+
+    assertThat(heapDumpFile.setLastModified(heapDumpFile.lastModified() - 60_000)).isTrue();
+
+    assertThat(HprofIndexFile.read(heapDumpFile, new FakeHprofBuffer())).isNull();
+  }
+
+  @Test public void ignoresCorruptedSidecar() throws IOException {
+    File sidecar = HprofIndexFile.sidecarFor(heapDumpFile);
+    OutputStream out = new FileOutputStream(sidecar);
+    out.write(new byte[64]);
+    out.close();
+
+    assertThat(HprofIndexFile.read(heapDumpFile, new FakeHprofBuffer())).isNull();
+    AnalysisResult result = heapAnalyzer.checkForLeak(heapDumpFile, ASYNC_TASK_M.referenceKey,
+        false);
+    assertThat(result.leakFound).isTrue();
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    InputStream in = new FileInputStream(from);
+    OutputStream out = new FileOutputStream(to);
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    out.close();
+  }
+}
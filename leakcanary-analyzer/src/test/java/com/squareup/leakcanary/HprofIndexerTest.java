@@ -0,0 +1,67 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.io.MemoryMappedFileBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_O;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(Parameterized.class) //
+public class HprofIndexerTest {
+
+  private static final List<String> INDEXED_CLASS_NAMES =
+      singletonList(KeyedWeakReference.class.getName());
+
+  @Parameterized.Parameters public static Collection<Object[]> data() {
+    return asList(new Object[][] {
+        { ASYNC_TASK_PRE_M }, //
+        { ASYNC_TASK_M }, //
+        { ASYNC_TASK_O }, //
+    });
+  }
+
+  private final TestUtil.HeapDumpFile heapDumpFile;
+
+  public HprofIndexerTest(TestUtil.HeapDumpFile heapDumpFile) {
+    this.heapDumpFile = heapDumpFile;
+  }
+
+  @Test public void parallelIndexSameAsSequential() throws IOException {
+    File file = fileFromName(heapDumpFile.filename);
+    HprofIndex expected =
+        new HprofIndexer(new MemoryMappedFileBuffer(file), INDEXED_CLASS_NAMES).index();
+
+    HprofIndex index =
+        new HprofIndexer(new MemoryMappedFileBuffer(file), INDEXED_CLASS_NAMES, file, 4).index();
+
+    assertThat(index.objectCount()).isEqualTo(expected.objectCount());
+    for (int i = 0; i < expected.objectCount(); i++) {
+      assertThat(index.objectId(i)).isEqualTo(expected.objectId(i));
+      assertThat(index.tag(i)).isEqualTo(expected.tag(i));
+    }
+    assertThat(index.gcRootCount()).isEqualTo(expected.gcRootCount());
+    for (int root = 0; root < expected.gcRootCount(); root++) {
+      assertThat(index.gcRootIndex(root)).isEqualTo(expected.gcRootIndex(root));
+      assertThat(index.gcRootType(root)).isEqualTo(expected.gcRootType(root));
+      assertThat(index.gcRootThreadIndex(root)).isEqualTo(expected.gcRootThreadIndex(root));
+    }
+    String className = KeyedWeakReference.class.getName();
+    assertThat(index.instancesOf(className)).isEqualTo(expected.instancesOf(className));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void parallelismRequiresFile() {
+    new HprofIndexer(new FakeHprofBuffer(), INDEXED_CLASS_NAMES, null, 2);
+  }
+}
@@ -0,0 +1,86 @@
+package com.squareup.leakcanary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static com.squareup.leakcanary.HeapAnalyzer.Backend.HPROF_INDEX;
+import static com.squareup.leakcanary.HeapAnalyzer.Backend.SNAPSHOT;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_O;
+import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static com.squareup.leakcanary.TestUtil.fileFromName;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(Parameterized.class) //
+public class HprofTrimmerTest {
+
+  @Parameterized.Parameters public static Collection<Object[]> data() {
+    return asList(new Object[][] {
+        { ASYNC_TASK_PRE_M }, //
+        { ASYNC_TASK_M }, //
+        { ASYNC_TASK_O }, //
+    });
+  }
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final TestUtil.HeapDumpFile heapDumpFile;
+  private File file;
+  private File trimmedFile;
+
+  public HprofTrimmerTest(TestUtil.HeapDumpFile heapDumpFile) {
+    this.heapDumpFile = heapDumpFile;
+  }
+
+  @Before public void setUp() throws IOException {
+    file = fileFromName(heapDumpFile.filename);
+    trimmedFile = temporaryFolder.newFile("trimmed.hprof");
+    new HeapAnalyzer(NO_EXCLUDED_REFS).trimHeapDump(file, singleton(heapDumpFile.referenceKey),
+        trimmedFile);
+  }
+
+  @Test public void trimmedHeapDumpIsSmaller() {
+    assertThat(trimmedFile.length()).isLessThan(file.length() / 2);
+  }
+
+  @Test public void sameLeakTraceWithSnapshot() {
+    HeapAnalyzer heapAnalyzer = HeapAnalyzer.builder(NO_EXCLUDED_REFS).backend(SNAPSHOT).build();
+    AnalysisResult expected = heapAnalyzer.checkForLeak(file, heapDumpFile.referenceKey, false);
+
+    AnalysisResult result =
+        heapAnalyzer.checkForLeak(trimmedFile, heapDumpFile.referenceKey, false);
+
+    assertSameLeak(result, expected);
+    // perflib lists static fields in hash order, so only the short form of the trace is stable.
+    assertThat(String.valueOf(result.leakTrace)).isEqualTo(String.valueOf(expected.leakTrace));
+  }
+
+  @Test public void sameLeakTraceWithIndex() {
+    HeapAnalyzer heapAnalyzer = HeapAnalyzer.builder(NO_EXCLUDED_REFS).backend(HPROF_INDEX).build();
+    AnalysisResult expected = heapAnalyzer.checkForLeak(file, heapDumpFile.referenceKey, false);
+
+    AnalysisResult result =
+        heapAnalyzer.checkForLeak(trimmedFile, heapDumpFile.referenceKey, false);
+
+    assertSameLeak(result, expected);
+    assertThat(result.leakTrace.toDetailedString()).isEqualTo(
+        expected.leakTrace.toDetailedString());
+  }
+
+  private static void assertSameLeak(AnalysisResult result, AnalysisResult expected) {
+    assertThat(result.failure).isNull();
+    assertThat(result.leakFound).isTrue();
+    assertThat(result.excludedLeak).isEqualTo(expected.excludedLeak);
+    assertThat(result.className).isEqualTo(expected.className);
+  }
+}
@@ -0,0 +1,83 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.Field;
+import com.squareup.haha.perflib.Type;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class InstanceExclusionsTest {
+
+  private static final List<String> CLASS_NAMES = asList("Child", "Parent");
+  private static final List<Field[]> FIELDS = asList(
+      new Field[] { new Field(Type.OBJECT, "a"), new Field(Type.INT, "count") },
+      new Field[] { new Field(Type.OBJECT, "b") });
+
+  @Test public void noExclusions() {
+    InstanceExclusions exclusions =
+        InstanceExclusions.create(ExcludedRefs.builder().build(), CLASS_NAMES, FIELDS);
+
+    assertThat(exclusions.alwaysExcluded()).isFalse();
+    assertThat(exclusions.classExclusion).isNull();
+    assertThat(exclusions.fieldExclusions).containsExactly(null, null, null);
+  }
+
+  @Test public void fieldsInValueOrder() {
+    ExcludedRefs excludedRefs = ExcludedRefs.builder()
+        .instanceField("Child", "a").reason("child")
+        .instanceField("Parent", "b").reason("parent")
+        .build();
+
+    InstanceExclusions exclusions = InstanceExclusions.create(excludedRefs, CLASS_NAMES, FIELDS);
+
+    assertThat(exclusions.alwaysExcluded()).isFalse();
+    assertThat(exclusions.fieldExclusions[0].reason).isEqualTo("child");
+    assertThat(exclusions.fieldExclusions[1]).isNull();
+    assertThat(exclusions.fieldExclusions[2].reason).isEqualTo("parent");
+  }
+
+  @Test public void superClassExclusionAppliesToAllFields() {
+    ExcludedRefs excludedRefs = ExcludedRefs.builder()
+        .clazz("Parent").reason("parent")
+        .build();
+
+    InstanceExclusions exclusions = InstanceExclusions.create(excludedRefs, CLASS_NAMES, FIELDS);
+
+    assertThat(exclusions.alwaysExcluded()).isFalse();
+    assertThat(exclusions.classExclusion.reason).isEqualTo("parent");
+    for (Exclusion fieldExclusion : exclusions.fieldExclusions) {
+      assertThat(fieldExclusion.reason).isEqualTo("parent");
+    }
+  }
+
+  @Test public void alwaysExcludedClass() {
+    ExcludedRefs excludedRefs = ExcludedRefs.builder()
+        .clazz("Child").reason("child")
+        .clazz("Parent").reason("parent").alwaysExclude()
+        .build();
+
+    InstanceExclusions exclusions = InstanceExclusions.create(excludedRefs, CLASS_NAMES, FIELDS);
+
+    assertThat(exclusions.alwaysExcluded()).isTrue();
+    assertThat(exclusions.classExclusion.reason).isEqualTo("parent");
+  }
+
+  @Test public void alwaysExcludedFieldOverridesClassExclusion() {
+    ExcludedRefs excludedRefs = ExcludedRefs.builder()
+        .clazz("Child").reason("class")
+        .instanceField("Child", "a").reason("field").alwaysExclude()
+        .instanceField("Parent", "b").reason("weaker field")
+        .build();
+
+    InstanceExclusions exclusions = InstanceExclusions.create(excludedRefs, CLASS_NAMES, FIELDS);
+
+    assertThat(exclusions.fieldExclusions[0].reason).isEqualTo("field");
+    assertThat(exclusions.fieldExclusions[1].reason).isEqualTo("class");
+    assertThat(exclusions.fieldExclusions[2].reason).isEqualTo("class");
+  }
+}
@@ -0,0 +1,73 @@
+package com.squareup.leakcanary;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class IntQueueTest {
+
+  @Test public void firstInFirstOut() {
+    IntQueue queue = new IntQueue();
+    queue.add(3);
+    queue.add(1);
+    queue.add(2);
+    assertThat(queue.size()).isEqualTo(3);
+    assertThat(queue.poll()).isEqualTo(3);
+    assertThat(queue.poll()).isEqualTo(1);
+    assertThat(queue.poll()).isEqualTo(2);
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  @Test public void growsWhenWrappedAround() {
+    IntQueue queue = new IntQueue(4);
+    queue.add(0);
+    queue.add(1);
+    queue.add(2);
+    queue.poll();
+    queue.poll();
+    for (int i = 3; i < 10; i++) {
+      queue.add(i);
+    }
+    for (int i = 2; i < 10; i++) {
+      assertThat(queue.poll()).isEqualTo(i);
+    }
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  @Test public void clear() {
+    IntQueue queue = new IntQueue();
+    queue.add(1);
+    queue.clear();
+    assertThat(queue.isEmpty()).isTrue();
+    queue.add(2);
+    assertThat(queue.poll()).isEqualTo(2);
+  }
+
+  @Test public void sameOrderAsDeque() {
+    Random random = new Random(42);
+    IntQueue queue = new IntQueue(1);
+    Deque<Integer> expected = new ArrayDeque<>();
+    for (int i = 0; i < 50_000; i++) {
+      if (expected.isEmpty() || random.nextInt(3) != 0) {
+        int element = random.nextInt();
+        queue.add(element);
+        expected.add(element);
+      } else {
+        assertThat(queue.poll()).isEqualTo(expected.poll());
+      }
+      assertThat(queue.size()).isEqualTo(expected.size());
+    }
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void pollEmpty() {
+    new IntQueue().poll();
+  }
+}
@@ -0,0 +1,107 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.Instance;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Measures the heap retained per object by the state of {@link ShortestPathFinder}, with every
+ * object in its visited, to visit and to visit if no path sets: three LinkedHashSet of instances
+ * as it used to be, or a {@link LongIntMap} from instance id to index and three BitSets as it is
+ * now. Also compares a {@link LongSet} of ids with a HashSet of Long. Needs a 2 GB heap.
+ */
+public final class LongCollectionsMemoryBenchmark {
+
+  private static final int[] OBJECT_COUNTS = { 1_000_000, 4_000_000 };
+  private static final int SETS = 3;
+
+  public static void main(String[] args) {
+    for (final int objectCount : OBJECT_COUNTS) {
+      final List<Instance> instances = new ArrayList<>(objectCount);
+      for (int i = 0; i < objectCount; i++) {
+        instances.add(new ClassInstance(idOf(i), null, 0));
+      }
+      measure(objectCount, SETS + " x LinkedHashSet<Instance>", new Allocation() {
+        @Override public Object allocate() {
+          List<Set<Instance>> sets = new ArrayList<>();
+          for (int set = 0; set < SETS; set++) {
+            sets.add(new LinkedHashSet<>(instances));
+          }
+          return sets;
+        }
+      });
+      measure(objectCount, "LongIntMap + " + SETS + " x BitSet", new Allocation() {
+        @Override public Object allocate() {
+          LongIntMap indexes = new LongIntMap();
+          BitSet[] sets = new BitSet[SETS];
+          for (int set = 0; set < SETS; set++) {
+            sets[set] = new BitSet();
+          }
+          for (int i = 0; i < objectCount; i++) {
+            indexes.put(idOf(i), i);
+            for (BitSet set : sets) {
+              set.set(i);
+            }
+          }
+          return new Object[] { indexes, sets };
+        }
+      });
+      measure(objectCount, "HashSet<Long>", new Allocation() {
+        @Override public Object allocate() {
+          Set<Long> ids = new HashSet<>();
+          for (int i = 0; i < objectCount; i++) {
+            ids.add(idOf(i));
+          }
+          return ids;
+        }
+      });
+      measure(objectCount, "LongSet", new Allocation() {
+        @Override public Object allocate() {
+          LongSet ids = new LongSet();
+          for (int i = 0; i < objectCount; i++) {
+            ids.add(idOf(i));
+          }
+          return ids;
+        }
+      });
+    }
+  }
+
+  private interface Allocation {
+    /** Returns what to measure, which stays reachable until it's measured. */
+    Object allocate();
+  }
+
+  private static void measure(int objectCount, String name, Allocation allocation) {
+    long before = usedHeapBytes();
+    Object allocated = allocation.allocate();
+    long retainedBytes = usedHeapBytes() - before;
+    if (allocated == null) {
+      throw new AssertionError();
+    }
+    System.out.printf("%d objects, %s: %.1f bytes per object%n", objectCount, name,
+        (double) retainedBytes / objectCount);
+  }
+
+  /** Ids like the aligned addresses of an Android heap dump. */
+  private static long idOf(int i) {
+    return 0x12c00000L + 16L * i;
+  }
+
+  private static long usedHeapBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private LongCollectionsMemoryBenchmark() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,97 @@
+package com.squareup.leakcanary;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class LongIntMapTest {
+
+  @Test public void missingKey() {
+    LongIntMap map = new LongIntMap();
+    assertThat(map.get(42, -1)).isEqualTo(-1);
+    assertThat(map.containsKey(42)).isFalse();
+    assertThat(map.size()).isEqualTo(0);
+  }
+
+  @Test public void putThenGet() {
+    LongIntMap map = new LongIntMap();
+    map.put(0x12c0_0000L, 3);
+    assertThat(map.get(0x12c0_0000L, -1)).isEqualTo(3);
+    assertThat(map.containsKey(0x12c0_0000L)).isTrue();
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test public void putReplacesValue() {
+    LongIntMap map = new LongIntMap();
+    map.put(7, 1);
+    map.put(7, 2);
+    assertThat(map.get(7, -1)).isEqualTo(2);
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test public void zeroKey() {
+    LongIntMap map = new LongIntMap();
+    assertThat(map.containsKey(0)).isFalse();
+    map.put(0, 5);
+    map.put(0, 6);
+    assertThat(map.get(0, -1)).isEqualTo(6);
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test public void negativeAndExtremeKeys() {
+    LongIntMap map = new LongIntMap();
+    map.put(-1, 1);
+    map.put(Long.MIN_VALUE, 2);
+    map.put(Long.MAX_VALUE, 3);
+    assertThat(map.get(-1, -1)).isEqualTo(1);
+    assertThat(map.get(Long.MIN_VALUE, -1)).isEqualTo(2);
+    assertThat(map.get(Long.MAX_VALUE, -1)).isEqualTo(3);
+  }
+
+  @Test public void growsPastExpectedSize() {
+    LongIntMap map = new LongIntMap(2);
+    for (int i = 0; i < 10_000; i++) {
+      // Aligned like object ids.
+      map.put(0x12c0_0000L + i * 8L, i);
+    }
+    assertThat(map.size()).isEqualTo(10_000);
+    for (int i = 0; i < 10_000; i++) {
+      assertThat(map.get(0x12c0_0000L + i * 8L, -1)).isEqualTo(i);
+    }
+    assertThat(map.containsKey(0x12c0_0000L + 10_000 * 8L)).isFalse();
+  }
+
+  @Test public void clear() {
+    LongIntMap map = new LongIntMap();
+    map.put(0, 1);
+    map.put(1, 2);
+    map.clear();
+    assertThat(map.size()).isEqualTo(0);
+    assertThat(map.containsKey(0)).isFalse();
+    assertThat(map.containsKey(1)).isFalse();
+    map.put(1, 3);
+    assertThat(map.get(1, -1)).isEqualTo(3);
+  }
+
+  @Test public void sameContentAsHashMap() {
+    Random random = new Random(42);
+    LongIntMap map = new LongIntMap();
+    Map<Long, Integer> expected = new HashMap<>();
+    for (int i = 0; i < 50_000; i++) {
+      long key = random.nextInt(20_000) * 16L;
+      int value = random.nextInt();
+      map.put(key, value);
+      expected.put(key, value);
+    }
+    assertThat(map.size()).isEqualTo(expected.size());
+    for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+      assertThat(map.get(entry.getKey(), -1)).isEqualTo(entry.getValue());
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.squareup.leakcanary;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class LongSetTest {
+
+  @Test public void addReturnsWhetherNew() {
+    LongSet set = new LongSet();
+    assertThat(set.add(42)).isTrue();
+    assertThat(set.add(42)).isFalse();
+    assertThat(set.contains(42)).isTrue();
+    assertThat(set.contains(43)).isFalse();
+    assertThat(set.size()).isEqualTo(1);
+  }
+
+  @Test public void zero() {
+    LongSet set = new LongSet();
+    assertThat(set.contains(0)).isFalse();
+    assertThat(set.add(0)).isTrue();
+    assertThat(set.add(0)).isFalse();
+    assertThat(set.contains(0)).isTrue();
+    assertThat(set.size()).isEqualTo(1);
+  }
+
+  @Test public void growsPastExpectedSize() {
+    LongSet set = new LongSet(1);
+    for (int i = 0; i < 10_000; i++) {
+      assertThat(set.add(0x12c0_0000L + i * 8L)).isTrue();
+    }
+    assertThat(set.size()).isEqualTo(10_000);
+    for (int i = 0; i < 10_000; i++) {
+      assertThat(set.contains(0x12c0_0000L + i * 8L)).isTrue();
+    }
+    assertThat(set.contains(0x12c0_0000L + 10_000 * 8L)).isFalse();
+  }
+
+  @Test public void clear() {
+    LongSet set = new LongSet();
+    set.add(0);
+    set.add(Long.MIN_VALUE);
+    set.clear();
+    assertThat(set.size()).isEqualTo(0);
+    assertThat(set.contains(0)).isFalse();
+    assertThat(set.contains(Long.MIN_VALUE)).isFalse();
+  }
+
+  @Test public void sameContentAsHashSet() {
+    Random random = new Random(42);
+    LongSet set = new LongSet();
+    Set<Long> expected = new HashSet<>();
+    for (int i = 0; i < 50_000; i++) {
+      long key = random.nextLong();
+      assertThat(set.add(key)).isEqualTo(expected.add(key));
+    }
+    assertThat(set.size()).isEqualTo(expected.size());
+    for (long key : expected) {
+      assertThat(set.contains(key)).isTrue();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeExpectedSize() {
+    new LongSet(-1);
+  }
+}
@@ -8,11 +8,17 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import static com.squareup.leakcanary.HeapAnalyzer.Backend.HPROF_INDEX;
+import static com.squareup.leakcanary.HeapAnalyzer.Backend.SNAPSHOT;
+import static com.squareup.leakcanary.HeapAnalyzer.RetainedSizeAlgorithm.DOMINATORS;
+import static com.squareup.leakcanary.HeapAnalyzer.RetainedSizeAlgorithm.REACHABILITY;
 import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_M;
 import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_O;
 import static com.squareup.leakcanary.TestUtil.HeapDumpFile.ASYNC_TASK_PRE_M;
 import static com.squareup.leakcanary.TestUtil.analyze;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * This test makes sure there is no regression on the retained size calculation.
@@ -22,18 +28,32 @@ public class RetainedSizeTest {
 
   @Parameterized.Parameters public static Collection<Object[]> data() {
     return Arrays.asList(new Object[][] {
-        { ASYNC_TASK_PRE_M, 207_407 }, //
-        { ASYNC_TASK_M, 1_870 }, //
-        { ASYNC_TASK_O, 753 }, //
+        { ASYNC_TASK_PRE_M, SNAPSHOT, DOMINATORS, 207_407 }, //
+        { ASYNC_TASK_M, SNAPSHOT, DOMINATORS, 1_870 }, //
+        { ASYNC_TASK_O, SNAPSHOT, DOMINATORS, 753 }, //
+        { ASYNC_TASK_PRE_M, HPROF_INDEX, DOMINATORS, 207_407 }, //
+        { ASYNC_TASK_M, HPROF_INDEX, DOMINATORS, 1_870 }, //
+        { ASYNC_TASK_O, HPROF_INDEX, DOMINATORS, 753 }, //
+        { ASYNC_TASK_PRE_M, SNAPSHOT, REACHABILITY, 207_407 }, //
+        { ASYNC_TASK_M, SNAPSHOT, REACHABILITY, 1_870 }, //
+        { ASYNC_TASK_O, SNAPSHOT, REACHABILITY, 753 }, //
+        { ASYNC_TASK_PRE_M, HPROF_INDEX, REACHABILITY, 207_407 }, //
+        { ASYNC_TASK_M, HPROF_INDEX, REACHABILITY, 1_870 }, //
+        { ASYNC_TASK_O, HPROF_INDEX, REACHABILITY, 753 }, //
     });
   }
 
   private final TestUtil.HeapDumpFile heapDumpFile;
+  private final HeapAnalyzer.Backend backend;
+  private final HeapAnalyzer.RetainedSizeAlgorithm retainedSizeAlgorithm;
   private final long expectedRetainedHeapSize;
   ExcludedRefs.BuilderWithParams excludedRefs;
 
-  public RetainedSizeTest(TestUtil.HeapDumpFile heapDumpFile, long expectedRetainedHeapSize) {
+  public RetainedSizeTest(TestUtil.HeapDumpFile heapDumpFile, HeapAnalyzer.Backend backend,
+      HeapAnalyzer.RetainedSizeAlgorithm retainedSizeAlgorithm, long expectedRetainedHeapSize) {
     this.heapDumpFile = heapDumpFile;
+    this.backend = backend;
+    this.retainedSizeAlgorithm = retainedSizeAlgorithm;
     this.expectedRetainedHeapSize = expectedRetainedHeapSize;
   }
 
@@ -45,7 +65,23 @@ public class RetainedSizeTest {
   }
 
   @Test public void leakFound() {
-    AnalysisResult result = analyze(heapDumpFile, excludedRefs);
+    AnalysisResult result = analyze(heapDumpFile, excludedRefs, backend, retainedSizeAlgorithm);
     assertEquals(expectedRetainedHeapSize, result.retainedHeapSize);
+    assertFalse(result.retainedSizeTruncated);
+  }
+
+  @Test public void approximateWithinBudgetIsExact() {
+    AnalysisResult result = analyze(heapDumpFile, excludedRefs, backend, retainedSizeAlgorithm,
+        HeapAnalyzer.RetainedSizeMode.approximate(1_000_000));
+    assertEquals(expectedRetainedHeapSize, result.retainedHeapSize);
+    assertFalse(result.retainedSizeTruncated);
+  }
+
+  @Test public void approximateOverBudgetIsLowerBound() {
+    AnalysisResult result = analyze(heapDumpFile, excludedRefs, backend, retainedSizeAlgorithm,
+        HeapAnalyzer.RetainedSizeMode.approximate(1));
+    assertTrue(result.retainedSizeTruncated);
+    assertTrue(result.retainedHeapSize > 0);
+    assertTrue(result.retainedHeapSize < expectedRetainedHeapSize);
   }
 }
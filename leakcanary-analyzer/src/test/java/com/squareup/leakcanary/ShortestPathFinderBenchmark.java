@@ -0,0 +1,132 @@
+package com.squareup.leakcanary;
+
+import com.squareup.haha.perflib.ClassInstance;
+import com.squareup.haha.perflib.ClassObj;
+import com.squareup.haha.perflib.HprofParser;
+import com.squareup.haha.perflib.Instance;
+import com.squareup.haha.perflib.Snapshot;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static com.squareup.leakcanary.HahaHelper.classInstanceValues;
+import static com.squareup.leakcanary.HahaHelper.fieldValue;
+import static com.squareup.leakcanary.TestUtil.NO_EXCLUDED_REFS;
+import static java.util.Collections.singleton;
+
+/**
+ * Measures {@link ShortestPathFinder#findPaths} on the heap dump passed as argument, from the gc
+ * roots to:
+ * <ul>
+ * <li>the referent of its first {@link KeyedWeakReference}</li>
+ * <li>the same referent, after excluding fields on its paths until it's only reachable through
+ * excluded references</li>
+ * <li>the referents of all its keyed weak references and an instance that isn't in the heap
+ * dump, so that the whole heap is traversed</li>
+ * </ul>
+ * Use a large heap dump.
+ */
+public final class ShortestPathFinderBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int ITERATIONS = 5;
+  private static final int MAX_EXCLUDED_FIELDS = 100;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      throw new IllegalArgumentException("Usage: ShortestPathFinderBenchmark <heap dump>");
+    }
+    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(NO_EXCLUDED_REFS);
+    Snapshot snapshot = new HprofParser(CompressedHprof.openBuffer(new File(args[0]))).parse();
+    heapAnalyzer.deduplicateGcRoots(snapshot);
+    Set<Instance> leakingRefs = findReferents(snapshot);
+    Set<Instance> firstLeakingRef = singleton(leakingRefs.iterator().next());
+
+    ExcludedRefs excludedRefs = excludeUntilOnlyReachableThroughExclusions(snapshot,
+        firstLeakingRef.iterator().next());
+
+    Instance unreachable = new ClassInstance(0, null, 0);
+    unreachable.setHeap(snapshot.getHeaps().iterator().next());
+    leakingRefs.add(unreachable);
+
+    measure("Direct leak", new ShortestPathFinder(NO_EXCLUDED_REFS), snapshot, firstLeakingRef);
+    measure("Excluded leak", new ShortestPathFinder(excludedRefs), snapshot, firstLeakingRef);
+    measure("Whole heap", new ShortestPathFinder(NO_EXCLUDED_REFS), snapshot, leakingRefs);
+  }
+
+  private static void measure(String name, final ShortestPathFinder pathFinder,
+      final Snapshot snapshot, final Set<Instance> leakingRefs) throws IOException {
+    Benchmark.Measure measure = new Benchmark() {
+      @Override void run() {
+        pathFinder.findPaths(snapshot, leakingRefs);
+      }
+    }.measure(WARMUP_ITERATIONS, ITERATIONS);
+    System.out.printf("%s, %d leaking references: %s per search%n", name, leakingRefs.size(),
+        measure);
+  }
+
+  /**
+   * Excludes the field closest to the leaking instance on its path, until all of its paths go
+   * through an excluded field.
+   */
+  private static ExcludedRefs excludeUntilOnlyReachableThroughExclusions(Snapshot snapshot,
+      Instance leakingRef) {
+    ExcludedRefs.Builder builder = ExcludedRefs.builder();
+    ExcludedRefs excludedRefs = builder.build();
+    for (int i = 0; i < MAX_EXCLUDED_FIELDS; i++) {
+      ShortestPathFinder.Result result =
+          new ShortestPathFinder(excludedRefs).findPaths(snapshot, singleton(leakingRef))
+              .get(leakingRef);
+      if (result.leakingNode == null) {
+        throw new IllegalStateException("No path to the leaking instance");
+      }
+      if (result.excludingKnownLeaks) {
+        return excludedRefs;
+      }
+      excludeClosestField(result.leakingNode, builder);
+      excludedRefs = builder.build();
+    }
+    throw new IllegalStateException(
+        "Still reachable after excluding " + MAX_EXCLUDED_FIELDS + " fields");
+  }
+
+  private static void excludeClosestField(LeakNode node, ExcludedRefs.Builder builder) {
+    for (; node.parent != null; node = node.parent) {
+      Instance holder = node.parent.instance;
+      if (node.referenceType == LeakTraceElement.Type.INSTANCE_FIELD) {
+        String fieldName = ((ClassInstance) holder).getValues()
+            .get(node.referenceIndex)
+            .getField()
+            .getName();
+        builder.instanceField(holder.getClassObj().getClassName(), fieldName);
+        return;
+      } else if (node.referenceType == LeakTraceElement.Type.STATIC_FIELD) {
+        ClassObj classObj = (ClassObj) holder;
+        String fieldName = new ArrayList<>(classObj.getStaticFieldValues().keySet())
+            .get(node.referenceIndex)
+            .getName();
+        builder.staticField(classObj.getClassName(), fieldName);
+        return;
+      }
+    }
+    throw new IllegalStateException("No field on the path to the leaking instance");
+  }
+
+  private static Set<Instance> findReferents(Snapshot snapshot) {
+    ClassObj refClass = snapshot.findClass(KeyedWeakReference.class.getName());
+    Set<Instance> referents = new LinkedHashSet<>();
+    for (Instance instance : refClass.getInstancesList()) {
+      Instance referent = fieldValue(classInstanceValues(instance), "referent");
+      if (referent != null) {
+        referents.add(referent);
+      }
+    }
+    return referents;
+  }
+
+  private ShortestPathFinderBenchmark() {
+    throw new AssertionError();
+  }
+}
@@ -52,11 +52,36 @@ final class TestUtil {
 
   static AnalysisResult analyze(HeapDumpFile heapDumpFile,
       ExcludedRefs.BuilderWithParams excludedRefs) {
+    return analyze(heapDumpFile, excludedRefs, HeapAnalyzer.Backend.SNAPSHOT);
+  }
+
+  static AnalysisResult analyze(HeapDumpFile heapDumpFile,
+      ExcludedRefs.BuilderWithParams excludedRefs, HeapAnalyzer.Backend backend) {
+    return analyze(heapDumpFile, excludedRefs, backend,
+        HeapAnalyzer.RetainedSizeAlgorithm.DOMINATORS);
+  }
+
+  static AnalysisResult analyze(HeapDumpFile heapDumpFile,
+      ExcludedRefs.BuilderWithParams excludedRefs, HeapAnalyzer.Backend backend,
+      HeapAnalyzer.RetainedSizeAlgorithm retainedSizeAlgorithm) {
+    return analyze(heapDumpFile, excludedRefs, backend, retainedSizeAlgorithm,
+        HeapAnalyzer.RetainedSizeMode.EXACT);
+  }
+
+  static AnalysisResult analyze(HeapDumpFile heapDumpFile,
+      ExcludedRefs.BuilderWithParams excludedRefs, HeapAnalyzer.Backend backend,
+      HeapAnalyzer.RetainedSizeAlgorithm retainedSizeAlgorithm,
+      HeapAnalyzer.RetainedSizeMode retainedSizeMode) {
     File file = fileFromName(heapDumpFile.filename);
     String referenceKey = heapDumpFile.referenceKey;
-    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(excludedRefs.build());
+    HeapAnalyzer heapAnalyzer =
+        HeapAnalyzer.builder(excludedRefs.build())
+            .backend(backend)
+            .parallelism(1)
+            .retainedSizeAlgorithm(retainedSizeAlgorithm)
+            .build();
     AnalysisResult result =
-        heapAnalyzer.checkForLeak(file, referenceKey, true);
+        heapAnalyzer.checkForLeak(file, referenceKey, retainedSizeMode);
     if (result.failure != null) {
       result.failure.printStackTrace();
     }
@@ -22,7 +22,9 @@ import android.os.Debug;
 import android.os.SystemClock;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import org.junit.runner.notification.RunListener;
@@ -171,24 +173,30 @@ public final class InstrumentationLeakDetector {
     ExcludedRefs excludedRefs = refWatcher.getExcludedRefs();
     HeapAnalyzer heapAnalyzer = new HeapAnalyzer(excludedRefs);
 
-    List<TrackedReference> trackedReferences = heapAnalyzer.findTrackedReferences(heapDumpFile);
+    List<TrackedReference> trackedReferences = new ArrayList<>();
+    Set<String> trackedKeys = new LinkedHashSet<>();
+    for (TrackedReference trackedReference : heapAnalyzer.findTrackedReferences(heapDumpFile)) {
+      // Ignore any Weak Reference that this test does not care about.
+      if (retainedKeys.contains(trackedReference.key)) {
+        trackedReferences.add(trackedReference);
+        trackedKeys.add(trackedReference.key);
+      }
+    }
+
+    // All the keys are analyzed together so that the heap dump is only parsed once.
+    Map<String, AnalysisResult> analysisResults =
+        heapAnalyzer.checkForLeaks(heapDumpFile, trackedKeys, false);
 
     List<InstrumentationLeakResults.Result> detectedLeaks = new ArrayList<>();
     List<InstrumentationLeakResults.Result> excludedLeaks = new ArrayList<>();
     List<InstrumentationLeakResults.Result> failures = new ArrayList<>();
 
     for (TrackedReference trackedReference : trackedReferences) {
-      // Ignore any Weak Reference that this test does not care about.
-      if (!retainedKeys.contains(trackedReference.key)) {
-        continue;
-      }
-
       HeapDump.Durations durations = new HeapDump.Durations(0, 0, 0);
       HeapDump heapDump =
           new HeapDump(heapDumpFile, trackedReference.key, trackedReference.name, excludedRefs,
               false, durations);
-      AnalysisResult analysisResult =
-          heapAnalyzer.checkForLeak(heapDumpFile, trackedReference.key, false);
+      AnalysisResult analysisResult = analysisResults.get(trackedReference.key);
 
       InstrumentationLeakResults.Result leakResult =
           new InstrumentationLeakResults.Result(heapDump, analysisResult);
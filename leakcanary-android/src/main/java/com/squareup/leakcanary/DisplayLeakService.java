@@ -48,6 +48,9 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
     boolean shouldSaveResult = result.leakFound || result.failure != null;
     if (shouldSaveResult) {
       heapDump = renameHeapdump(heapDump);
+      if (stripPrimitiveArrays()) {
+        stripHeapDump(heapDump);
+      }
       resultSaved = saveResult(heapDump, result);
     }
 
@@ -118,6 +121,31 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
     return false;
   }
 
+  /**
+   * Replaces the heap dump file with a copy where the content of primitive arrays is zeroed, see
+   * {@link HeapAnalyzer#stripPrimitiveArrays(File, File)}. Keeps the original file on failure.
+   */
+  private void stripHeapDump(HeapDump heapDump) {
+    File heapDumpFile = heapDump.heapDumpFile;
+    File strippedFile = new File(heapDumpFile.getParent(), heapDumpFile.getName() + ".stripped");
+    try {
+      HeapAnalyzer.builder(heapDump.excludedRefs)
+          .build()
+          .stripPrimitiveArrays(heapDumpFile, strippedFile);
+    } catch (IOException e) {
+      CanaryLog.d(e, "Could not strip primitive arrays from heap dump %s", heapDumpFile);
+      //noinspection ResultOfMethodCallIgnored
+      strippedFile.delete();
+      return;
+    }
+    if (!strippedFile.renameTo(heapDumpFile)) {
+      CanaryLog.d("Could not replace heap dump file %s with %s", heapDumpFile.getPath(),
+          strippedFile.getPath());
+      //noinspection ResultOfMethodCallIgnored
+      strippedFile.delete();
+    }
+  }
+
   private HeapDump renameHeapdump(HeapDump heapDump) {
     String fileName =
         new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss_SSS'.hprof'", Locale.US).format(new Date());
@@ -132,7 +160,19 @@ public class DisplayLeakService extends AbstractAnalysisResultService {
         new HeapDump.Durations(heapDump.watchDurationMs, heapDump.gcDurationMs,
             heapDump.heapDumpDurationMs);
     return new HeapDump(newFile, heapDump.referenceKey, heapDump.referenceName,
-        heapDump.excludedRefs, heapDump.computeRetainedHeapSize, durations);
+        heapDump.excludedRefs, heapDump.computeRetainedHeapSize, durations,
+        heapDump.retainedReferenceNames);
+  }
+
+  /**
+   * Returns true to zero the content of primitive arrays in the heap dumps that are kept, except
+   * for the characters of strings. This doesn't change the leak traces or retained sizes, and
+   * makes heap dumps compress much better, e.g. before {@link #afterDefaultHandling(HeapDump,
+   * AnalysisResult, String)} uploads them. Bitmap pixels and other primitive values are lost.
+   * Defaults to false.
+   */
+  protected boolean stripPrimitiveArrays() {
+    return false;
   }
 
   /**
@@ -114,6 +114,11 @@ public final class LeakCanary {
       if (result.retainedHeapSize != AnalysisResult.RETAINED_HEAP_SKIPPED) {
         info += "* Retaining: " + formatShortFileSize(context, result.retainedHeapSize) + ".\n";
       }
+      if (result.retainedNativeSize > 0) {
+        info += "* Retaining native: "
+            + formatShortFileSize(context, result.retainedNativeSize)
+            + ".\n";
+      }
       if (detailed) {
         detailedString = "\n* Details:\n" + result.leakTrace.toDetailedString();
       }
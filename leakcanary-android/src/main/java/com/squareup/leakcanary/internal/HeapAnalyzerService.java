@@ -25,6 +25,15 @@ import com.squareup.leakcanary.CanaryLog;
 import com.squareup.leakcanary.HeapAnalyzer;
 import com.squareup.leakcanary.HeapDump;
 import com.squareup.leakcanary.R;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import static com.squareup.leakcanary.internal.LeakCanaryInternals.setEnabledBlocking;
 
@@ -37,6 +46,8 @@ public final class HeapAnalyzerService extends ForegroundService
 
   private static final String LISTENER_CLASS_EXTRA = "listener_class_extra";
   private static final String HEAPDUMP_EXTRA = "heapdump_extra";
+  /** The analysis runs in the background, it leaves the other cores to the app. */
+  private static final int MAX_PARSING_THREADS = 2;
 
   public static void runAnalysis(Context context, HeapDump heapDump,
       Class<? extends AbstractAnalysisResultService> listenerServiceClass) {
@@ -60,11 +71,89 @@ public final class HeapAnalyzerService extends ForegroundService
     String listenerClassName = intent.getStringExtra(LISTENER_CLASS_EXTRA);
     HeapDump heapDump = (HeapDump) intent.getSerializableExtra(HEAPDUMP_EXTRA);
 
-    HeapAnalyzer heapAnalyzer = new HeapAnalyzer(heapDump.excludedRefs, this);
+    int parallelism = Math.min(MAX_PARSING_THREADS, Runtime.getRuntime().availableProcessors());
+    HeapAnalyzer heapAnalyzer = HeapAnalyzer.builder(heapDump.excludedRefs)
+        .listener(this)
+        .backend(HeapAnalyzer.Backend.HPROF_INDEX)
+        .parallelism(parallelism)
+        .build();
 
-    AnalysisResult result = heapAnalyzer.checkForLeak(heapDump.heapDumpFile, heapDump.referenceKey,
-        heapDump.computeRetainedHeapSize);
-    AbstractAnalysisResultService.sendResultToListener(this, listenerClassName, heapDump, result);
+    // The references checked together share the heap dump, which is parsed once for all of them.
+    Map<String, AnalysisResult> results = heapAnalyzer.checkForLeaks(heapDump.heapDumpFile,
+        heapDump.retainedKeys, heapDump.computeRetainedHeapSize);
+    List<String> reportedKeys = reportedKeys(heapDump, results);
+
+    // The listener owns the heap dump file it receives and deletes it, so every reported key but
+    // the first gets its own copy. They are all copied before any is sent.
+    List<HeapDump> reportedHeapDumps = new ArrayList<>();
+    for (int i = 0; i < reportedKeys.size(); i++) {
+      String key = reportedKeys.get(i);
+      File heapDumpFile = heapDump.heapDumpFile;
+      if (i > 0) {
+        heapDumpFile = new File(heapDumpFile.getParentFile(), i + "_" + heapDumpFile.getName());
+        try {
+          copyFile(heapDump.heapDumpFile, heapDumpFile);
+        } catch (IOException e) {
+          CanaryLog.d(e, "Could not copy heap dump %s, not reporting leak: %s",
+              heapDump.heapDumpFile, results.get(key).leakTrace);
+          //noinspection ResultOfMethodCallIgnored
+          heapDumpFile.delete();
+          continue;
+        }
+      }
+      HeapDump.Durations durations =
+          new HeapDump.Durations(heapDump.watchDurationMs, heapDump.gcDurationMs,
+              heapDump.heapDumpDurationMs);
+      reportedHeapDumps.add(
+          new HeapDump(heapDumpFile, key, heapDump.retainedReferenceNames.get(key),
+              heapDump.excludedRefs, heapDump.computeRetainedHeapSize, durations,
+              heapDump.retainedReferenceNames));
+    }
+    for (HeapDump reportedHeapDump : reportedHeapDumps) {
+      AbstractAnalysisResultService.sendResultToListener(this, listenerClassName,
+          reportedHeapDump, results.get(reportedHeapDump.referenceKey));
+    }
+  }
+
+  /**
+   * Returns the keys whose result goes to the listener: every key with a leak, oldest first, else
+   * the first key whose analysis failed, else {@link HeapDump#referenceKey}.
+   */
+  private static List<String> reportedKeys(HeapDump heapDump,
+      Map<String, AnalysisResult> results) {
+    List<String> leakingKeys = new ArrayList<>();
+    String failedKey = null;
+    for (String key : heapDump.retainedKeys) {
+      AnalysisResult result = results.get(key);
+      if (result.leakFound) {
+        leakingKeys.add(key);
+      } else if (result.failure != null && failedKey == null) {
+        failedKey = key;
+      }
+    }
+    if (!leakingKeys.isEmpty()) {
+      return leakingKeys;
+    }
+    return Collections.singletonList(failedKey != null ? failedKey : heapDump.referenceKey);
+  }
+
+  private static void copyFile(File source, File destination) throws IOException {
+    FileInputStream input = new FileInputStream(source);
+    try {
+      FileOutputStream output = new FileOutputStream(destination);
+      try {
+        FileChannel inputChannel = input.getChannel();
+        long size = inputChannel.size();
+        long position = 0;
+        while (position < size) {
+          position += inputChannel.transferTo(position, size - position, output.getChannel());
+        }
+      } finally {
+        output.close();
+      }
+    } finally {
+      input.close();
+    }
   }
 
   @Override public void onProgressUpdate(Step step) {
@@ -17,6 +17,10 @@ package com.squareup.leakcanary;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import static com.squareup.leakcanary.Preconditions.checkNotNull;
 
@@ -50,6 +54,18 @@ public final class HeapDump implements Serializable {
    */
   public final String referenceName;
 
+  /**
+   * Keys of all the {@link KeyedWeakReference} instances that were retained when the heap was
+   * dumped, oldest first, including {@link #referenceKey}. They were checked together and share
+   * this heap dump, so they should be analyzed together.
+   */
+  public final Set<String> retainedKeys;
+
+  /**
+   * The user defined name of each of the {@link #retainedKeys}, see {@link #referenceName}.
+   */
+  public final Map<String, String> retainedReferenceNames;
+
   /** References that should be ignored when analyzing this heap dump. */
   public final ExcludedRefs excludedRefs;
 
@@ -75,9 +91,24 @@ public final class HeapDump implements Serializable {
 
   public HeapDump(File heapDumpFile, String referenceKey, String referenceName,
       ExcludedRefs excludedRefs, boolean computeRetainedHeapSize, Durations durations) {
+    this(heapDumpFile, referenceKey, referenceName, excludedRefs, computeRetainedHeapSize,
+        durations, Collections.singletonMap(referenceKey, referenceName));
+  }
+
+  /**
+   * @param retainedReferenceNames the name of each retained reference by key, oldest first. Must
+   * contain referenceKey.
+   */
+  public HeapDump(File heapDumpFile, String referenceKey, String referenceName,
+      ExcludedRefs excludedRefs, boolean computeRetainedHeapSize, Durations durations,
+      Map<String, String> retainedReferenceNames) {
     this.heapDumpFile = checkNotNull(heapDumpFile, "heapDumpFile");
     this.referenceKey = checkNotNull(referenceKey, "referenceKey");
     this.referenceName = checkNotNull(referenceName, "referenceName");
+    checkNotNull(retainedReferenceNames, "retainedReferenceNames");
+    this.retainedReferenceNames =
+        Collections.unmodifiableMap(new LinkedHashMap<>(retainedReferenceNames));
+    this.retainedKeys = this.retainedReferenceNames.keySet();
     this.excludedRefs = checkNotNull(excludedRefs, "excludedRefs");
     this.computeRetainedHeapSize = computeRetainedHeapSize;
     this.watchDurationMs = durations.watchDurationMs;
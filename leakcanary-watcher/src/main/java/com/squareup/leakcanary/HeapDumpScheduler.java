@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Limits how often the {@link RefWatcher} dumps the heap, for the lifetime of the process. Heap
+ * dumps are budgeted with token buckets: one holds up to an hour worth of dumps and refills at
+ * the allowed dumps per hour, the other holds a day worth of bytes and refills at the allowed
+ * bytes per day. There is also a minimum time between two heap dumps.
+ *
+ * <p>When the budget is exhausted, the check of the retained references is retried later as if
+ * the {@link HeapDumper} had returned {@link HeapDumper#RETRY_LATER}. A scheduler can be shared by
+ * several {@link RefWatcher} instances.
+ */
+public final class HeapDumpScheduler {
+
+  /** Never skips a heap dump. */
+  public static final HeapDumpScheduler UNLIMITED =
+      new HeapDumpScheduler(Integer.MAX_VALUE, 0, NANOSECONDS, Long.MAX_VALUE);
+
+  private static final double HOUR_NANOS = HOURS.toNanos(1);
+  private static final double DAY_NANOS = DAYS.toNanos(1);
+
+  private final int maxDumpsPerHour;
+  private final long minSpacingNanos;
+  private final long maxBytesPerDay;
+
+  private boolean updated;
+  private long lastUpdateNanoTime;
+  private boolean dumped;
+  private long lastDumpNanoTime;
+  /** Heap dumps that can be taken now, up to maxDumpsPerHour. */
+  private double availableDumps;
+  /** Bytes that can be dumped now, up to maxBytesPerDay. Negative after a large heap dump. */
+  private double availableBytes;
+  private long skippedDumpCount;
+
+  /**
+   * @param maxDumpsPerHour how many heap dumps can be taken in an hour, also the most that can be
+   * taken in a burst.
+   * @param minSpacing minimum time between the end of a heap dump and the next one.
+   * @param maxBytesPerDay how many bytes of heap dumps can be written in a day. A heap dump can
+   * exceed what is left, then the next one waits until the budget is positive again.
+   */
+  public HeapDumpScheduler(int maxDumpsPerHour, long minSpacing, TimeUnit minSpacingUnit,
+      long maxBytesPerDay) {
+    if (maxDumpsPerHour < 1) {
+      throw new IllegalArgumentException(
+          "maxDumpsPerHour must be at least 1, not " + maxDumpsPerHour);
+    }
+    if (minSpacing < 0) {
+      throw new IllegalArgumentException("minSpacing must not be negative, not " + minSpacing);
+    }
+    if (maxBytesPerDay < 1) {
+      throw new IllegalArgumentException(
+          "maxBytesPerDay must be at least 1, not " + maxBytesPerDay);
+    }
+    this.maxDumpsPerHour = maxDumpsPerHour;
+    this.minSpacingNanos = minSpacingUnit.toNanos(minSpacing);
+    this.maxBytesPerDay = maxBytesPerDay;
+    availableDumps = maxDumpsPerHour;
+    availableBytes = maxBytesPerDay;
+  }
+
+  /** Returns how many heap dumps were skipped because the budget was exhausted. */
+  public synchronized long getSkippedDumpCount() {
+    return skippedDumpCount;
+  }
+
+  /**
+   * Returns true if the heap can be dumped at nanoTime, otherwise counts a skipped heap dump.
+   * Doesn't use the budget, see {@link #onHeapDumped(long, long)}.
+   */
+  synchronized boolean canDumpHeap(long nanoTime) {
+    refill(nanoTime);
+    if ((dumped && nanoTime - lastDumpNanoTime < minSpacingNanos)
+        || availableDumps < 1
+        || availableBytes <= 0) {
+      skippedDumpCount++;
+      return false;
+    }
+    return true;
+  }
+
+  /** Uses the budget for a heap dump of heapDumpBytes that completed at nanoTime. */
+  synchronized void onHeapDumped(long nanoTime, long heapDumpBytes) {
+    refill(nanoTime);
+    dumped = true;
+    lastDumpNanoTime = nanoTime;
+    availableDumps--;
+    availableBytes -= heapDumpBytes;
+  }
+
+  private void refill(long nanoTime) {
+    if (!updated) {
+      updated = true;
+      lastUpdateNanoTime = nanoTime;
+      return;
+    }
+    long elapsedNanos = nanoTime - lastUpdateNanoTime;
+    if (elapsedNanos <= 0) {
+      return;
+    }
+    lastUpdateNanoTime = nanoTime;
+    availableDumps = Math.min(maxDumpsPerHour, availableDumps
+        + elapsedNanos * (double) maxDumpsPerHour / HOUR_NANOS);
+    availableBytes = Math.min(maxBytesPerDay, availableBytes
+        + elapsedNanos * (double) maxBytesPerDay / DAY_NANOS);
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.io.File;
+
+import static com.squareup.leakcanary.HeapDumper.RETRY_LATER;
+import static com.squareup.leakcanary.Preconditions.checkNotNull;
+
+/**
+ * Decides when the {@link RefWatcher} dumps the heap for the references it found retained, and
+ * dumps it with a {@link HeapDumper}. Retained references accumulate until there are
+ * {@link #retainedThreshold} of them or the oldest one has waited {@link #maxRetainedWaitNanos},
+ * so that a reference collected a moment later doesn't cost a heap dump, and each heap dump covers
+ * more leaks. The {@link HeapDumpScheduler} has the last word.
+ */
+final class HeapDumpTrigger {
+
+  final HeapDumper heapDumper;
+  final HeapDumpScheduler heapDumpScheduler;
+  final int retainedThreshold;
+  /**
+   * How long after the oldest retained reference started being watched the heap is dumped, even
+   * below {@link #retainedThreshold}. This is also how long its check can be left to the check of
+   * a later reference.
+   */
+  final long maxRetainedWaitNanos;
+
+  HeapDumpTrigger(HeapDumper heapDumper, HeapDumpScheduler heapDumpScheduler,
+      int retainedThreshold, long maxRetainedWaitNanos) {
+    this.heapDumper = checkNotNull(heapDumper, "heapDumper");
+    this.heapDumpScheduler = checkNotNull(heapDumpScheduler, "heapDumpScheduler");
+    this.retainedThreshold = retainedThreshold;
+    this.maxRetainedWaitNanos = maxRetainedWaitNanos;
+  }
+
+  boolean shouldDump(int retainedCount, long oldestRetainedAgeNanos) {
+    return retainedCount >= retainedThreshold || oldestRetainedAgeNanos >= maxRetainedWaitNanos;
+  }
+
+  /**
+   * Returns the heap dump file, or {@link HeapDumper#RETRY_LATER} if the heap could not be dumped
+   * or the {@link HeapDumpScheduler} skipped the heap dump.
+   */
+  File dumpHeap() {
+    if (!heapDumpScheduler.canDumpHeap(System.nanoTime())) {
+      return RETRY_LATER;
+    }
+    File heapDumpFile = heapDumper.dumpHeap();
+    if (heapDumpFile != RETRY_LATER) {
+      heapDumpScheduler.onHeapDumped(System.nanoTime(), heapDumpFile.length());
+    }
+    return heapDumpFile;
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Set of {@link KeyedWeakReference} indexed by {@link KeyedWeakReference#id}, safe for concurrent
+ * use. The references are spread over segments that each hold an array with open addressing and
+ * linear probing and have their own lock, so threads watching at the same time rarely contend and
+ * nothing is allocated per reference.
+ */
+final class KeyedReferenceTable {
+
+  private static final int SEGMENT_BITS = 4;
+  private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+  private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+  private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+  KeyedReferenceTable() {
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  void add(KeyedWeakReference reference) {
+    int hash = hash(reference.id);
+    segments[hash >>> (32 - SEGMENT_BITS)].add(reference, hash);
+  }
+
+  /** Returns true if reference was in the table. */
+  boolean remove(KeyedWeakReference reference) {
+    int hash = hash(reference.id);
+    return segments[hash >>> (32 - SEGMENT_BITS)].remove(reference, hash);
+  }
+
+  boolean contains(KeyedWeakReference reference) {
+    int hash = hash(reference.id);
+    return segments[hash >>> (32 - SEGMENT_BITS)].contains(reference, hash);
+  }
+
+  boolean isEmpty() {
+    for (Segment segment : segments) {
+      if (!segment.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /** Returns the references in the table, in no particular order. */
+  List<KeyedWeakReference> references() {
+    List<KeyedWeakReference> references = new ArrayList<>();
+    for (Segment segment : segments) {
+      segment.addTo(references);
+    }
+    return references;
+  }
+
+  /** Spreads the bits of id, which are consecutive. The high bits pick the segment. */
+  static int hash(long id) {
+    long h = id * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private static final class Segment {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private KeyedWeakReference[] slots = new KeyedWeakReference[INITIAL_SEGMENT_CAPACITY];
+    private int size;
+
+    synchronized void add(KeyedWeakReference reference, int hash) {
+      int slot = slot(reference.id, hash);
+      if (slots[slot] != null) {
+        return;
+      }
+      slots[slot] = reference;
+      if (++size > slots.length * LOAD_FACTOR) {
+        rehash(slots.length * 2);
+      }
+    }
+
+    synchronized boolean remove(KeyedWeakReference reference, int hash) {
+      int slot = slot(reference.id, hash);
+      if (slots[slot] != reference) {
+        return false;
+      }
+      // Backward shift deletion: moves the following references of the probe sequence up so that
+      // lookups never stop at the freed slot before reaching them.
+      int mask = slots.length - 1;
+      int free = slot;
+      int next = (free + 1) & mask;
+      while (slots[next] != null) {
+        int home = hash(slots[next].id) & mask;
+        // Moves the reference at next to free unless its home slot is cyclically in (free, next].
+        if (((next - home) & mask) >= ((next - free) & mask)) {
+          slots[free] = slots[next];
+          free = next;
+        }
+        next = (next + 1) & mask;
+      }
+      slots[free] = null;
+      size--;
+      return true;
+    }
+
+    synchronized boolean contains(KeyedWeakReference reference, int hash) {
+      return slots[slot(reference.id, hash)] == reference;
+    }
+
+    synchronized boolean isEmpty() {
+      return size == 0;
+    }
+
+    synchronized void clear() {
+      Arrays.fill(slots, null);
+      size = 0;
+    }
+
+    synchronized void addTo(List<KeyedWeakReference> references) {
+      for (KeyedWeakReference reference : slots) {
+        if (reference != null) {
+          references.add(reference);
+        }
+      }
+    }
+
+    /** Returns the slot holding id, or the free slot where it would be added. */
+    private int slot(long id, int hash) {
+      int mask = slots.length - 1;
+      int slot = hash & mask;
+      while (slots[slot] != null && slots[slot].id != id) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private void rehash(int capacity) {
+      KeyedWeakReference[] oldSlots = slots;
+      slots = new KeyedWeakReference[capacity];
+      for (KeyedWeakReference reference : oldSlots) {
+        if (reference != null) {
+          slots[slot(reference.id, hash(reference.id))] = reference;
+        }
+      }
+    }
+  }
+}
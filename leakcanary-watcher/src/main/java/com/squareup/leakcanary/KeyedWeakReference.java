@@ -20,15 +20,36 @@ import java.lang.ref.WeakReference;
 
 import static com.squareup.leakcanary.Preconditions.checkNotNull;
 
-/** @see {@link HeapDump#referenceKey}. */
-final class KeyedWeakReference extends WeakReference<Object> {
+/**
+ * @see {@link HeapDump#referenceKey}.
+ *
+ * Also the {@link Retryable} that checks its referent, so that watching an object only allocates
+ * this reference and its key.
+ */
+final class KeyedWeakReference extends WeakReference<Object> implements Retryable {
   public final String key;
   public final String name;
+  /** Unique to the {@link RefWatcher}, increases in the order references are watched. */
+  final long id;
+  /** {@link System#nanoTime()} when the referent started being watched. */
+  final long watchStartNanoTime;
+  private final RefWatcher refWatcher;
+  /** Whether this is in the waiting references of refWatcher. Guarded by its check lock. */
+  boolean waiting;
+  /** Whether refWatcher ran the check of this reference. Guarded by its check lock. */
+  boolean checkStarted;
 
-  KeyedWeakReference(Object referent, String key, String name,
-      ReferenceQueue<Object> referenceQueue) {
+  KeyedWeakReference(Object referent, String key, String name, long id, long watchStartNanoTime,
+      RefWatcher refWatcher, ReferenceQueue<Object> referenceQueue) {
     super(checkNotNull(referent, "referent"), checkNotNull(referenceQueue, "referenceQueue"));
     this.key = checkNotNull(key, "key");
     this.name = checkNotNull(name, "name");
+    this.id = id;
+    this.watchStartNanoTime = watchStartNanoTime;
+    this.refWatcher = checkNotNull(refWatcher, "refWatcher");
+  }
+
+  @Override public Result run() {
+    return refWatcher.ensureGone(this);
   }
-}
\ No newline at end of file
+}
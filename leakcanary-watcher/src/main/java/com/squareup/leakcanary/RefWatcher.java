@@ -17,48 +17,100 @@ package com.squareup.leakcanary;
 
 import java.io.File;
 import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.squareup.leakcanary.HeapDumper.RETRY_LATER;
 import static com.squareup.leakcanary.Preconditions.checkNotNull;
 import static com.squareup.leakcanary.Retryable.Result.DONE;
 import static com.squareup.leakcanary.Retryable.Result.RETRY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * Watches references that should become weakly reachable. When the {@link RefWatcher} detects that
  * a reference might not be weakly reachable when it should, it triggers the {@link HeapDumper}.
  *
+ * <p>Checks are batched: the check of a reference covers every retained reference whose check
+ * already ran, and is left to the check of another reference when one hasn't run yet, for up to
+ * {@link HeapDumpTrigger#maxRetainedWaitNanos}. References destroyed together are then handled by
+ * one GC and at most one heap dump, which the {@link HeapDumpTrigger} can delay until more
+ * references are retained. References covered by a heap dump aren't checked again. A check reuses
+ * a GC that completed less than {@link #GC_REUSE_WINDOW_NANOS} ago instead of running another one,
+ * if its references were all watched before that GC.
+ *
  * <p>This class is thread-safe: you can call {@link #watch(Object)} from any thread.
  */
 public final class RefWatcher {
 
   public static final RefWatcher DISABLED = new RefWatcherBuilder<>().build();
 
+  /**
+   * How long after a GC completed a check can rely on it instead of running another GC, if every
+   * reference of its batch was watched before that GC started.
+   */
+  static final long GC_REUSE_WINDOW_NANOS = MILLISECONDS.toNanos(500);
+
   private final WatchExecutor watchExecutor;
   private final DebuggerControl debuggerControl;
   private final GcTrigger gcTrigger;
-  private final HeapDumper heapDumper;
-  private final Set<String> retainedKeys;
+  private final HeapDumpTrigger heapDumpTrigger;
+  /** Watched references that aren't weakly reachable yet. */
+  private final KeyedReferenceTable retainedReferences;
+  /**
+   * Keys are this prefix followed by the reference id. The prefix is random so that keys stay
+   * unique across processes, without paying for a random UUID on each watch.
+   */
+  private final String keyPrefix;
+  private final AtomicLong nextId = new AtomicLong();
+  /**
+   * Number of watched references whose check hasn't run yet. A check can only be left to one of
+   * those, because a check that already ran might never run again. Decremented with checkLock held.
+   */
+  private final AtomicInteger unstartedChecks = new AtomicInteger();
+  /** Held while checking, so that concurrent checks don't dump the heap for the same batch. */
+  private final Object checkLock = new Object();
+  /**
+   * Retained references whose check was left to the check of a later reference and that haven't
+   * been part of a heap dump yet. Guarded by checkLock.
+   */
+  private final Deque<KeyedWeakReference> waitingReferences = new ArrayDeque<>();
+  /** Incremented each time a check runs the GC. Written with checkLock held. */
+  private volatile long gcEpoch;
+  /** Number of checks that reused the last GC. Written with checkLock held. */
+  private volatile long reusedGcCount;
+  /** Guarded by checkLock, valid when gcEpoch isn't 0. */
+  private long lastGcStartNanoTime;
+  /** Guarded by checkLock, valid when gcEpoch isn't 0. */
+  private long lastGcEndNanoTime;
   private final ReferenceQueue<Object> queue;
   private final HeapDump.Listener heapdumpListener;
   private final ExcludedRefs excludedRefs;
   private final boolean computeRetainedHeapSize;
 
   RefWatcher(WatchExecutor watchExecutor, DebuggerControl debuggerControl, GcTrigger gcTrigger,
-      HeapDumper heapDumper, HeapDump.Listener heapdumpListener, ExcludedRefs excludedRefs,
-      boolean computeRetainedHeapSize) {
+      HeapDumpTrigger heapDumpTrigger, HeapDump.Listener heapdumpListener,
+      ExcludedRefs excludedRefs, boolean computeRetainedHeapSize) {
     this.watchExecutor = checkNotNull(watchExecutor, "watchExecutor");
     this.debuggerControl = checkNotNull(debuggerControl, "debuggerControl");
     this.gcTrigger = checkNotNull(gcTrigger, "gcTrigger");
-    this.heapDumper = checkNotNull(heapDumper, "heapDumper");
+    this.heapDumpTrigger = checkNotNull(heapDumpTrigger, "heapDumpTrigger");
     this.heapdumpListener = checkNotNull(heapdumpListener, "heapdumpListener");
     this.excludedRefs = checkNotNull(excludedRefs, "excludedRefs");
     this.computeRetainedHeapSize = computeRetainedHeapSize;
-    retainedKeys = new CopyOnWriteArraySet<>();
+    retainedReferences = new KeyedReferenceTable();
+    keyPrefix = UUID.randomUUID().toString() + '-';
     queue = new ReferenceQueue<>();
   }
 
@@ -84,13 +136,16 @@ public final class RefWatcher {
     }
     checkNotNull(watchedReference, "watchedReference");
     checkNotNull(referenceName, "referenceName");
-    final long watchStartNanoTime = System.nanoTime();
-    String key = UUID.randomUUID().toString();
-    retainedKeys.add(key);
-    final KeyedWeakReference reference =
-        new KeyedWeakReference(watchedReference, key, referenceName, queue);
+    long watchStartNanoTime = System.nanoTime();
+    long id = nextId.getAndIncrement();
+    String key = keyPrefix + id;
+    KeyedWeakReference reference =
+        new KeyedWeakReference(watchedReference, key, referenceName, id, watchStartNanoTime, this,
+            queue);
+    retainedReferences.add(reference);
+    unstartedChecks.incrementAndGet();
 
-    ensureGoneAsync(watchStartNanoTime, reference);
+    watchExecutor.execute(reference);
   }
 
   /**
@@ -98,12 +153,25 @@ public final class RefWatcher {
    * so far.
    */
   public void clearWatchedReferences() {
-    retainedKeys.clear();
+    retainedReferences.clear();
   }
 
   boolean isEmpty() {
     removeWeaklyReachableReferences();
-    return retainedKeys.isEmpty();
+    return retainedReferences.isEmpty();
+  }
+
+  /** Returns how many times checks ran the GC. */
+  public long getForcedGcCount() {
+    return gcEpoch;
+  }
+
+  /**
+   * Returns how many times a check didn't run the GC because another check had just run it after
+   * the references were watched. This is the number of forced GCs avoided.
+   */
+  public long getReusedGcCount() {
+    return reusedGcCount;
   }
 
   ExcludedRefs getExcludedRefs() {
@@ -111,54 +179,162 @@ public final class RefWatcher {
   }
 
   Set<String> getRetainedKeys() {
-    return new HashSet<>(retainedKeys);
-  }
-
-  private void ensureGoneAsync(final long watchStartNanoTime, final KeyedWeakReference reference) {
-    watchExecutor.execute(new Retryable() {
-      @Override public Retryable.Result run() {
-        return ensureGone(reference, watchStartNanoTime);
-      }
-    });
+    Set<String> retainedKeys = new HashSet<>();
+    for (KeyedWeakReference reference : retainedReferences.references()) {
+      retainedKeys.add(reference.key);
+    }
+    return retainedKeys;
   }
 
   @SuppressWarnings("ReferenceEquality") // Explicitly checking for named null.
-  Retryable.Result ensureGone(final KeyedWeakReference reference, final long watchStartNanoTime) {
+  Retryable.Result ensureGone(final KeyedWeakReference reference) {
     long gcStartNanoTime = System.nanoTime();
-    long watchDurationMs = NANOSECONDS.toMillis(gcStartNanoTime - watchStartNanoTime);
 
     removeWeaklyReachableReferences();
 
-    if (debuggerControl.isDebuggerAttached()) {
-      // The debugger can create false leaks.
-      return RETRY;
-    }
-    if (gone(reference)) {
-      return DONE;
-    }
-    gcTrigger.runGc();
-    removeWeaklyReachableReferences();
-    if (!gone(reference)) {
+    synchronized (checkLock) {
+      if (!reference.checkStarted) {
+        reference.checkStarted = true;
+        unstartedChecks.decrementAndGet();
+      }
+      boolean retained = retainedReferences.contains(reference);
+      if (debuggerControl.isDebuggerAttached()) {
+        // The debugger can create false leaks. Any later check covers this reference.
+        if (retained) {
+          addWaitingReference(reference);
+        }
+        return RETRY;
+      }
+      KeyedWeakReference oldest = oldestWaitingReference();
+      if (oldest == null && !retained) {
+        return DONE;
+      }
+      long oldestWatchStartNanoTime =
+          oldest != null ? oldest.watchStartNanoTime : reference.watchStartNanoTime;
+      if (unstartedChecks.get() > 0
+          && gcStartNanoTime - oldestWatchStartNanoTime < heapDumpTrigger.maxRetainedWaitNanos) {
+        // Another watched reference hasn't been checked yet, and its check will cover this batch,
+        // with a single GC.
+        if (retained) {
+          addWaitingReference(reference);
+        }
+        return DONE;
+      }
+      List<KeyedWeakReference> batch = retainedBatch(reference);
+      if (canReuseLastGc(batch)) {
+        reusedGcCount++;
+      } else {
+        lastGcStartNanoTime = System.nanoTime();
+        gcTrigger.runGc();
+        lastGcEndNanoTime = System.nanoTime();
+        gcEpoch++;
+        removeWeaklyReachableReferences();
+        batch = retainedBatch(reference);
+      }
+      if (batch.isEmpty()) {
+        // The references became weakly reachable or were cleared by clearWatchedReferences().
+        return DONE;
+      }
+      oldest = batch.get(0);
+      if (!heapDumpTrigger.shouldDump(batch.size(),
+          gcStartNanoTime - oldest.watchStartNanoTime)) {
+        // Waits for more references to be retained, this check runs again later.
+        for (KeyedWeakReference batched : batch) {
+          addWaitingReference(batched);
+        }
+        return RETRY;
+      }
       long startDumpHeap = System.nanoTime();
       long gcDurationMs = NANOSECONDS.toMillis(startDumpHeap - gcStartNanoTime);
 
-      File heapDumpFile = heapDumper.dumpHeap();
+      File heapDumpFile = heapDumpTrigger.dumpHeap();
       if (heapDumpFile == RETRY_LATER) {
-        // Could not dump the heap.
+        // Could not dump the heap. Any later check covers this batch.
+        for (KeyedWeakReference batched : batch) {
+          addWaitingReference(batched);
+        }
         return RETRY;
       }
       long heapDumpDurationMs = NANOSECONDS.toMillis(System.nanoTime() - startDumpHeap);
+      Map<String, String> retainedReferenceNames = new LinkedHashMap<>();
+      for (KeyedWeakReference batched : batch) {
+        retainedReferenceNames.put(batched.key, batched.name);
+      }
+      for (KeyedWeakReference waiting : waitingReferences) {
+        waiting.waiting = false;
+      }
+      waitingReferences.clear();
+      long watchDurationMs = NANOSECONDS.toMillis(gcStartNanoTime - oldest.watchStartNanoTime);
       HeapDump.Durations durations =
           new HeapDump.Durations(watchDurationMs, gcDurationMs, heapDumpDurationMs);
       heapdumpListener.analyze(
-          new HeapDump(heapDumpFile, reference.key, reference.name, excludedRefs,
-              computeRetainedHeapSize, durations));
+          new HeapDump(heapDumpFile, oldest.key, oldest.name, excludedRefs,
+              computeRetainedHeapSize, durations, retainedReferenceNames));
     }
     return DONE;
   }
 
-  private boolean gone(KeyedWeakReference reference) {
-    return !retainedKeys.contains(reference.key);
+  /**
+   * Returns true if the last GC started after every reference of batch was watched, and completed
+   * recently enough that the references it didn't clear can be considered retained without
+   * running another GC. The references it cleared have already been removed from the queue.
+   */
+  private boolean canReuseLastGc(List<KeyedWeakReference> batch) {
+    if (batch.isEmpty()
+        || gcEpoch == 0
+        || System.nanoTime() - lastGcEndNanoTime >= GC_REUSE_WINDOW_NANOS) {
+      return false;
+    }
+    for (KeyedWeakReference reference : batch) {
+      if (reference.watchStartNanoTime - lastGcStartNanoTime >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the first waiting reference that is still retained, which is usually the oldest since
+   * references are added in the order they were watched, or null. The references before it are
+   * removed, so that this is amortized constant time.
+   */
+  private KeyedWeakReference oldestWaitingReference() {
+    while (!waitingReferences.isEmpty()) {
+      KeyedWeakReference first = waitingReferences.peekFirst();
+      if (retainedReferences.contains(first)) {
+        return first;
+      }
+      waitingReferences.pollFirst().waiting = false;
+    }
+    return null;
+  }
+
+  private void addWaitingReference(KeyedWeakReference reference) {
+    if (!reference.waiting) {
+      reference.waiting = true;
+      waitingReferences.add(reference);
+    }
+  }
+
+  /**
+   * Returns the waiting references and reference that are still retained, oldest first.
+   */
+  private List<KeyedWeakReference> retainedBatch(KeyedWeakReference reference) {
+    List<KeyedWeakReference> batch = new ArrayList<>();
+    for (KeyedWeakReference waiting : waitingReferences) {
+      if (retainedReferences.contains(waiting)) {
+        batch.add(waiting);
+      }
+    }
+    if (!reference.waiting && retainedReferences.contains(reference)) {
+      batch.add(reference);
+    }
+    Collections.sort(batch, new Comparator<KeyedWeakReference>() {
+      @Override public int compare(KeyedWeakReference lhs, KeyedWeakReference rhs) {
+        return lhs.id < rhs.id ? -1 : (lhs.id > rhs.id ? 1 : 0);
+      }
+    });
+    return batch;
   }
 
   private void removeWeaklyReachableReferences() {
@@ -166,7 +342,7 @@ public final class RefWatcher {
     // reachable. This is before finalization or garbage collection has actually happened.
     KeyedWeakReference ref;
     while ((ref = (KeyedWeakReference) queue.poll()) != null) {
-      retainedKeys.remove(ref.key);
+      retainedReferences.remove(ref);
     }
   }
 }
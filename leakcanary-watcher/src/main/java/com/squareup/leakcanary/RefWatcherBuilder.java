@@ -1,18 +1,27 @@
 package com.squareup.leakcanary;
 
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 /**
  * Responsible for building {@link RefWatcher} instances. Subclasses should provide sane defaults
  * for the platform they support.
  */
 public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
 
+  private static final long DEFAULT_MAX_RETAINED_WAIT_NANOS = SECONDS.toNanos(10);
+
   private ExcludedRefs excludedRefs;
   private HeapDump.Listener heapDumpListener;
   private DebuggerControl debuggerControl;
   private HeapDumper heapDumper;
+  private HeapDumpScheduler heapDumpScheduler;
   private WatchExecutor watchExecutor;
   private GcTrigger gcTrigger;
   private boolean computeRetainedHeapSize;
+  private int retainedThreshold = 1;
+  private long maxRetainedWaitNanos = DEFAULT_MAX_RETAINED_WAIT_NANOS;
 
   /** @see HeapDump.Listener */
   public final T heapDumpListener(HeapDump.Listener heapDumpListener) {
@@ -32,6 +41,12 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
     return self();
   }
 
+  /** @see HeapDumpScheduler */
+  public final T heapDumpScheduler(HeapDumpScheduler heapDumpScheduler) {
+    this.heapDumpScheduler = heapDumpScheduler;
+    return self();
+  }
+
   /** @see DebuggerControl */
   public final T debuggerControl(DebuggerControl debuggerControl) {
     this.debuggerControl = debuggerControl;
@@ -59,6 +74,36 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
     return self();
   }
 
+  /**
+   * How many watched references must be retained before the heap is dumped. Retained references
+   * accumulate until there are that many, or until the oldest one has waited for
+   * {@link #maxRetainedWait(long, TimeUnit)}, so that each heap dump covers more leaks. Default is
+   * 1: the heap is dumped as soon as a reference is retained.
+   */
+  public final T retainedThreshold(int retainedThreshold) {
+    if (retainedThreshold < 1) {
+      throw new IllegalArgumentException(
+          "retainedThreshold must be at least 1, not " + retainedThreshold);
+    }
+    this.retainedThreshold = retainedThreshold;
+    return self();
+  }
+
+  /**
+   * How long after a retained reference started being watched the heap is dumped, even if fewer
+   * than {@link #retainedThreshold(int)} references are retained. The check runs again with the
+   * backoff of the {@link WatchExecutor}, so the heap can be dumped later than that. Default is
+   * 10 seconds.
+   */
+  public final T maxRetainedWait(long maxRetainedWait, TimeUnit unit) {
+    if (maxRetainedWait < 0) {
+      throw new IllegalArgumentException(
+          "maxRetainedWait must not be negative, not " + maxRetainedWait);
+    }
+    this.maxRetainedWaitNanos = unit.toNanos(maxRetainedWait);
+    return self();
+  }
+
   /** Creates a {@link RefWatcher}. */
   public final RefWatcher build() {
     if (isDisabled()) {
@@ -85,6 +130,11 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
       heapDumper = defaultHeapDumper();
     }
 
+    HeapDumpScheduler heapDumpScheduler = this.heapDumpScheduler;
+    if (heapDumpScheduler == null) {
+      heapDumpScheduler = defaultHeapDumpScheduler();
+    }
+
     WatchExecutor watchExecutor = this.watchExecutor;
     if (watchExecutor == null) {
       watchExecutor = defaultWatchExecutor();
@@ -95,8 +145,12 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
       gcTrigger = defaultGcTrigger();
     }
 
-    return new RefWatcher(watchExecutor, debuggerControl, gcTrigger, heapDumper, heapDumpListener,
-        excludedRefs, computeRetainedHeapSize);
+    HeapDumpTrigger heapDumpTrigger =
+        new HeapDumpTrigger(heapDumper, heapDumpScheduler, retainedThreshold,
+            maxRetainedWaitNanos);
+
+    return new RefWatcher(watchExecutor, debuggerControl, gcTrigger, heapDumpTrigger,
+        heapDumpListener, excludedRefs, computeRetainedHeapSize);
   }
 
   protected boolean isDisabled() {
@@ -119,6 +173,10 @@ public class RefWatcherBuilder<T extends RefWatcherBuilder<T>> {
     return HeapDumper.NONE;
   }
 
+  protected HeapDumpScheduler defaultHeapDumpScheduler() {
+    return HeapDumpScheduler.UNLIMITED;
+  }
+
   protected HeapDump.Listener defaultHeapDumpListener() {
     return HeapDump.Listener.NONE;
   }
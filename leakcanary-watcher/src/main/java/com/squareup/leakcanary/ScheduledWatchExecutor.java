@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.squareup.leakcanary.Retryable.Result.RETRY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * {@link WatchExecutor} for the JVM. Checks run on a single daemon thread after the initial delay,
+ * and are retried with an exponential backoff, like the Android watch executor.
+ *
+ * <p>At most maxPendingChecks checks are scheduled or running at once, retries included. Checks
+ * submitted beyond that wait in submission order and are scheduled as pending checks complete.
+ * Checks submitted while maxWaitingChecks are already waiting are dropped. After
+ * {@link #shutdown()}, waiting and submitted checks are dropped and scheduled checks don't run,
+ * see {@link #getDroppedCheckCount()}.
+ *
+ * <p>An exception thrown by a check is passed to the uncaught exception handler of the thread.
+ */
+public final class ScheduledWatchExecutor implements WatchExecutor {
+
+  static final String LEAK_CANARY_THREAD_NAME = "LeakCanary-Heap-Dump";
+  /** Enough for the check of every reference when 100k+ references are watched at once. */
+  static final int DEFAULT_MAX_WAITING_CHECKS = 200_000;
+
+  private final ScheduledThreadPoolExecutor executor;
+  private final long initialDelayMillis;
+  private final long maxBackoffFactor;
+  private final int maxPendingChecks;
+  private final AtomicInteger pendingChecks = new AtomicInteger();
+  /** Checks submitted while maxPendingChecks were pending. */
+  private final BlockingQueue<Retryable> waitingChecks;
+  private final AtomicLong droppedCheckCount = new AtomicLong();
+
+  public ScheduledWatchExecutor(long initialDelayMillis, int maxPendingChecks) {
+    this(initialDelayMillis, maxPendingChecks, DEFAULT_MAX_WAITING_CHECKS);
+  }
+
+  public ScheduledWatchExecutor(long initialDelayMillis, int maxPendingChecks,
+      int maxWaitingChecks) {
+    if (initialDelayMillis < 0) {
+      throw new IllegalArgumentException(
+          "initialDelayMillis must not be negative, not " + initialDelayMillis);
+    }
+    if (maxPendingChecks < 1) {
+      throw new IllegalArgumentException(
+          "maxPendingChecks must be at least 1, not " + maxPendingChecks);
+    }
+    if (maxWaitingChecks < 1) {
+      throw new IllegalArgumentException(
+          "maxWaitingChecks must be at least 1, not " + maxWaitingChecks);
+    }
+    executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, LEAK_CANARY_THREAD_NAME);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    this.initialDelayMillis = initialDelayMillis;
+    maxBackoffFactor = Long.MAX_VALUE / Math.max(1, initialDelayMillis);
+    this.maxPendingChecks = maxPendingChecks;
+    waitingChecks = new LinkedBlockingQueue<>(maxWaitingChecks);
+  }
+
+  @Override public void execute(Retryable retryable) {
+    if (executor.isShutdown()) {
+      droppedCheckCount.incrementAndGet();
+      return;
+    }
+    if (!waitingChecks.offer(retryable)) {
+      droppedCheckCount.incrementAndGet();
+      return;
+    }
+    // A shutdown since the check above would leave the check waiting forever.
+    if (executor.isShutdown()) {
+      dropWaitingChecks();
+      return;
+    }
+    scheduleWaitingChecks();
+  }
+
+  /**
+   * Returns how many checks were dropped because they were submitted after shutdown or while
+   * maxWaitingChecks were waiting, or were still waiting at shutdown.
+   */
+  public long getDroppedCheckCount() {
+    return droppedCheckCount.get();
+  }
+
+  /**
+   * Stops accepting checks and drops the scheduled ones. A running check completes, but isn't
+   * retried.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    dropWaitingChecks();
+  }
+
+  /** Blocks until a running check has completed after {@link #shutdown()}, or the timeout. */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return executor.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * Schedules waiting checks while fewer than maxPendingChecks are pending. Called after a check
+   * is submitted and after a check completes, so that a waiting check can't be left behind.
+   */
+  private void scheduleWaitingChecks() {
+    while (!waitingChecks.isEmpty()) {
+      if (pendingChecks.incrementAndGet() > maxPendingChecks) {
+        pendingChecks.decrementAndGet();
+        return;
+      }
+      Retryable retryable = waitingChecks.poll();
+      if (retryable == null) {
+        pendingChecks.decrementAndGet();
+        return;
+      }
+      scheduleWithDelay(retryable, 0);
+    }
+  }
+
+  private void dropWaitingChecks() {
+    while (waitingChecks.poll() != null) {
+      droppedCheckCount.incrementAndGet();
+    }
+  }
+
+  private void scheduleWithDelay(final Retryable retryable, final int failedAttempts) {
+    long exponentialBackoffFactor = (long) Math.min(Math.pow(2, failedAttempts), maxBackoffFactor);
+    long delayMillis = initialDelayMillis * exponentialBackoffFactor;
+    Runnable check = new Runnable() {
+      @Override public void run() {
+        boolean retry = false;
+        try {
+          retry = retryable.run() == RETRY && !executor.isShutdown();
+        } catch (Throwable e) {
+          // The scheduled future would swallow the exception.
+          Thread thread = Thread.currentThread();
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+        if (retry) {
+          scheduleWithDelay(retryable, failedAttempts + 1);
+        } else {
+          pendingChecks.decrementAndGet();
+          scheduleWaitingChecks();
+        }
+      }
+    };
+    try {
+      executor.schedule(check, delayMillis, MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Shut down in between.
+      droppedCheckCount.incrementAndGet();
+      pendingChecks.decrementAndGet();
+      dropWaitingChecks();
+    }
+  }
+}
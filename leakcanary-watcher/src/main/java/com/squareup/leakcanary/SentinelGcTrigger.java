@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.leakcanary;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * {@link GcTrigger} that knows when the GC is done with references: before running the GC, it
+ * creates a weak reference to a sentinel object that nothing else references, then waits for that
+ * reference to be enqueued. The reference queue daemon enqueues the references cleared by a GC
+ * together, so this returns as soon as the watched references are enqueued, instead of sleeping
+ * for a fixed time. If the sentinel isn't enqueued in time, e.g. because the VM ignored the GC
+ * request, this tries again with more GCs.
+ */
+final class SentinelGcTrigger implements GcTrigger {
+
+  /** How long to wait for the sentinel reference to be enqueued after each round of GCs. */
+  private static final long ENQUEUE_TIMEOUT_MS = 100;
+  /** Each attempt runs twice as many GCs as the previous one. */
+  private static final int MAX_ATTEMPTS = 3;
+
+  @Override public void runGc() {
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      ReferenceQueue<Object> queue = new ReferenceQueue<>();
+      Reference<Object> sentinel = newSentinel(queue);
+      int gcCount = 1 << attempt;
+      for (int i = 0; i < gcCount; i++) {
+        // System.gc() does not garbage collect every time. Runtime.gc() is
+        // more likely to perfom a gc.
+        Runtime.getRuntime().gc();
+      }
+      if (awaitEnqueued(queue, sentinel)) {
+        break;
+      }
+    }
+    System.runFinalization();
+  }
+
+  /**
+   * Separate method so that the sentinel object isn't held by a local variable of
+   * {@link #runGc()}.
+   */
+  private static Reference<Object> newSentinel(ReferenceQueue<Object> queue) {
+    return new WeakReference<>(new Object(), queue);
+  }
+
+  private static boolean awaitEnqueued(ReferenceQueue<Object> queue, Reference<Object> sentinel) {
+    try {
+      return queue.remove(ENQUEUE_TIMEOUT_MS) == sentinel;
+    } catch (InterruptedException e) {
+      throw new AssertionError();
+    }
+  }
+}
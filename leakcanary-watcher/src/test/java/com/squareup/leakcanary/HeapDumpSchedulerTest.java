@@ -0,0 +1,58 @@
+package com.squareup.leakcanary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class HeapDumpSchedulerTest {
+
+  @Test public void dumpsPerHourExhausted_skipUntilRefilled() {
+    HeapDumpScheduler scheduler = new HeapDumpScheduler(2, 0, MINUTES, Long.MAX_VALUE);
+    long now = 0;
+    assertTrue(dump(scheduler, now, 1));
+    assertTrue(dump(scheduler, now, 1));
+    assertFalse(scheduler.canDumpHeap(now));
+    assertFalse(scheduler.canDumpHeap(now + MINUTES.toNanos(29)));
+    assertTrue(scheduler.canDumpHeap(now + MINUTES.toNanos(30)));
+    assertEquals(2, scheduler.getSkippedDumpCount());
+  }
+
+  @Test public void dumpTooSoon_skipped() {
+    HeapDumpScheduler scheduler = new HeapDumpScheduler(100, 10, MINUTES, Long.MAX_VALUE);
+    assertTrue(dump(scheduler, 0, 1));
+    assertFalse(scheduler.canDumpHeap(MINUTES.toNanos(9)));
+    assertTrue(scheduler.canDumpHeap(MINUTES.toNanos(10)));
+    assertEquals(1, scheduler.getSkippedDumpCount());
+  }
+
+  @Test public void bytesPerDayExceeded_skipUntilRefilled() {
+    HeapDumpScheduler scheduler = new HeapDumpScheduler(100, 0, MINUTES, 100);
+    assertTrue(dump(scheduler, 0, 150));
+    assertFalse(scheduler.canDumpHeap(HOURS.toNanos(11)));
+    assertTrue(scheduler.canDumpHeap(HOURS.toNanos(13)));
+  }
+
+  @Test public void idleForDays_burstLimitedToOneHour() {
+    HeapDumpScheduler scheduler = new HeapDumpScheduler(1, 0, MINUTES, Long.MAX_VALUE);
+    assertTrue(dump(scheduler, 0, 1));
+    long later = DAYS.toNanos(3);
+    assertTrue(dump(scheduler, later, 1));
+    assertFalse(scheduler.canDumpHeap(later));
+  }
+
+  private static boolean dump(HeapDumpScheduler scheduler, long nanoTime, long bytes) {
+    if (!scheduler.canDumpHeap(nanoTime)) {
+      return false;
+    }
+    scheduler.onHeapDumped(nanoTime, bytes);
+    return true;
+  }
+}
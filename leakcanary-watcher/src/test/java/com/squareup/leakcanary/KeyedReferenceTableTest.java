@@ -0,0 +1,78 @@
+package com.squareup.leakcanary;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class KeyedReferenceTableTest {
+
+  private final Object referent = new Object();
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+  @Test public void addedReference_contained() {
+    KeyedReferenceTable table = new KeyedReferenceTable();
+    KeyedWeakReference reference = newReference(0);
+    table.add(reference);
+    assertTrue(table.contains(reference));
+    assertFalse(table.isEmpty());
+  }
+
+  @Test public void removedReference_notContained() {
+    KeyedReferenceTable table = new KeyedReferenceTable();
+    KeyedWeakReference reference = newReference(0);
+    table.add(reference);
+    assertTrue(table.remove(reference));
+    assertFalse(table.contains(reference));
+    assertFalse(table.remove(reference));
+    assertTrue(table.isEmpty());
+  }
+
+  @Test public void otherReferenceSameId_notContained() {
+    KeyedReferenceTable table = new KeyedReferenceTable();
+    table.add(newReference(0));
+    KeyedWeakReference other = newReference(0);
+    assertFalse(table.contains(other));
+    assertFalse(table.remove(other));
+  }
+
+  @Test public void manyReferencesSomeRemoved_othersContained() {
+    KeyedReferenceTable table = new KeyedReferenceTable();
+    List<KeyedWeakReference> references = new ArrayList<>();
+    for (int id = 0; id < 10_000; id++) {
+      KeyedWeakReference reference = newReference(id);
+      references.add(reference);
+      table.add(reference);
+    }
+    for (int id = 0; id < references.size(); id += 3) {
+      assertTrue(table.remove(references.get(id)));
+    }
+    for (int id = 0; id < references.size(); id++) {
+      assertEquals(id % 3 != 0, table.contains(references.get(id)));
+    }
+    assertEquals(references.size() * 2 / 3, new HashSet<>(table.references()).size());
+  }
+
+  @Test public void clear_empty() {
+    KeyedReferenceTable table = new KeyedReferenceTable();
+    KeyedWeakReference reference = newReference(0);
+    table.add(reference);
+    table.add(newReference(1));
+    table.clear();
+    assertTrue(table.isEmpty());
+    assertFalse(table.contains(reference));
+    assertTrue(table.references().isEmpty());
+  }
+
+  private KeyedWeakReference newReference(long id) {
+    return new KeyedWeakReference(referent, "key" + id, "", id, 0, RefWatcher.DISABLED, queue);
+  }
+}
@@ -0,0 +1,86 @@
+package com.squareup.leakcanary;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link RefWatcher#watch(Object)} throughput and allocations with threads watching
+ * concurrently, until 100k+ references are watched at once. Checks are never run, so that every
+ * watched reference stays in the {@link RefWatcher}.
+ */
+public final class RefWatcherBenchmark {
+
+  private static final int THREADS = 8;
+  private static final int WATCHES_PER_THREAD = 25_000;
+  private static final int WARMUP_ITERATIONS = 2;
+  private static final int ITERATIONS = 5;
+
+  public static void main(String[] args) throws InterruptedException {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      run();
+    }
+    long totalNanos = 0;
+    long totalBytes = 0;
+    for (int i = 0; i < ITERATIONS; i++) {
+      long[] result = run();
+      totalNanos += result[0];
+      totalBytes += result[1];
+    }
+    int watches = THREADS * WATCHES_PER_THREAD;
+    System.out.printf("%d threads, %d watches: %.1f ms, %.0f ns and %.0f bytes per watch%n",
+        THREADS, watches, totalNanos / 1e6 / ITERATIONS, (double) totalNanos / ITERATIONS / watches,
+        (double) totalBytes / ITERATIONS / watches);
+  }
+
+  /** Returns the wall time in nanos and the bytes allocated by the watching threads. */
+  private static long[] run() throws InterruptedException {
+    final RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(new WatchExecutor() {
+      @Override public void execute(Retryable retryable) {
+      }
+    }).build();
+    final List<Object> watched = new ArrayList<>(THREADS * WATCHES_PER_THREAD);
+    for (int i = 0; i < THREADS * WATCHES_PER_THREAD; i++) {
+      watched.add(new Object());
+    }
+    // Counting the allocations of each thread needs a HotSpot JVM.
+    final com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(THREADS);
+    final AtomicLong allocatedBytes = new AtomicLong();
+    for (int t = 0; t < THREADS; t++) {
+      final int offset = t * WATCHES_PER_THREAD;
+      new Thread() {
+        @Override public void run() {
+          long threadId = Thread.currentThread().getId();
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+          for (int i = 0; i < WATCHES_PER_THREAD; i++) {
+            refWatcher.watch(watched.get(offset + i));
+          }
+          allocatedBytes.addAndGet(threadBean.getThreadAllocatedBytes(threadId) - bytesBefore);
+          done.countDown();
+        }
+      }.start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    done.await();
+    long nanos = System.nanoTime() - startNanos;
+    if (refWatcher.getRetainedKeys().size() != THREADS * WATCHES_PER_THREAD) {
+      throw new AssertionError("Lost watched references");
+    }
+    return new long[] { nanos, allocatedBytes.get() };
+  }
+
+  private RefWatcherBenchmark() {
+    throw new AssertionError();
+  }
+}
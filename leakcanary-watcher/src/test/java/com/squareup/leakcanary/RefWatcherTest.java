@@ -16,10 +16,18 @@
 package com.squareup.leakcanary;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import static com.squareup.leakcanary.HeapDumper.RETRY_LATER;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -28,25 +36,33 @@ public class RefWatcherTest {
 
   static class TestDumper implements HeapDumper {
     boolean called;
+    int dumps;
 
     @Override public File dumpHeap() {
       called = true;
+      dumps++;
       return new File("");
     }
   }
 
   static class TestListener implements HeapDump.Listener {
+    final List<HeapDump> heapDumps = new ArrayList<>();
+
     @Override public void analyze(HeapDump heapDump) {
+      heapDumps.add(heapDump);
     }
   }
 
   @SuppressWarnings("FieldCanBeLocal") Object ref;
+  @SuppressWarnings("FieldCanBeLocal") Object otherRef;
 
   static class TestExecutor implements WatchExecutor {
     Retryable retryable;
+    final List<Retryable> retryables = new ArrayList<>();
 
     @Override public void execute(Retryable retryable) {
       this.retryable = retryable;
+      retryables.add(retryable);
     }
   }
 
@@ -73,10 +89,224 @@ public class RefWatcherTest {
     assertTrue(dumper.called);
   }
 
+  @Test public void retainedObjectsWatchedTogether_singleDump() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    TestListener listener = new TestListener();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor, listener);
+    ref = new Object();
+    otherRef = new Object();
+    refWatcher.watch(ref);
+    refWatcher.watch(otherRef);
+    List<String> keys = new ArrayList<>(refWatcher.getRetainedKeys());
+    for (Retryable retryable : executor.retryables) {
+      retryable.run();
+    }
+    assertEquals(1, dumper.dumps);
+    assertEquals(1, listener.heapDumps.size());
+    HeapDump heapDump = listener.heapDumps.get(0);
+    assertEquals(2, heapDump.retainedKeys.size());
+    assertTrue(heapDump.retainedKeys.containsAll(keys));
+    assertTrue(heapDump.retainedKeys.contains(heapDump.referenceKey));
+  }
+
+  @Test public void retainedObjectsDumpedTogether_namesKept() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    TestListener listener = new TestListener();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor, listener);
+    ref = new Object();
+    otherRef = new Object();
+    refWatcher.watch(ref, "first");
+    refWatcher.watch(otherRef, "second");
+    for (Retryable retryable : executor.retryables) {
+      retryable.run();
+    }
+    HeapDump heapDump = listener.heapDumps.get(0);
+    assertEquals(Arrays.asList("first", "second"),
+        new ArrayList<>(heapDump.retainedReferenceNames.values()));
+    assertEquals("first", heapDump.referenceName);
+  }
+
+  @Test public void retainedObjectWatchedBeforeUnreachableObject_dumped() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    TestListener listener = new TestListener();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor, listener);
+    ref = new Object();
+    refWatcher.watch(ref);
+    String key = refWatcher.getRetainedKeys().iterator().next();
+    refWatcher.watch(new Object());
+    for (Retryable retryable : executor.retryables) {
+      retryable.run();
+    }
+    assertEquals(1, dumper.dumps);
+    assertEquals(key, listener.heapDumps.get(0).referenceKey);
+    assertEquals(Arrays.asList(key), new ArrayList<>(listener.heapDumps.get(0).retainedKeys));
+  }
+
+  @Test public void retainedObjectWatchedLater_notInDump() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    TestListener listener = new TestListener();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor, listener);
+    ref = new Object();
+    otherRef = new Object();
+    refWatcher.watch(ref);
+    executor.retryable.run();
+    refWatcher.watch(otherRef);
+    executor.retryable.run();
+    assertEquals(2, dumper.dumps);
+    for (HeapDump heapDump : listener.heapDumps) {
+      assertEquals(Arrays.asList(heapDump.referenceKey),
+          new ArrayList<>(heapDump.retainedKeys));
+    }
+  }
+
+  @Test public void dumpRetriedAfterGc_gcReused() {
+    TestDumper dumper = new TestDumper() {
+      @Override public File dumpHeap() {
+        return dumps++ == 0 ? RETRY_LATER : super.dumpHeap();
+      }
+    };
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor);
+    ref = new Object();
+    refWatcher.watch(ref);
+    assertEquals(Retryable.Result.RETRY, executor.retryable.run());
+    assertEquals(Retryable.Result.DONE, executor.retryable.run());
+    assertTrue(dumper.called);
+    assertEquals(1, refWatcher.getForcedGcCount());
+    assertEquals(1, refWatcher.getReusedGcCount());
+  }
+
+  @Test public void retriedCheckThenLaterObjectDumped_retriedObjectDumped() {
+    TestDumper dumper = new TestDumper() {
+      @Override public File dumpHeap() {
+        return dumps++ == 0 ? RETRY_LATER : super.dumpHeap();
+      }
+    };
+    TestExecutor executor = new TestExecutor();
+    TestListener listener = new TestListener();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor, listener);
+    ref = new Object();
+    refWatcher.watch(ref);
+    String key = refWatcher.getRetainedKeys().iterator().next();
+    Retryable retried = executor.retryable;
+    assertEquals(Retryable.Result.RETRY, retried.run());
+    otherRef = new Object();
+    refWatcher.watch(otherRef);
+    assertEquals(Retryable.Result.DONE, executor.retryable.run());
+    assertEquals(Retryable.Result.DONE, retried.run());
+    Set<String> dumpedKeys = new HashSet<>();
+    for (HeapDump heapDump : listener.heapDumps) {
+      dumpedKeys.addAll(heapDump.retainedKeys);
+    }
+    assertTrue(dumpedKeys.contains(key));
+    assertEquals(refWatcher.getRetainedKeys(), dumpedKeys);
+  }
+
+  @Test public void debuggerAttachedThenLaterObjectDumped_firstObjectDumped() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    TestListener listener = new TestListener();
+    final boolean[] debuggerAttached = { true };
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(dumper)
+        .heapDumpListener(listener)
+        .debuggerControl(new DebuggerControl() {
+          @Override public boolean isDebuggerAttached() {
+            return debuggerAttached[0];
+          }
+        })
+        .build();
+    ref = new Object();
+    refWatcher.watch(ref);
+    assertEquals(Retryable.Result.RETRY, executor.retryable.run());
+    debuggerAttached[0] = false;
+    otherRef = new Object();
+    refWatcher.watch(otherRef);
+    executor.retryable.run();
+    assertEquals(1, dumper.dumps);
+    assertEquals(2, listener.heapDumps.get(0).retainedKeys.size());
+  }
+
+  @Test public void retainedObjectWatchedAfterGc_gcNotReused() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = defaultWatcher(dumper, executor);
+    ref = new Object();
+    otherRef = new Object();
+    refWatcher.watch(ref);
+    executor.retryable.run();
+    refWatcher.watch(otherRef);
+    executor.retryable.run();
+    assertEquals(2, refWatcher.getForcedGcCount());
+    assertEquals(0, refWatcher.getReusedGcCount());
+  }
+
+  @Test public void retainedBelowThreshold_noDumpUntilThreshold() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    TestListener listener = new TestListener();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(dumper)
+        .heapDumpListener(listener)
+        .retainedThreshold(2)
+        .maxRetainedWait(1, HOURS)
+        .build();
+    ref = new Object();
+    otherRef = new Object();
+    refWatcher.watch(ref);
+    assertEquals(Retryable.Result.RETRY, executor.retryable.run());
+    assertFalse(dumper.called);
+    refWatcher.watch(otherRef);
+    assertEquals(Retryable.Result.DONE, executor.retryable.run());
+    assertEquals(1, dumper.dumps);
+    assertEquals(2, listener.heapDumps.get(0).retainedKeys.size());
+  }
+
+  @Test public void retainedBelowThresholdPastMaxWait_dump() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(dumper)
+        .retainedThreshold(2)
+        .maxRetainedWait(0, HOURS)
+        .build();
+    ref = new Object();
+    refWatcher.watch(ref);
+    assertEquals(Retryable.Result.DONE, executor.retryable.run());
+    assertTrue(dumper.called);
+  }
+
+  @Test public void heapDumpBudgetExhausted_dumpSkipped() {
+    TestDumper dumper = new TestDumper();
+    TestExecutor executor = new TestExecutor();
+    HeapDumpScheduler scheduler = new HeapDumpScheduler(1, 0, HOURS, Long.MAX_VALUE);
+    RefWatcher refWatcher = new RefWatcherBuilder<>().watchExecutor(executor)
+        .heapDumper(dumper)
+        .heapDumpScheduler(scheduler)
+        .build();
+    ref = new Object();
+    refWatcher.watch(ref);
+    assertEquals(Retryable.Result.DONE, executor.retryable.run());
+    otherRef = new Object();
+    refWatcher.watch(otherRef);
+    assertEquals(Retryable.Result.RETRY, executor.retryable.run());
+    assertEquals(1, dumper.dumps);
+    assertEquals(1, scheduler.getSkippedDumpCount());
+  }
+
   private RefWatcher defaultWatcher(TestDumper dumper, TestExecutor executor) {
+    return defaultWatcher(dumper, executor, new TestListener());
+  }
+
+  private RefWatcher defaultWatcher(TestDumper dumper, TestExecutor executor,
+      TestListener listener) {
     return new RefWatcherBuilder<>().watchExecutor(executor)
         .heapDumper(dumper)
-        .heapDumpListener(new TestListener())
+        .heapDumpListener(listener)
         .build();
   }
 }
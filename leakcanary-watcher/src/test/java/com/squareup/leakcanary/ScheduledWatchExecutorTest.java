@@ -0,0 +1,180 @@
+package com.squareup.leakcanary;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.squareup.leakcanary.Retryable.Result.DONE;
+import static com.squareup.leakcanary.Retryable.Result.RETRY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ScheduledWatchExecutorTest {
+
+  private ScheduledWatchExecutor executor;
+
+  @After public void tearDown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void check_runsOffCallerThread() throws InterruptedException {
+    executor = new ScheduledWatchExecutor(0, 10);
+    final AtomicReference<Thread> checkThread = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    executor.execute(new Retryable() {
+      @Override public Result run() {
+        checkThread.set(Thread.currentThread());
+        done.countDown();
+        return DONE;
+      }
+    });
+    assertTrue(done.await(5, SECONDS));
+    assertNotSame(Thread.currentThread(), checkThread.get());
+  }
+
+  @Test public void retry_runsAgain() throws InterruptedException {
+    executor = new ScheduledWatchExecutor(1, 10);
+    final AtomicInteger runs = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(3);
+    executor.execute(new Retryable() {
+      @Override public Result run() {
+        done.countDown();
+        return runs.incrementAndGet() < 3 ? RETRY : DONE;
+      }
+    });
+    assertTrue(done.await(5, SECONDS));
+  }
+
+  @Test public void tooManyPendingChecks_runAfterPendingCheck() throws InterruptedException {
+    executor = new ScheduledWatchExecutor(0, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    executor.execute(new Retryable() {
+      @Override public Result run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        return DONE;
+      }
+    });
+    assertTrue(started.await(5, SECONDS));
+    final CountDownLatch done = new CountDownLatch(1);
+    executor.execute(new Retryable() {
+      @Override public Result run() {
+        done.countDown();
+        return DONE;
+      }
+    });
+    assertEquals(1, done.getCount());
+    release.countDown();
+    assertTrue(done.await(5, SECONDS));
+    assertEquals(0, executor.getDroppedCheckCount());
+  }
+
+  @Test public void checkThrows_exceptionReported() throws InterruptedException {
+    executor = new ScheduledWatchExecutor(0, 10);
+    final AtomicReference<Throwable> reported = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    final RuntimeException exception = new RuntimeException();
+    Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+    Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      @Override public void uncaughtException(Thread thread, Throwable e) {
+        reported.set(e);
+        done.countDown();
+      }
+    });
+    try {
+      executor.execute(new Retryable() {
+        @Override public Result run() {
+          throw exception;
+        }
+      });
+      assertTrue(done.await(5, SECONDS));
+      assertSame(exception, reported.get());
+    } finally {
+      Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+    }
+  }
+
+  @Test public void shutdown_scheduledCheckDropped() throws InterruptedException {
+    executor = new ScheduledWatchExecutor(SECONDS.toMillis(60), 10);
+    final AtomicInteger runs = new AtomicInteger();
+    executor.execute(new Retryable() {
+      @Override public Result run() {
+        runs.incrementAndGet();
+        return DONE;
+      }
+    });
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, SECONDS));
+    assertEquals(0, runs.get());
+  }
+
+  @Test public void tooManyWaitingChecks_dropped() throws InterruptedException {
+    executor = new ScheduledWatchExecutor(0, 1, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    executor.execute(blockingCheck(started, release));
+    assertTrue(started.await(5, SECONDS));
+    final CountDownLatch done = new CountDownLatch(2);
+    Retryable check = new Retryable() {
+      @Override public Result run() {
+        done.countDown();
+        return DONE;
+      }
+    };
+    executor.execute(check);
+    executor.execute(check);
+    assertEquals(1, executor.getDroppedCheckCount());
+    release.countDown();
+    assertFalse(done.await(100, MILLISECONDS));
+    assertEquals(1, done.getCount());
+  }
+
+  @Test public void shutdown_waitingCheckDropped() throws InterruptedException {
+    executor = new ScheduledWatchExecutor(0, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    executor.execute(blockingCheck(started, release));
+    assertTrue(started.await(5, SECONDS));
+    executor.execute(new Retryable() {
+      @Override public Result run() {
+        return DONE;
+      }
+    });
+    executor.shutdown();
+    release.countDown();
+    assertTrue(executor.awaitTermination(5, SECONDS));
+    assertEquals(1, executor.getDroppedCheckCount());
+  }
+
+  private static Retryable blockingCheck(final CountDownLatch started,
+      final CountDownLatch release) {
+    return new Retryable() {
+      @Override public Result run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        return DONE;
+      }
+    };
+  }
+}
@@ -0,0 +1,24 @@
+package com.squareup.leakcanary;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertSame;
+
+@RunWith(JUnit4.class)
+public class SentinelGcTriggerTest {
+
+  /**
+   * In theory, this test doesn't have a 100% chance of success. In practice, the sentinel is
+   * enqueued with the other references cleared by the same GC.
+   */
+  @Test public void unreachableObject_referenceEnqueued() {
+    ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    WeakReference<Object> reference = new WeakReference<>(new Object(), queue);
+    new SentinelGcTrigger().runGc();
+    assertSame(reference, queue.poll());
+  }
+}